@@ -0,0 +1,364 @@
+package xnetp.poc.info;
+
+import org.jctools.queues.atomic.MpmcAtomicArrayQueue;
+import org.jctools.queues.atomic.SpscAtomicArrayQueue;
+import org.openjdk.jmh.annotations.*;
+import xnetp.poc.affinity.Affinity;
+import xnetp.poc.net.LatencyHistogram;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * exchange of elements between one producer (receiver) and
+ * several consumers (handlers), replaces hand made queue tests
+ * of this package with one parameterized suite.
+ *
+ * jmh thread is the producer, consumers are background threads,
+ * throughput is reported as produced elements per second
+ * (consumers keep up as exchange is bounded), handoff latency
+ * (offer -> poll) percentiles are printed after each iteration.
+ *
+ * queue based exchanges circulate preallocated elements via
+ * free queues like receiver and handlers do with buffers,
+ * ring exchange writes values in place
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueueExchangeBenchmark {
+
+    /**
+     * value returned by exchanges if there is nothing to poll
+     */
+    static final long EMPTY = Long.MIN_VALUE;
+
+    /**
+     * total number of elements in each exchange
+     */
+    static final int CAPACITY = 1024;
+
+    // spsc - jctools spsc lane per consumer, producer round robin (receiver's lanes),
+    // mpmc - jctools mpmc queue shared by all consumers,
+    // abq  - java.util.concurrent.ArrayBlockingQueue shared by all consumers,
+    // ring - lmax like preallocated ring with in place values shared by all consumers
+    @Param({"spsc", "mpmc", "abq", "ring"})
+    String queue;
+
+    // number of consumer threads
+    @Param({"1", "2", "4"})
+    int consumers;
+
+    // elements offered per invocation and polled by consumer in one go
+    @Param({"1", "16", "64"})
+    int batch;
+
+    // cpus to pin threads to: producer first, then consumers (like "2,3,4,5"), none - no pinning
+    @Param({"none"})
+    String cpus;
+
+    // exchange under test
+    Exchange exchange;
+
+    // background consumers
+    Consumer[] threads;
+
+    // producer's lane for round robin
+    int lane = 0;
+
+
+    @Setup(Level.Trial)
+    public void setup() {
+        switch (queue) {
+            case "spsc":
+                exchange = new QueueExchange(consumers, true);
+                break;
+            case "mpmc":
+                exchange = new QueueExchange(consumers, false);
+                break;
+            case "abq":
+                exchange = new QueueExchange(consumers, false) {
+                    @Override
+                    Queue<Element> queue(int capacity) {
+                        return new ArrayBlockingQueue<>(capacity);
+                    }
+                };
+                break;
+            case "ring":
+                exchange = new RingExchange(CAPACITY);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown queue: " + queue);
+        }
+
+        threads = new Consumer[consumers];
+        for (int c = 0; c < consumers; c++) {
+            threads[c] = new Consumer(exchange, c, batch, cpu(c + 1));
+            threads[c].start();
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void pin() {
+        // jmh thread could differ between iterations
+        int cpu = cpu(0);
+        if (0 < cpu) {
+            Affinity.setAffinity(cpu);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void latency() {
+        long[] counts = new long[LatencyHistogram.BUCKETS];
+        long[] sum = new long[LatencyHistogram.BUCKETS];
+        long total = 0;
+        for (Consumer consumer : threads) {
+            total += consumer.latency.interval(counts);
+            for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+                sum[i] += counts[i];
+            }
+        }
+        System.out.println(String.format("%n  handoff latency ns:  p50: %d   p99: %d   p99.9: %d   max: %d",
+                LatencyHistogram.percentile(sum, total, 50), LatencyHistogram.percentile(sum, total, 99),
+                LatencyHistogram.percentile(sum, total, 99.9), LatencyHistogram.max(sum)));
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws InterruptedException {
+        for (Consumer consumer : threads) {
+            consumer.running = false;
+        }
+        for (Consumer consumer : threads) {
+            consumer.join();
+        }
+    }
+
+    /**
+     * @param index thread index, 0 - producer
+     * @return cpu to pin thread to, 0 - no pinning
+     */
+    private int cpu(int index) {
+        if ("none".equals(cpus)) {
+            return 0;
+        }
+        String[] list = cpus.split(",");
+        return (index < list.length) ? Integer.parseInt(list[index].trim()) : 0;
+    }
+
+    /**
+     * aux counter with produced elements, reported as elements/s
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Elements {
+        public long elements;
+    }
+
+    @Benchmark
+    public void produce(Elements counter) {
+        for (int i = 0; i < batch; i++) {
+            // fresh stamp for each attempt, so latency
+            // doesn't include producer's backpressure
+            while (!exchange.offer(lane, System.nanoTime())) {
+                Thread.onSpinWait();
+            }
+            lane = (lane + 1 == consumers) ? 0 : lane + 1;
+        }
+        counter.elements += batch;
+    }
+
+
+    /**
+     * exchange of long values between one producer and consumers
+     */
+    abstract static class Exchange {
+        /**
+         * producer: offers value
+         * @param lane preferred consumer, could be ignored by shared exchanges
+         * @param value value to pass
+         * @return true if value was accepted
+         */
+        abstract boolean offer(int lane, long value);
+
+        /**
+         * consumer: polls value
+         * @param consumer consumer index
+         * @return value or {@link QueueExchangeBenchmark#EMPTY}
+         */
+        abstract long poll(int consumer);
+    }
+
+    /**
+     * preallocated element circulating between free and used queues
+     */
+    static final class Element {
+        long value;
+    }
+
+    /**
+     * used queues (lane per consumer or one shared) plus free queue
+     * per consumer to return elements to producer
+     */
+    static class QueueExchange extends Exchange {
+        private final Queue<Element>[] used;
+        private final Queue<Element>[] free;
+        private int freeLane = 0;
+
+        @SuppressWarnings("unchecked")
+        QueueExchange(int consumers, boolean lanes) {
+            used = new Queue[lanes ? consumers : 1];
+            for (int i = 0; i < used.length; i++) {
+                used[i] = queue(CAPACITY);
+            }
+            // free queues are always spsc: consumer -> producer
+            free = new Queue[consumers];
+            for (int c = 0; c < consumers; c++) {
+                free[c] = new SpscAtomicArrayQueue<>(CAPACITY);
+            }
+            for (int i = 0; i < CAPACITY; i++) {
+                free[i % consumers].offer(new Element());
+            }
+        }
+
+        /**
+         * @param capacity queue capacity
+         * @return used queue implementation
+         */
+        Queue<Element> queue(int capacity) {
+            return (used.length == 1) ? new MpmcAtomicArrayQueue<>(capacity) : new SpscAtomicArrayQueue<>(capacity);
+        }
+
+        @Override
+        boolean offer(int lane, long value) {
+            Element element = null;
+            for (int i = 0; (i < free.length) && (element == null); i++) {
+                element = free[freeLane].poll();
+                freeLane = (freeLane + 1 == free.length) ? 0 : freeLane + 1;
+            }
+            if (element == null) {
+                return false;
+            }
+            element.value = value;
+            // never full as elements are limited by capacity
+            used[(used.length == 1) ? 0 : lane].offer(element);
+            return true;
+        }
+
+        @Override
+        long poll(int consumer) {
+            Element element = used[(used.length == 1) ? 0 : consumer].poll();
+            if (element == null) {
+                return EMPTY;
+            }
+            long value = element.value;
+            free[consumer].offer(element);
+            return value;
+        }
+    }
+
+    /**
+     * lmax like ring: values are written in place into preallocated
+     * entries, each entry has sequence to publish (producer) and
+     * release (consumer) it, consumers claim entries from shared cursor
+     */
+    static class RingExchange extends Exchange {
+        private static final VarHandle SEQUENCE = MethodHandles.arrayElementVarHandle(long[].class);
+
+        private final long[] values;
+        private final long[] sequences;
+        private final int mask;
+
+        // producer's position
+        private long position = 0;
+
+        // next entry to claim by consumers
+        private final AtomicLong cursor = new AtomicLong();
+
+        RingExchange(int capacity) {
+            values = new long[capacity];
+            sequences = new long[capacity];
+            mask = capacity - 1;
+            for (int i = 0; i < capacity; i++) {
+                sequences[i] = i;
+            }
+        }
+
+        @Override
+        boolean offer(int lane, long value) {
+            int entry = (int) position & mask;
+            if ((long) SEQUENCE.getAcquire(sequences, entry) != position) {
+                // entry is not consumed yet, ring is full
+                return false;
+            }
+            values[entry] = value;
+            SEQUENCE.setRelease(sequences, entry, position + 1);
+            position++;
+            return true;
+        }
+
+        @Override
+        long poll(int consumer) {
+            long claim = cursor.get();
+            int entry = (int) claim & mask;
+            if ((long) SEQUENCE.getAcquire(sequences, entry) != claim + 1) {
+                // not published yet
+                return EMPTY;
+            }
+            if (!cursor.compareAndSet(claim, claim + 1)) {
+                // taken by another consumer
+                return EMPTY;
+            }
+            long value = values[entry];
+            SEQUENCE.setRelease(sequences, entry, claim + values.length);
+            return value;
+        }
+    }
+
+    /**
+     * consumer thread, records handoff latency of each value
+     */
+    static class Consumer extends Thread {
+        private final Exchange exchange;
+        private final int index;
+        private final int batch;
+        private final int affinity;
+
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        volatile boolean running = true;
+
+        Consumer(Exchange _exchange, int _index, int _batch, int _affinity) {
+            exchange = _exchange;
+            index = _index;
+            batch = _batch;
+            affinity = _affinity;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            if (affinity > 0) {
+                Affinity.setAffinity(affinity);
+            }
+
+            while (running) {
+                int polled = 0;
+                long value;
+                while ((polled < batch) && ((value = exchange.poll(index)) != EMPTY)) {
+                    latency.record(System.nanoTime() - value);
+                    polled++;
+                }
+                if (polled == 0) {
+                    Thread.onSpinWait();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package xnetp.poc.net;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static xnetp.poc.net.PacketReceiver.BUF_PACKET_BYTES_MAX;
+
+/**
+ * per packet hot paths of received buffers,
+ * results are in ns per packet
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketBufferBenchmark {
+
+    /**
+     * packets in buffer, typical mmsg batch
+     */
+    static final int PACKETS = 64;
+
+    /**
+     * uni diapason of generated packets
+     */
+    static final int UNI_VOLUMES = 4;
+    static final int UNI_SEGMENTS = 16;
+    static final int UNI_ADDRESSES = 1000;
+
+    // percent of incorrect packets
+    @Param({"0", "10"})
+    int errors;
+
+    // buffer with received packets
+    PacketBuffer buffer;
+
+    // types of packets in slots
+    PacketType[] types;
+
+    // codes of packets in slots
+    byte[] codes;
+
+    @Setup
+    public void setup() {
+        buffer = populate(PACKETS, errors);
+        types = new PacketType[PACKETS];
+        codes = new byte[PACKETS];
+        for (int i = 0; i < PACKETS; i++) {
+            codes[i] = buffer.getPacketTypeAsByte(i);
+            types[i] = PacketType.byType(codes[i]);
+        }
+    }
+
+    /**
+     * builds buffer with fixed layout like received one,
+     * types are mixed round robin, errors are spread randomly
+     * (fixed seed to have the same content in all forks)
+     * @param packets number of packets
+     * @param errors percent of incorrect packets
+     * @return populated buffer
+     */
+    static PacketBuffer populate(int packets, int errors) {
+        Random random = new Random(42);
+        PacketBuffer buffer = PacketBuffer.allocate(packets, BUF_PACKET_BYTES_MAX);
+        for (int i = 0; i < packets; i++) {
+            PacketType pType = PacketType.values()[i % (PacketType.values().length - 1)];
+            buffer.populatePacketExtHeaderTemplate(i);
+            buffer.populatePacketData(i, pType, UNI_VOLUMES, UNI_SEGMENTS, UNI_ADDRESSES,
+                    errors <= random.nextInt(100));
+        }
+        buffer.packets = packets;
+        return buffer;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public void validate(Blackhole bh) {
+        for (int i = 0; i < PACKETS; i++) {
+            bh.consume(buffer.validate(i));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public void getUNI(Blackhole bh) {
+        for (int i = 0; i < PACKETS; i++) {
+            bh.consume(buffer.getUNI(i));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public void getUNIKeys(Blackhole bh) {
+        for (int i = 0; i < PACKETS; i++) {
+            bh.consume(buffer.getUNIHigh(i));
+            bh.consume(buffer.getUNILow(i));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public void uniShard(Blackhole bh) {
+        for (int i = 0; i < PACKETS; i++) {
+            bh.consume(buffer.uniShard(i, 8));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public void populatePacketData() {
+        for (int i = 0; i < PACKETS; i++) {
+            buffer.populatePacketData(i, types[i], UNI_VOLUMES, UNI_SEGMENTS, UNI_ADDRESSES, true);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public void byType(Blackhole bh) {
+        for (int i = 0; i < PACKETS; i++) {
+            bh.consume(PacketType.byType(codes[i]));
+        }
+    }
+}
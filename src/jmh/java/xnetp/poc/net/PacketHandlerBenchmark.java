@@ -0,0 +1,52 @@
+package xnetp.poc.net;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static xnetp.poc.net.PacketBufferBenchmark.PACKETS;
+
+/**
+ * handler's processing of one received buffer without network,
+ * replies are accumulated but not sent, results are in ns per packet
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketHandlerBenchmark {
+
+    // percent of incorrect packets
+    @Param({"0", "10"})
+    int errors;
+
+    // percent of packets to reply
+    @Param({"0", "50", "100"})
+    float replies;
+
+    // workload iterations per reply
+    @Param({"0", "100"})
+    long workload;
+
+    // buffer with received packets
+    PacketBuffer buffer;
+
+    // handler, never started
+    RxThreadPacketHandler handler;
+
+    @Setup
+    public void setup() {
+        buffer = PacketBufferBenchmark.populate(PACKETS, errors);
+        handler = new RxThreadPacketHandler(0, null, null, null,
+                0, replies, workload, PACKETS, new byte[16], null, null, null, 0, null,
+                IdleStrategy.create(IdleStrategy.Type.spin, 0, 0, 0));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public void process() {
+        handler.process(buffer);
+    }
+}
@@ -0,0 +1,126 @@
+package xnetp.poc.affinity;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Simple Facade to allocate native memory regions
+ * backed by huge pages and placed on a numa node of the specified cpu
+ */
+public class Memory {
+
+    /*
+     * library loading and necessary optimizations
+     */
+    static {
+        System.loadLibrary("scheda");
+    }
+
+    /**
+     * regular page size used to touch regions
+     */
+    public static final int PAGE_SIZE = 4096;
+
+    /**
+     * maps anonymous region, pages are faulted in immediately
+     * by a temporary thread pinned to the specified cpu,
+     * so they will be placed on the numa node of that cpu
+     * @param size region size in bytes
+     * @param hugePages true to use 2MB pages (explicit or transparent)
+     * @param cpu cpu index to place pages near to, 0 - current thread touches pages
+     * @return direct buffer (native byte order) over the region
+     */
+    public static ByteBuffer allocate(long size, boolean hugePages, int cpu) {
+        if ((size < 1) || (Integer.MAX_VALUE < size)) {
+            throw new IllegalArgumentException("region size must be in 1..2GB");
+        }
+        ByteBuffer region = __map(size, hugePages);
+        if (region == null) {
+            throw new RuntimeException("error mapping memory region, errno: " + __errno());
+        }
+
+        if (cpu > 0) {
+            // first touch from the cpu to get node local pages
+            Thread toucher = new Thread(() -> {
+                Affinity.setAffinity(cpu);
+                __touch(region, PAGE_SIZE);
+            }, "memory-touch#" + cpu);
+            toucher.start();
+            try {
+                toucher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            __touch(region, PAGE_SIZE);
+        }
+
+        return region.order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * splits region into equal parts, each part
+     * starts at the specified alignment
+     * @param region region to split
+     * @param parts number of parts
+     * @param partSize size of each part in bytes
+     * @param alignment alignment of each part, power of 2
+     * @return parts (native byte order) sharing region's memory
+     */
+    public static ByteBuffer[] slice(ByteBuffer region, int parts, int partSize, int alignment) {
+        int stride = (partSize + alignment - 1) & -alignment;
+        if ((long)stride * parts > region.capacity()) {
+            throw new IllegalArgumentException("region is too small for " + parts + " parts");
+        }
+
+        ByteBuffer[] result = new ByteBuffer[parts];
+        for (int i = 0; i < parts; i++) {
+            ByteBuffer part = region.duplicate();
+            part.limit(i * stride + partSize).position(i * stride);
+            result[i] = part.slice().order(ByteOrder.nativeOrder());
+        }
+        return result;
+    }
+
+    /**
+     * @return numa node of the cpu current thread is running on, -1 if not available
+     */
+    public static int getNode() {
+        return __getNode();
+    }
+
+    /**
+     * unmaps region allocated with {@link Memory#allocate(long, boolean, int)},
+     * region and all its slices must not be used after this call
+     * @param region region to unmap
+     * @return result of the operation, -1 in case of any error
+     */
+    public static int free(ByteBuffer region) {
+        return __unmap(region);
+    }
+
+    /**
+     * @return direct buffer over mapped region or null in case of any error
+     */
+    native static ByteBuffer __map(long size, boolean huge);
+
+    /**
+     * writes into each page of the region
+     */
+    native static void __touch(ByteBuffer region, int page);
+
+    /**
+     * @return result of munmap
+     */
+    native static int __unmap(ByteBuffer region);
+
+    /**
+     * @return numa node of the current cpu or -1
+     */
+    native static int __getNode();
+
+    /**
+     * @return errno result with the last error
+     */
+    native static int __errno();
+}
@@ -0,0 +1,19 @@
+package xnetp.poc.disk;
+
+import java.io.IOException;
+
+/**
+ * state store that accepts node UNI as primitive key,
+ * handlers use it instead of {@link IStateStore#save(byte[])}
+ * to not allocate array for each stored packet
+ */
+public interface IUniStateStore extends IStateStore {
+
+    /**
+     * saves state of the node
+     * @param uniHigh first 8 bytes of UNI (big endian)
+     * @param uniLow last 8 bytes of UNI (big endian)
+     * @throws IOException if any
+     */
+    void save(long uniHigh, long uniLow) throws IOException;
+}
@@ -3,11 +3,23 @@ package xnetp.poc.info;
 import xnetp.poc.affinity.Affinity;
 import org.jctools.queues.atomic.MpscAtomicArrayQueue;
 import org.jctools.queues.atomic.SpmcAtomicArrayQueue;
+import org.jctools.queues.atomic.SpscAtomicArrayQueue;
 
+import java.util.Queue;
 import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * compares buffers' exchange layouts between one producer and
+ * several consumers, run with layout as the first argument:
+ *   spmc     - shared mpsc free pool and the only spmc queue
+ *   lanes    - spsc free/used lanes per consumer (receiver's default)
+ *   stealing - shared mpsc free pool, spmc lanes per consumer,
+ *              idle consumers steal from siblings' lanes
+ */
 public class SPMCQueuesTest {
 
+    public enum Layout {spmc, lanes, stealing}
+
 
     public static class Producer extends Thread {
         // will track iterations
@@ -22,17 +34,17 @@ public class SPMCQueuesTest {
         public AtomicLong rxUsedBuffersOverflow = new AtomicLong(0);
 
         // here we'll get free buffers to receive packets to
-        private MpscAtomicArrayQueue<Object> queueFreeBuffers;
+        private Queue<Object>[] queueFreeBuffers;
         // there we'll send buffers with packets for processing
-        private SpmcAtomicArrayQueue<Object> queueUsedBuffers;
+        private Queue<Object>[] queueUsedBuffers;
 
         // threads' affinity, cput index
         private int affinity;
 
         public Producer(
                 int _affinity,
-                MpscAtomicArrayQueue<Object> _queueFreeBuffers,
-                SpmcAtomicArrayQueue<Object> _queueUsedBuffers) {
+                Queue<Object>[] _queueFreeBuffers,
+                Queue<Object>[] _queueUsedBuffers) {
             affinity = _affinity;
             queueFreeBuffers = _queueFreeBuffers;
             queueUsedBuffers = _queueUsedBuffers;
@@ -45,23 +57,35 @@ public class SPMCQueuesTest {
                 Affinity.setAffinity(affinity);
             }
 
+            int queues = queueFreeBuffers.length;
+            int lanes = queueUsedBuffers.length;
+            int indexQueueFree = queues - 1;
+            int indexQueueUsed = lanes - 1;
             while (true) {
                 // can return null
-                Object buffer = queueFreeBuffers.poll();
+                Object buffer = queueFreeBuffers[indexQueueFree].poll();
                 if (buffer == null) {
                     // no free buffers
                     rxNoFreeBuffers.incrementAndGet();
-                    while ((buffer = queueFreeBuffers.poll()) == null) {
+                    while ((buffer = queueFreeBuffers[indexQueueFree].poll()) == null) {
+                        indexQueueFree = (indexQueueFree == 0) ? queues - 1 : indexQueueFree - 1;
                         Thread.onSpinWait();
                     }
                 }
 
                 rxIterationCounter.addAndGet(1);
 
+                // the same lane as free buffer or rotate with shared pool,
+                // like receiver does
+                indexQueueUsed = (queues == lanes)
+                        ? indexQueueFree
+                        : (indexQueueUsed == 0) ? lanes - 1 : indexQueueUsed - 1;
+
                 // we MUST cycle to not loose buffer
-                while (!queueUsedBuffers.offer(buffer)) {
+                while (!queueUsedBuffers[indexQueueUsed].offer(buffer)) {
                     // remember error
                     rxUsedBuffersOverflow.incrementAndGet();
+                    indexQueueUsed = (indexQueueUsed == 0) ? lanes - 1 : indexQueueUsed - 1;
                     Thread.onSpinWait();
                 }
             }
@@ -85,11 +109,18 @@ public class SPMCQueuesTest {
         // packets' receiving takes too much time
         public AtomicLong rxFreeBuffersOverflow = new AtomicLong(0);
 
+        // will track buffers taken from siblings' lanes
+        public AtomicLong rxStolenBuffers = new AtomicLong(0);
+
 
         // here we'll get free buffers to receive packets to
-        private MpscAtomicArrayQueue<Object> queueFreeBuffers;
+        private Queue<Object> queueFreeBuffers;
         // there we'll send buffers with packets for processing
-        private SpmcAtomicArrayQueue<Object> queueUsedBuffers;
+        private Queue<Object> queueUsedBuffers;
+        // lanes of all consumers to steal from, null - no stealing
+        private Queue<Object>[] queuesSiblingsUsedBuffers;
+        // index of own lane
+        private int lane;
 
 
         // threads' affinity, cpu index
@@ -101,12 +132,33 @@ public class SPMCQueuesTest {
          */
         public Consumer(
                 int _affinity,
-                MpscAtomicArrayQueue<Object> _queueFreeBuffers,
-                SpmcAtomicArrayQueue<Object> _queueUsedBuffers)
+                Queue<Object> _queueFreeBuffers,
+                Queue<Object>[] _queuesUsedBuffers,
+                int _lane,
+                boolean _stealing)
         {
             affinity = _affinity;
             queueFreeBuffers = _queueFreeBuffers;
-            queueUsedBuffers = _queueUsedBuffers;
+            queueUsedBuffers = _queuesUsedBuffers[_lane];
+            queuesSiblingsUsedBuffers = _stealing ? _queuesUsedBuffers : null;
+            lane = _lane;
+        }
+
+        /**
+         * polls own lane and steals from siblings if enabled
+         */
+        private Object poll() {
+            Object buffer = queueUsedBuffers.poll();
+            if ((buffer == null) && (queuesSiblingsUsedBuffers != null)) {
+                int lanes = queuesSiblingsUsedBuffers.length;
+                for (int i = 1; i < lanes; i++) {
+                    if ((buffer = queuesSiblingsUsedBuffers[(lane + i) % lanes].poll()) != null) {
+                        rxStolenBuffers.incrementAndGet();
+                        break;
+                    }
+                }
+            }
+            return buffer;
         }
 
         @Override
@@ -119,14 +171,14 @@ public class SPMCQueuesTest {
 
 
             while (true) {
-                Object buffer = queueUsedBuffers.poll();
+                Object buffer = poll();
                 if (buffer == null) {
                     // no ready buffers
                     rxNoUsedBuffers.incrementAndGet();
 
                     // run very quick waits
                     int counter = 100;
-                    while (((buffer = queueUsedBuffers.poll()) == null) && (0 < --counter)) {
+                    while (((buffer = poll()) == null) && (0 < --counter)) {
                         Thread.onSpinWait();
                     }
                     // back off and run long waits till data is available
@@ -134,7 +186,7 @@ public class SPMCQueuesTest {
                         // remember long waiting
                         rxNoUsedBuffersLong.incrementAndGet();
 
-                        while ((buffer = queueUsedBuffers.poll()) == null) {
+                        while ((buffer = poll()) == null) {
 //                            Thread.yield(); // this gives 100% cpu load
                             
                             try {
@@ -170,11 +222,29 @@ public class SPMCQueuesTest {
 
     public static void main(String[] args) {
 
-        // setup buffers/queues
-        MpscAtomicArrayQueue<Object> rxQueueFreeBuffers = new MpscAtomicArrayQueue<>(RECEIVE_BUFFERS);
-        SpmcAtomicArrayQueue<Object> rxQueueUsedBuffers = new SpmcAtomicArrayQueue<>(RECEIVE_BUFFERS);
+        Layout layout = (args.length > 0) ? Layout.valueOf(args[0]) : Layout.spmc;
+        System.out.println("layout: " + layout);
+
+        // setup buffers/queues, the same total number of buffers for all layouts
+        Queue<Object>[] rxQueueFreeBuffers;
+        Queue<Object>[] rxQueueUsedBuffers;
+        if (layout == Layout.lanes) {
+            rxQueueFreeBuffers = new Queue[CONSUMERS];
+            rxQueueUsedBuffers = new Queue[CONSUMERS];
+            for (int i = 0; i < CONSUMERS; i++) {
+                rxQueueFreeBuffers[i] = new SpscAtomicArrayQueue<>(RECEIVE_BUFFERS / CONSUMERS);
+                rxQueueUsedBuffers[i] = new SpscAtomicArrayQueue<>(RECEIVE_BUFFERS / CONSUMERS);
+            }
+        } else {
+            int lanes = (layout == Layout.stealing) ? CONSUMERS : 1;
+            rxQueueFreeBuffers = new Queue[] {new MpscAtomicArrayQueue<>(RECEIVE_BUFFERS)};
+            rxQueueUsedBuffers = new Queue[lanes];
+            for (int i = 0; i < lanes; i++) {
+                rxQueueUsedBuffers[i] = new SpmcAtomicArrayQueue<>(RECEIVE_BUFFERS / lanes);
+            }
+        }
         for (int i = 0; i < RECEIVE_BUFFERS; i++) {
-            rxQueueFreeBuffers.offer(new Object());
+            rxQueueFreeBuffers[i % rxQueueFreeBuffers.length].offer(new Object());
         }
 
         // allocate threads
@@ -187,7 +257,9 @@ public class SPMCQueuesTest {
 
             consumers[i] = new Consumer(
                     tAffinity,
-                    rxQueueFreeBuffers, rxQueueUsedBuffers);
+                    rxQueueFreeBuffers[i % rxQueueFreeBuffers.length],
+                    rxQueueUsedBuffers, i % rxQueueUsedBuffers.length,
+                    layout == Layout.stealing);
         }
 
 
@@ -230,20 +302,21 @@ public class SPMCQueuesTest {
                 // print processing statistics
                 System.out.println("     [handlers]");
                 System.out.println("  ----------------------------------------------------------------------------------------------------------------------------------------------------------------");
-                System.out.println("    cpu  iterations/s    iterations         nub      nub%        nubL     nubL%         fbo");
+                System.out.println("    cpu  iterations/s    iterations         nub      nub%        nubL     nubL%         fbo      stolen");
                 for (int i = 0; i < CONSUMERS; i++) {
                     Consumer consumer = consumers[i];
                     long cIterations            = consumer.rxIterationsCounter.getAndSet(0);
                     long cNoUsedBuffers         = consumer.rxNoUsedBuffers.getAndSet(0);
                     long cNoUsedBuffersLong     = consumer.rxNoUsedBuffersLong.getAndSet(0);
                     long cFreeBuffersOverflow   = consumer.rxFreeBuffersOverflow.getAndSet(0);
+                    long cStolenBuffers         = consumer.rxStolenBuffers.getAndSet(0);
 
                     String line = String.format(
-                            "     %2d    %10d    %10d  %10d    %6.2f  %10d    %6.2f  %10d",
+                            "     %2d    %10d    %10d  %10d    %6.2f  %10d    %6.2f  %10d  %10d",
                             consumers[i].affinity, (int)(factor * cIterations), cIterations,
                             cNoUsedBuffers, 100d * cNoUsedBuffers / cIterations,
                             cNoUsedBuffersLong, 100d * cNoUsedBuffersLong / cNoUsedBuffers,
-                            cFreeBuffersOverflow);
+                            cFreeBuffersOverflow, cStolenBuffers);
                     System.out.println(line);
                 }
                 System.out.println();
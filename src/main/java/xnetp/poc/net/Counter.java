@@ -0,0 +1,94 @@
+package xnetp.poc.net;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * statistics counter with the only writer thread,
+ * writer updates value with plain read and opaque store (no locked
+ * instructions), value is padded to not share cache lines with other
+ * counters, reader calculates deltas from its own snapshot
+ * instead of resetting the value.
+ *
+ * value lives in a private direct buffer and could be moved
+ * into shared memory with {@link Counter#bind(ByteBuffer, int)},
+ * so external processes see it in place (see {@link CountersFile})
+ */
+public class Counter {
+
+    /**
+     * access to the value with opaque semantic
+     */
+    private static final VarHandle VALUE = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    /**
+     * padding on both sides of the value in bytes,
+     * 128 bytes as adjacent lines are prefetched in pairs
+     */
+    private static final int PAD = 128;
+
+    // buffer and offset of the value, owned by writer,
+    // rebound only before the writer thread is started
+    private ByteBuffer cell = ByteBuffer.allocateDirect(PAD + Long.BYTES + PAD).alignedSlice(Long.BYTES);
+    private int offset = PAD;
+
+    // value at the last delta, owned by reader
+    private long snapshot = 0;
+
+    /**
+     * writer: increments value by one
+     */
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * writer: adds delta to the value
+     * @param delta delta to add
+     */
+    public void add(long delta) {
+        VALUE.setOpaque(cell, offset, (long) VALUE.get(cell, offset) + delta);
+    }
+
+    /**
+     * writer: sets the value, for last values like errno
+     * @param value value to set
+     */
+    public void set(long value) {
+        VALUE.setOpaque(cell, offset, value);
+    }
+
+    /**
+     * reader: current value
+     * @return value
+     */
+    public long get() {
+        return (long) VALUE.getOpaque(cell, offset);
+    }
+
+    /**
+     * moves the value into external memory keeping current value,
+     * must be called before the writer thread is started
+     * @param _buffer buffer to keep the value in, like mapped file
+     * @param _offset offset of the value, must be 8 bytes aligned
+     */
+    public void bind(ByteBuffer _buffer, int _offset) {
+        VALUE.setOpaque(_buffer, _offset, get());
+        cell = _buffer;
+        offset = _offset;
+    }
+
+    /**
+     * reader: change of the value since the previous call,
+     * must be called by one reader thread only
+     * @return delta since the previous call
+     */
+    public long delta() {
+        long value = get();
+        long delta = value - snapshot;
+        snapshot = value;
+        return delta;
+    }
+}
@@ -0,0 +1,243 @@
+package xnetp.poc.net;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * memory mapped file with counters' values (agrona counters like),
+ * threads update values in place via bound {@link Counter}s,
+ * external readers sample the file without touching jvm
+ *
+ * file layout (native byte order), all records are 128 bytes
+ * so values never share prefetched cache line pairs:
+ * [HEADER: 128] [METADATA: capacity * 128] [VALUES: capacity * 128]
+ *
+ * header:   magic: 4, version: 4, capacity: 4, count: 4
+ * metadata: label length: 4, label (utf-8): up to 124
+ * values:   value: 8, padding: 120
+ *
+ * count is published after counter's metadata is written,
+ * so readers see only complete counters
+ */
+public class CountersFile {
+
+    /**
+     * file identification
+     */
+    public static final int MAGIC                   = 0x43504E58;   // "XNPC"
+    public static final int VERSION                 = 1;
+
+    /**
+     * header fields
+     */
+    public static final int HEADER_MAGIC_SHIFT      = 0;
+    public static final int HEADER_VERSION_SHIFT    = 4;
+    public static final int HEADER_CAPACITY_SHIFT   = 8;
+    public static final int HEADER_COUNT_SHIFT      = 12;
+
+    /**
+     * size of header and each record
+     */
+    public static final int RECORD_LENGTH           = 128;
+    public static final int HEADER_LENGTH           = RECORD_LENGTH;
+    public static final int LABEL_LENGTH_MAX        = RECORD_LENGTH - 4;
+
+    /**
+     * access to count with memory ordering
+     */
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    /**
+     * access to values with opaque semantic
+     */
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    /**
+     * mapped file (native byte order)
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * max number of counters
+     */
+    public final int capacity;
+
+    /**
+     * creates (or truncates) file and maps it for writing
+     * @param path file path, like /dev/shm/xnetp.counters
+     * @param capacity max number of counters
+     * @return counters file to register counters in
+     * @throws IOException if file could not be created
+     */
+    public static CountersFile create(Path path, int capacity) throws IOException {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be > 0");
+        }
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length(capacity));
+        }
+        buffer.order(ByteOrder.nativeOrder());
+        buffer.putInt(HEADER_MAGIC_SHIFT, MAGIC);
+        buffer.putInt(HEADER_VERSION_SHIFT, VERSION);
+        buffer.putInt(HEADER_CAPACITY_SHIFT, capacity);
+        INT.setRelease(buffer, HEADER_COUNT_SHIFT, 0);
+        return new CountersFile(buffer, capacity);
+    }
+
+    /**
+     * maps existing file for reading
+     * @param path file path
+     * @return counters file to read values from
+     * @throws IOException if file could not be read or has wrong format
+     */
+    public static CountersFile open(Path path) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_LENGTH) {
+                throw new IOException("not a counters file: " + path);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        buffer.order(ByteOrder.nativeOrder());
+        if ((buffer.getInt(HEADER_MAGIC_SHIFT) != MAGIC) || (buffer.getInt(HEADER_VERSION_SHIFT) != VERSION)) {
+            throw new IOException("not a counters file or wrong version: " + path);
+        }
+        int capacity = buffer.getInt(HEADER_CAPACITY_SHIFT);
+        if (buffer.capacity() < length(capacity)) {
+            throw new IOException("counters file is truncated: " + path);
+        }
+        return new CountersFile(buffer, capacity);
+    }
+
+    /**
+     * @param capacity max number of counters
+     * @return file length
+     */
+    private static int length(int capacity) {
+        return HEADER_LENGTH + 2 * capacity * RECORD_LENGTH;
+    }
+
+    private CountersFile(ByteBuffer _buffer, int _capacity) {
+        buffer = _buffer;
+        capacity = _capacity;
+    }
+
+    /**
+     * writer: moves counter's value into the file,
+     * must be called before the counter's writer thread is started
+     * @param label counter label, truncated to {@link CountersFile#LABEL_LENGTH_MAX} bytes
+     *              on utf-8 characters' boundary
+     * @param counter counter to export
+     */
+    public void register(String label, Counter counter) {
+        int index = count();
+        if (capacity <= index) {
+            throw new IllegalStateException("counters file is full, capacity: " + capacity);
+        }
+
+        byte[] bytes = label.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, LABEL_LENGTH_MAX);
+        // don't split multi-byte character, cut before its first byte
+        while ((length < bytes.length) && ((bytes[length] & 0xC0) == 0x80)) {
+            length--;
+        }
+        int metadata = metadata(index);
+        buffer.putInt(metadata, length);
+        for (int i = 0; i < length; i++) {
+            buffer.put(metadata + 4 + i, bytes[i]);
+        }
+
+        counter.bind(buffer, value(index));
+        INT.setRelease(buffer, HEADER_COUNT_SHIFT, index + 1);
+    }
+
+    /**
+     * writer: registers all public counters' fields of the object
+     * (single counters and arrays) as prefix + field name [+ "." + index],
+     * latency histograms are exported as their percentiles' counters,
+     * like prefix + field name + ".p99"
+     * @param prefix labels' prefix, like "h0."
+     * @param owner object with counters, like thread
+     */
+    public void registerAll(String prefix, Object owner) {
+        for (Field field : owner.getClass().getFields()) {
+            if (Modifier.isStatic(field.getModifiers())) {
+                continue;
+            }
+            try {
+                if (field.getType() == Counter.class) {
+                    register(prefix + field.getName(), (Counter) field.get(owner));
+                } else if (field.getType() == Counter[].class) {
+                    Counter[] counters = (Counter[]) field.get(owner);
+                    for (int i = 0; i < counters.length; i++) {
+                        register(prefix + field.getName() + "." + i, counters[i]);
+                    }
+                } else if (field.getType() == LatencyHistogram.class) {
+                    registerAll(prefix + field.getName() + ".", field.get(owner));
+                }
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("counter is not accessible: " + field, e);
+            }
+        }
+    }
+
+    /**
+     * reader: number of registered counters, could grow
+     * @return number of counters
+     */
+    public int count() {
+        return (int) INT.getAcquire(buffer, HEADER_COUNT_SHIFT);
+    }
+
+    /**
+     * reader: label of the counter
+     * @param index counter index, [0..count)
+     * @return label
+     */
+    public String label(int index) {
+        int metadata = metadata(index);
+        byte[] bytes = new byte[buffer.getInt(metadata)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(metadata + 4 + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * reader: current value of the counter
+     * @param index counter index, [0..count)
+     * @return value
+     */
+    public long get(int index) {
+        return (long) LONG.getOpaque(buffer, value(index));
+    }
+
+    /**
+     * @param index counter index
+     * @return offset of counter's metadata
+     */
+    private static int metadata(int index) {
+        return HEADER_LENGTH + index * RECORD_LENGTH;
+    }
+
+    /**
+     * @param index counter index
+     * @return offset of counter's value
+     */
+    private int value(int index) {
+        return HEADER_LENGTH + (capacity + index) * RECORD_LENGTH;
+    }
+}
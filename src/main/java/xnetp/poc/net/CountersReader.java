@@ -0,0 +1,101 @@
+package xnetp.poc.net;
+
+import picocli.CommandLine;
+
+import java.nio.file.Paths;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
+
+
+@CommandLine.Command(name = "counters", usageHelpWidth = 120,
+        description = "Samples counters' file exported by receiver or sender and prints values and rates")
+public class CountersReader implements Callable<Integer> {
+
+    @CommandLine.Parameters(
+            index = "0",
+            paramLabel = "file",
+            description = "counters' file, like /dev/shm/xnetp.rx")
+    private String file;
+
+    @CommandLine.Option(names = {"-p", "--period.ms"},
+            defaultValue = "1000",
+            description = "sampling period in ms")
+    private long periodMs;
+
+    @CommandLine.Option(names = {"-f", "--filter"},
+            description = "regular expression to select counters by label, like \"h.*replies\"")
+    private Pattern filter;
+
+    @CommandLine.Option(names = {"-z", "--zeros"},
+            description = "print counters with zero rate too")
+    private boolean zeros = false;
+
+
+    /**
+     * entry point
+     *
+     * @param args arguments
+     */
+    public static void main(String[] args) {
+        int result = new CommandLine(CountersReader.class).execute(args);
+        System.exit(result);
+    }
+
+    @Override
+    public Integer call() {
+        try {
+            // simple wrapper to catch and dump exception
+            // instead of picocli
+            return _call();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return -1;
+    }
+
+    /**
+     * application logic
+     *
+     * @return nothing
+     * @throws Exception if any
+     */
+    private Integer _call() throws Exception {
+        if (periodMs < 1) {
+            throw new IllegalArgumentException("period must be > 0");
+        }
+
+        CountersFile counters = CountersFile.open(Paths.get(file));
+
+        // labels are read once as counters are only appended
+        String[] labels = new String[counters.capacity];
+        long[] values = new long[counters.capacity];
+
+        long tStart = System.nanoTime();
+        while (true) {
+            Thread.sleep(periodMs);
+            long tNow = System.nanoTime();
+            double factor = 1E9 / (tNow - tStart);
+            tStart = tNow;
+
+            System.out.println("---- [" + file + ": " + periodMs + " ms] ------------------------------------------------------");
+            System.out.println("  counter                                                              value          per sec");
+            int count = counters.count();
+            for (int i = 0; i < count; i++) {
+                if (labels[i] == null) {
+                    labels[i] = counters.label(i);
+                    values[i] = counters.get(i);
+                    continue;
+                }
+                long value = counters.get(i);
+                long delta = value - values[i];
+                values[i] = value;
+
+                if ((!zeros && (delta == 0)) || ((filter != null) && !filter.matcher(labels[i]).find())) {
+                    continue;
+                }
+                System.out.println(String.format("  %-60s %16d %16d", labels[i], value, (long)(factor * delta)));
+            }
+            System.out.println();
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package xnetp.poc.net;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * strategy to wait for work in polling threads,
+ * each {@link IdleStrategy#idle()} call follows one more empty poll,
+ * {@link IdleStrategy#reset()} must be called when work is found.
+ *
+ * waits go through tiers: spin -> yield -> park, time spent in each tier
+ * is booked on tier changes and periodically inside long tiers (on each
+ * yield/park and every {@link IdleStrategy#SPIN_BOOK_PERIOD} spins), so
+ * threads idle for whole metrics' period are reported correctly,
+ * instance is owned by one thread, counters could be read by any thread
+ */
+public abstract class IdleStrategy {
+
+    /**
+     * idle tiers
+     */
+    public static final int TIER_SPIN   = 0;
+    public static final int TIER_YIELD  = 1;
+    public static final int TIER_PARK   = 2;
+    public static final int TIERS       = 3;
+
+    /**
+     * first park timeout of backoff strategies, doubled on each next park
+     */
+    private static final long PARK_MIN_NS = 1_000;
+
+    /**
+     * spins between bookings of spin time, clock is not read on each spin
+     */
+    static final int SPIN_BOOK_PERIOD = 1024;
+
+    /**
+     * available strategies
+     */
+    public enum Type {
+        // busy spin, lowest latency, core is always loaded
+        spin,
+        // yields cpu to other threads on each empty poll
+        yield,
+        // parks for max park time on each empty poll
+        park,
+        // spins, yields and parks with growing timeouts
+        backoff,
+        // backoff with spin phase adapted to recent arrivals
+        adaptive
+    }
+
+    // time spent in each tier, ns
+    public final Counter[] tierNanos = new Counter[TIERS];
+
+    // number of finished idle episodes
+    public final Counter episodes = new Counter();
+
+    // empty polls in the current episode
+    protected int attempts = 0;
+
+    // current tier and time it was entered
+    private int tier = -1;
+    private long tierStart;
+
+    // time the current episode started
+    private long episodeStart;
+
+    // spins since the last booking of spin time
+    private int spinsUnbooked;
+
+    /**
+     * builds strategy
+     * @param type strategy type
+     * @param spins number of spins before yields (backoff, adaptive)
+     * @param yields number of yields before parks (backoff, adaptive)
+     * @param parkMaxNs max park timeout
+     * @return strategy instance for one thread
+     */
+    public static IdleStrategy create(Type type, int spins, int yields, long parkMaxNs) {
+        switch (type) {
+            case spin:
+                return new Fixed(TIER_SPIN, 0);
+            case yield:
+                return new Fixed(TIER_YIELD, 0);
+            case park:
+                return new Fixed(TIER_PARK, parkMaxNs);
+            case backoff:
+                return new Backoff(spins, yields, parkMaxNs);
+            case adaptive:
+                return new Adaptive(spins, yields, parkMaxNs);
+            default:
+                throw new IllegalArgumentException("unknown idle strategy: " + type);
+        }
+    }
+
+    protected IdleStrategy() {
+        for (int i = 0; i < TIERS; i++) {
+            tierNanos[i] = new Counter();
+        }
+    }
+
+    /**
+     * waits after one more empty poll
+     * @return tier used for the wait
+     */
+    public final int idle() {
+        int t = tier(attempts);
+        if (t != tier) {
+            long now = System.nanoTime();
+            if (tier == -1) {
+                episodeStart = now;
+            } else {
+                tierNanos[tier].add(now - tierStart);
+            }
+            tier = t;
+            tierStart = now;
+            spinsUnbooked = 0;
+        } else if ((t != TIER_SPIN) || (++spinsUnbooked == SPIN_BOOK_PERIOD)) {
+            // book time of the long tier, yields and parks
+            // are much more expensive than clock reading
+            long now = System.nanoTime();
+            tierNanos[tier].add(now - tierStart);
+            tierStart = now;
+            spinsUnbooked = 0;
+        }
+
+        if (t == TIER_SPIN) {
+            Thread.onSpinWait();
+        } else if (t == TIER_YIELD) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(parkNanos(attempts));
+        }
+
+        // long idle periods must not overflow
+        if (attempts < Integer.MAX_VALUE) {
+            attempts++;
+        }
+        return t;
+    }
+
+    /**
+     * finishes idle episode, must be called when work is found
+     */
+    public final void reset() {
+        if (tier == -1) {
+            return;
+        }
+        long now = System.nanoTime();
+        tierNanos[tier].add(now - tierStart);
+        episodes.increment();
+        episode(tier, now - episodeStart);
+
+        tier = -1;
+        attempts = 0;
+    }
+
+    /**
+     * @param attempts empty polls in the current episode before this one
+     * @return tier to wait in
+     */
+    protected abstract int tier(int attempts);
+
+    /**
+     * @param attempts empty polls in the current episode before this one
+     * @return park timeout for park tier
+     */
+    protected abstract long parkNanos(int attempts);
+
+    /**
+     * called at the end of each idle episode
+     * @param lastTier tier work was found in
+     * @param nanos episode duration
+     */
+    protected void episode(int lastTier, long nanos) {
+    }
+
+
+    /**
+     * always waits in the same tier
+     */
+    private static class Fixed extends IdleStrategy {
+        private final int tier;
+        private final long parkNs;
+
+        private Fixed(int _tier, long _parkNs) {
+            tier = _tier;
+            parkNs = _parkNs;
+        }
+
+        @Override
+        protected int tier(int attempts) {
+            return tier;
+        }
+
+        @Override
+        protected long parkNanos(int attempts) {
+            return parkNs;
+        }
+    }
+
+    /**
+     * spins, then yields, then parks doubling timeout up to max
+     */
+    private static class Backoff extends IdleStrategy {
+        protected int spins;
+        protected final int yields;
+        protected final long parkMaxNs;
+
+        private Backoff(int _spins, int _yields, long _parkMaxNs) {
+            spins = _spins;
+            yields = _yields;
+            parkMaxNs = _parkMaxNs;
+        }
+
+        @Override
+        protected int tier(int attempts) {
+            if (attempts < spins) {
+                return TIER_SPIN;
+            } else if (attempts < (long) spins + yields) {
+                return TIER_YIELD;
+            }
+            return TIER_PARK;
+        }
+
+        @Override
+        protected long parkNanos(int attempts) {
+            long parks = (long) attempts - spins - yields;
+            return (parks < 20) ? Math.min(PARK_MIN_NS << parks, parkMaxNs) : parkMaxNs;
+        }
+    }
+
+    /**
+     * backoff with spin phase adapted to recent arrivals:
+     * work found while spinning means packets arrive often and
+     * longer spinning pays off, work found after parking means
+     * arrivals are rare and spinning only wastes the core
+     */
+    private static class Adaptive extends Backoff {
+        private final int spinsMin;
+        private final int spinsMax;
+
+        private Adaptive(int _spins, int _yields, long _parkMaxNs) {
+            super(_spins, _yields, _parkMaxNs);
+            spinsMin = Math.max(1, _spins / 16);
+            // saturated, spins could be up to Integer.MAX_VALUE
+            spinsMax = (int) Math.max(1, Math.min((long) _spins * 16, Integer.MAX_VALUE));
+        }
+
+        @Override
+        protected void episode(int lastTier, long nanos) {
+            if (lastTier == TIER_SPIN) {
+                spins = (int) Math.min((long) spins * 2, spinsMax);
+            } else if (lastTier == TIER_PARK) {
+                spins = Math.max(spins / 2, spinsMin);
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package xnetp.poc.net;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.Instant;
+
+/**
+ * preallocated log-linear histogram of latencies in ns (hdr-like),
+ * each power of 2 is split into 2^SUB_BITS linear sub-buckets,
+ * so relative error is below 1/2^SUB_BITS.
+ *
+ * recorded by the only writer thread without allocations and locked
+ * instructions, reader takes interval deltas into its own array
+ * like {@link Counter} does and publishes percentiles of the interval
+ * into counters, so they could be exported (see {@link CountersFile})
+ */
+public class LatencyHistogram {
+
+    /**
+     * access to buckets with opaque semantic
+     */
+    private static final VarHandle BUCKET = MethodHandles.arrayElementVarHandle(long[].class);
+
+    /**
+     * linear sub-buckets per power of 2, all of them are used,
+     * bucket width is 1/32 of the power (~3% relative error)
+     */
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+
+    /**
+     * max tracked value is 2^MAX_BITS ns (~18 min),
+     * bigger values are counted in the last bucket
+     */
+    private static final int MAX_BITS = 40;
+
+    /**
+     * total number of buckets, values below SUB have own buckets
+     */
+    public static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB;
+
+    /**
+     * realtime clock (kernel timestamps' base) derived from nanoTime,
+     * calibrated once as Instant allocates
+     */
+    private static final long REALTIME_OFFSET;
+    static {
+        Instant now = Instant.now();
+        REALTIME_OFFSET = now.getEpochSecond() * 1_000_000_000L + now.getNano() - System.nanoTime();
+    }
+
+    // buckets, owned by writer
+    private final long[] buckets = new long[BUCKETS];
+
+    // buckets at the last interval, owned by reader
+    private final long[] snapshot = new long[BUCKETS];
+
+    /**
+     * percentiles and max of the last interval in ns,
+     * written by reader on each {@link LatencyHistogram#interval(long[])}
+     */
+    public final Counter p50 = new Counter();
+    public final Counter p99 = new Counter();
+    public final Counter p999 = new Counter();
+    public final Counter max = new Counter();
+
+    /**
+     * @return current time in ns since epoch, comparable to kernel timestamps
+     */
+    public static long realtimeNanos() {
+        return System.nanoTime() + REALTIME_OFFSET;
+    }
+
+    /**
+     * writer: records one value
+     * @param nanos latency, negative values (clocks' skew) are counted as 0
+     */
+    public void record(long nanos) {
+        int index = index(Math.max(nanos, 0));
+        BUCKET.setOpaque(buckets, index, buckets[index] + 1);
+    }
+
+    /**
+     * reader: populates counts of values recorded since the previous call
+     * and publishes percentiles of the interval (0 if there are no values),
+     * must be called by one reader thread only
+     * @param counts array of {@link LatencyHistogram#BUCKETS} counts to populate
+     * @return total number of values in the interval
+     */
+    public long interval(long[] counts) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long value = (long) BUCKET.getOpaque(buckets, i);
+            counts[i] = value - snapshot[i];
+            snapshot[i] = value;
+            total += counts[i];
+        }
+
+        p50.set(percentile(counts, total, 50));
+        p99.set(percentile(counts, total, 99));
+        p999.set(percentile(counts, total, 99.9));
+        max.set(max(counts));
+        return total;
+    }
+
+    /**
+     * @param counts interval counts
+     * @param total total number of values in counts
+     * @param percentile percentile, like 99.9
+     * @return upper bound of the bucket with the percentile, 0 if there are no values
+     */
+    public static long percentile(long[] counts, long total, double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long threshold = (long) Math.ceil(total * percentile / 100d);
+        long accumulated = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            accumulated += counts[i];
+            if (threshold <= accumulated) {
+                return upper(i);
+            }
+        }
+        return upper(BUCKETS - 1);
+    }
+
+    /**
+     * @param counts interval counts
+     * @return upper bound of the highest non empty bucket
+     */
+    public static long max(long[] counts) {
+        for (int i = BUCKETS - 1; 0 <= i; i--) {
+            if (counts[i] != 0) {
+                return upper(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * values in [2^n, 2^(n+1)) with n >= SUB_BITS are split into
+     * SUB buckets of 2^(n-SUB_BITS) width, package visible for tests
+     * @param value non negative value
+     * @return bucket index
+     */
+    static int index(long value) {
+        if (value < SUB) {
+            return (int) value;
+        }
+        int bits = 64 - Long.numberOfLeadingZeros(value);
+        if (MAX_BITS < bits) {
+            return BUCKETS - 1;
+        }
+        // value >>> shift is in [SUB, 2*SUB)
+        int shift = bits - SUB_BITS - 1;
+        return (shift + 1) * SUB + (int) (value >>> shift) - SUB;
+    }
+
+    /**
+     * package visible for tests
+     * @param index bucket index
+     * @return max value in the bucket
+     */
+    static long upper(int index) {
+        if (index < SUB) {
+            return index;
+        }
+        int shift = index / SUB - 1;
+        long sub = index % SUB;
+        return ((SUB + sub + 1) << shift) - 1;
+    }
+}
@@ -1,5 +1,7 @@
 package xnetp.poc.net;
 
+import xnetp.poc.sockets.RawSocket;
+
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Formatter;
@@ -12,7 +14,18 @@ import java.util.concurrent.ThreadLocalRandom;
  * necessary additional information and
  * utility functions to access the buffer
  *
+ * fixed layout, each slot is:
  * [SLOT HEADER: 32]  [IP6 HEADER: 40]  [DATA]
+ * receive timestamp (if enabled) is kept at the start of ip6 header reserve
+ *
+ * packed layout (received packets only), packets are back-to-back:
+ * [INDEX: slots * 4] [RECORD] [RECORD] ...
+ * index keeps records' offsets, index and records are aligned, records have no ip header reserve:
+ * [SLOT HEADER: 32]  [TIMESTAMP: 8]  [DATA]
+ *
+ * all accessors use absolute offsets, position and limit of the buffer
+ * are never touched, so filled buffer (published via queue) could be read
+ * by several threads at once and slots could be written independently
  */
 public class PacketBuffer {
 
@@ -37,6 +50,14 @@ public class PacketBuffer {
      */
     public static final int SLOT_DATA_SHIFT             = SLOT_HEADER_LENGTH + PACKET_IPV6_HDR_LENGTH;
 
+    /**
+     * kernel receive timestamp, ns since epoch or 0,
+     * populated by bound batches, ip header reserve
+     * is never filled on receive by raw ipv6 sockets
+     */
+    public static final int SLOT_TIMESTAMP_SHIFT        = SLOT_HEADER_LENGTH;
+    public static final int SLOT_TIMESTAMP_LENGTH       = 8;
+
     /**
      * xnetp specific packets
      */
@@ -44,6 +65,31 @@ public class PacketBuffer {
     public static final int SLOT_XNETP_EXT_HDR_SHIFT     = SLOT_DATA_SHIFT;
     public static final int SLOT_XNETP_DATA_SHIFT        = SLOT_XNETP_EXT_HDR_SHIFT + PACKET_XNETP_EXT_HDR_LENGTH;
 
+    /**
+     * packet type shift inside packet data (ext header)
+     */
+    public static final int PACKET_XNETP_TYPE_SHIFT     = PACKET_XNETP_EXT_HDR_LENGTH - 12;
+
+    /**
+     * packed layout, records' offsets in the index
+     * and alignment of records
+     */
+    public static final int PACKED_INDEX_ENTRY_LENGTH   = 4;
+    public static final int PACKED_RECORD_ALIGNMENT     = 8;
+    public static final int PACKED_DATA_SHIFT           = SLOT_HEADER_LENGTH + SLOT_TIMESTAMP_LENGTH;
+
+    /**
+     * sane limit of all buffers allocated by one process,
+     * validated upfront to not fail late on direct memory
+     */
+    public static final long POOL_BYTES_MAX = 16L << 30;
+
+    /**
+     * templates of UNI (FC:: prefix) and payload
+     */
+    private static final byte[] UNI_TEMPLATE = new byte[] {(byte)0xFC, 0, 0, 0,   0, 0, 0, 0,   0, 0, 0, 0,   0, 0, 0, 0};
+    private static final byte[] PAYLOAD_TEMPLATE = new byte[] {(byte)'d', (byte)'a', (byte)'t', (byte)'a', (byte)':'};
+
 
 
     /**
@@ -52,10 +98,20 @@ public class PacketBuffer {
      */
     public final int slots;
     /**
-     * size of each slot in bytes
+     * size of each slot in bytes, 0 for packed layout
      */
     public final int slotSize;
 
+    /**
+     * true if packets are packed back-to-back with index
+     */
+    public final boolean packed;
+
+    /**
+     * shift to data (xnetp ext header) from the base of a slot or record
+     */
+    private final int dataShift;
+
     /**
      *  number of packets in this buffer,
      *  it's always in 0...slots,
@@ -68,13 +124,21 @@ public class PacketBuffer {
      */
     public ByteBuffer buffer;
 
+    /**
+     * native headers bound to the buffer and a socket,
+     * optional, set by the owner of the socket
+     */
+    public RawSocket.MmsgBatch6 batch;
+
     /**
      * allowed constructor
      */
-    protected PacketBuffer(ByteBuffer _buffer, int _slots, int _slotSize) {
+    protected PacketBuffer(ByteBuffer _buffer, int _slots, int _slotSize, boolean _packed) {
         buffer = _buffer;
         slots = _slots;
         slotSize = _slotSize;
+        packed = _packed;
+        dataShift = _packed ? PACKED_DATA_SHIFT : SLOT_DATA_SHIFT;
     }
 
     /**
@@ -85,7 +149,67 @@ public class PacketBuffer {
      */
     public static PacketBuffer allocate(int _slots, int _slotSize) {
         ByteBuffer buffer = ByteBuffer.allocateDirect(_slots * _slotSize).order(ByteOrder.nativeOrder());
-        return new PacketBuffer(buffer, _slots, _slotSize);
+        return new PacketBuffer(buffer, _slots, _slotSize, false);
+    }
+
+    /**
+     * factory method to create buffers over already allocated memory,
+     * like slices of pooled regions
+     * @param _buffer direct buffer (native byte order) of _slots*_slotSize bytes at least
+     * @param _slots number of slots
+     * @param _slotSize each slot size
+     * @return buffer with fixed layout
+     */
+    public static PacketBuffer wrap(ByteBuffer _buffer, int _slots, int _slotSize) {
+        return new PacketBuffer(_buffer, _slots, _slotSize, false);
+    }
+
+    /**
+     * factory method to create buffers with packed layout over already allocated memory
+     * @param _buffer direct buffer (native byte order) with space for index and records
+     * @param _slots max number of packets
+     * @return buffer with packed layout
+     */
+    public static PacketBuffer wrapPacked(ByteBuffer _buffer, int _slots) {
+        return new PacketBuffer(_buffer, _slots, 0, true);
+    }
+
+    /**
+     * @param _slots max number of packets
+     * @param _capacity number of bytes for records
+     * @return number of bytes necessary for buffer with packed layout
+     */
+    public static int packedLength(int _slots, int _capacity) {
+        return packedRecordLength(_slots * PACKED_INDEX_ENTRY_LENGTH) + _capacity;
+    }
+
+    /**
+     * factory method to create buffers with packed layout,
+     * could be populated only by receiving via packed mmsg batch
+     * @param _slots max number of packets
+     * @param _capacity number of bytes for records, must fit at least one max sized record
+     * @return initialized buffer (native byte order) with index and records' space
+     */
+    public static PacketBuffer allocatePacked(int _slots, int _capacity) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(packedLength(_slots, _capacity))
+                .order(ByteOrder.nativeOrder());
+        return new PacketBuffer(buffer, _slots, 0, true);
+    }
+
+    /**
+     * @param length number of bytes
+     * @return length aligned to records' alignment
+     */
+    public static int packedRecordLength(int length) {
+        return (length + PACKED_RECORD_ALIGNMENT - 1) & -PACKED_RECORD_ALIGNMENT;
+    }
+
+    /**
+     * @param slot slot index
+     * @return offset of slot's header in fixed layout or record's header in packed one
+     */
+    public int base(int slot) {
+        return packed ? buffer.getInt(slot * PACKED_INDEX_ENTRY_LENGTH) : slot * slotSize;
     }
 
     /**
@@ -94,7 +218,7 @@ public class PacketBuffer {
      * @param address destination network address
      */
     public void populateSlotAddress(int slot, byte[] address) {
-        buffer.position(slot * slotSize + SLOT_HEADER_ADDR_SHIFT).put(address);
+        put(buffer, base(slot) + SLOT_HEADER_ADDR_SHIFT, address, 0, address.length);
     }
 
     /**
@@ -114,9 +238,33 @@ public class PacketBuffer {
             int uniAddresses,
             boolean packetCorrect)
     {
-        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int base = base(slot);
 
-        int base = slot * slotSize;
+        int length = populatePacketData(buffer, base + dataShift,
+                pType, uniVolumes, uniSegments, uniAddresses, packetCorrect);
+
+        // specify packet length to send
+        buffer.putInt(base + SLOT_HEADER_DATALEN_SHIFT, length);
+    }
+
+    /**
+     * populates specific packet data into any buffer with xnetp packet,
+     * used to generate packets directly in places other than slots (like tx ring frames)
+     * @see PacketBuffer#populatePacketData(int, PacketType, int, int, int, boolean) for parameters
+     * @param b buffer to populate
+     * @param extHdr offset of xnetp external header in the buffer
+     * @return length of the packet (ip payload) to be sent
+     */
+    public static int populatePacketData(
+            ByteBuffer b,
+            int extHdr,
+            PacketType pType,
+            int uniVolumes,
+            int uniSegments,
+            int uniAddresses,
+            boolean packetCorrect)
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
 
         // extract correct values to forge id packet is incorrect
         int pTypeLength = pType.length;
@@ -132,26 +280,24 @@ public class PacketBuffer {
                 pTypeLength = PacketType.MINIMAL.length;
             }
         }
-        
-        // specify packet length to send
-        buffer.putInt(base + SLOT_HEADER_DATALEN_SHIFT, pTypeLength);
 
-        // position before last 4 bytes of UIN
-        buffer.position(base + SLOT_XNETP_EXT_HDR_SHIFT + 16);
+        // last 4 bytes of UNI
 
         // volume index [0..FF]
-        buffer.put((uniVolumes == 1) ? (byte)0 : (byte)random.nextInt(uniVolumes));
+        b.put(extHdr + 16, (uniVolumes == 1) ? (byte)0 : (byte)random.nextInt(uniVolumes));
 
         // segment index [0..FF]
-        buffer.put((uniSegments == 1) ? (byte)0 : (byte)random.nextInt(uniSegments));
+        b.put(extHdr + 17, (uniSegments == 1) ? (byte)0 : (byte)random.nextInt(uniSegments));
 
         // address inside segment [1..0xFFFF]
         int address = random.nextInt(uniAddresses) + 1;
-        buffer.put((byte)(address >>  8));
-        buffer.put((byte)(address));
+        b.put(extHdr + 18, (byte)(address >>  8));
+        b.put(extHdr + 19, (byte)(address));
 
         // next is packet type
-        buffer.put(pTypeCode);
+        b.put(extHdr + 20, pTypeCode);
+
+        return pTypeLength;
     }
 
     /**
@@ -176,22 +322,30 @@ public class PacketBuffer {
      * @param slot slot index to populate
      */
     public void populatePacketExtHeaderTemplate(int slot) {
+        populatePacketExtHeaderTemplate(buffer, base(slot) + dataShift);
+    }
 
-        buffer.position(slot*slotSize + SLOT_XNETP_EXT_HDR_SHIFT);
+    /**
+     * populates fixed values in packet's external header at any place of a buffer
+     * @see PacketBuffer#populatePacketExtHeaderTemplate(int) for the structure
+     * @param b buffer to populate
+     * @param extHdr offset of the header in the buffer
+     */
+    public static void populatePacketExtHeaderTemplate(ByteBuffer b, int extHdr) {
 
-        buffer.put((byte)0xFF);             // no next header
-        buffer.put((byte)0x20);             // always 256 bits / 32 bytes
+        b.put(extHdr,      (byte)0xFF);     // no next header
+        b.put(extHdr + 1,  (byte)0x20);     // always 256 bits / 32 bytes
 
-        buffer.put((byte)0x00);             // just zero
-        buffer.put((byte)0x00);             // just zero
+        b.put(extHdr + 2,  (byte)0x00);     // just zero
+        b.put(extHdr + 3,  (byte)0x00);     // just zero
 
-        buffer.put(new byte[] {(byte)0xFC, 0, 0, 0,   0, 0, 0, 0,   0, 0, 0, 0,   0, 0, 0, 0});
+        put(b, extHdr + 4, UNI_TEMPLATE, 0, UNI_TEMPLATE.length);
 
-        buffer.put((byte)0x00);             // here will later go packet type
-        buffer.put((byte)0x88);             // just value
+        b.put(extHdr + 20, (byte)0x00);     // here will later go packet type
+        b.put(extHdr + 21, (byte)0x88);     // just value
 
-        buffer.put((byte)0x12);             // just another
-        buffer.put((byte)0x34);             // magic number
+        b.put(extHdr + 22, (byte)0x12);     // just another
+        b.put(extHdr + 23, (byte)0x34);     // magic number
     }
 
 
@@ -200,7 +354,7 @@ public class PacketBuffer {
      * @param slot slot index
      */
     public byte getPacketTypeAsByte(int slot) {
-        return buffer.get(slot * slotSize + SLOT_XNETP_DATA_SHIFT - 12);
+        return buffer.get(base(slot) + dataShift + PACKET_XNETP_TYPE_SHIFT);
     }
 
     /**
@@ -218,7 +372,7 @@ public class PacketBuffer {
      * @param pType packet type
      */
     public void setPacketType(int slot, byte pType) {
-        buffer.put(slot * slotSize + SLOT_XNETP_DATA_SHIFT - 12, pType);
+        buffer.put(base(slot) + dataShift + PACKET_XNETP_TYPE_SHIFT, pType);
     }
 
     /**
@@ -228,37 +382,166 @@ public class PacketBuffer {
      * @param length length of data to be sent
      */
     public void setPacketLength(int slot, int length) {
-        buffer.putInt(slot * slotSize + SLOT_HEADER_DATALEN_SHIFT, length);
+        buffer.putInt(base(slot) + SLOT_HEADER_DATALEN_SHIFT, length);
+    }
+
+    /**
+     * @param slot slot index
+     * @return kernel receive time in ns since epoch, 0 if timestamps are not enabled
+     */
+    public long getTimestamp(int slot) {
+        return buffer.getLong(base(slot) + SLOT_TIMESTAMP_SHIFT);
+    }
+
+    /**
+     * keeps receive time of the request in reply slots,
+     * the field is not sent
+     * @param slot slot index
+     * @param timestamp time in ns since epoch, 0 if unknown
+     */
+    public void setTimestamp(int slot, long timestamp) {
+        buffer.putLong(base(slot) + SLOT_TIMESTAMP_SHIFT, timestamp);
     }
 
     /**
+     * allocates array for each call, use primitive keys on hot paths
      * @param slot slot index
      * @return copy of uni stored in ext header
      */
     public byte[] getUNI(int slot) {
         byte[] uni = new byte[16];
-        buffer.position(slot * slotSize + SLOT_XNETP_EXT_HDR_SHIFT + 4);
-        buffer.get(uni);
+        int offset = base(slot) + dataShift + 4;
+        for (int i = 0; i < uni.length; i++) {
+            uni[i] = buffer.get(offset + i);
+        }
         return uni;
     }
 
+    /**
+     * @param slot slot index
+     * @return first 8 bytes of uni as big endian long
+     */
+    public long getUNIHigh(int slot) {
+        return getLongBE(base(slot) + dataShift + 4);
+    }
+
+    /**
+     * @param slot slot index
+     * @return last 8 bytes of uni as big endian long
+     */
+    public long getUNILow(int slot) {
+        return getLongBE(base(slot) + dataShift + 4 + 8);
+    }
+
+    /**
+     * UNI has FC::VV:SS:AAAA form, so the last 4 bytes
+     * are enough to identify node inside the scheme
+     * @param slot slot index
+     * @return VV:SS:AAAA packed into int (VV in the highest byte)
+     */
+    public int getUNIKey(int slot) {
+        int key = buffer.getInt(base(slot) + dataShift + 4 + 12);
+        return (buffer.order() == ByteOrder.BIG_ENDIAN) ? key : Integer.reverseBytes(key);
+    }
+
+    /**
+     * @param offset offset in buffer
+     * @return long at the offset in network (big endian) order
+     */
+    private long getLongBE(int offset) {
+        long value = buffer.getLong(offset);
+        return (buffer.order() == ByteOrder.BIG_ENDIAN) ? value : Long.reverseBytes(value);
+    }
+
+    /**
+     * UNI has FC::VV:SS:AAAA form, so only the last 4 bytes
+     * are mixed to select shard, key is mixed completely (murmur3 fmix32)
+     * as usually only low bytes (SS:AAAA) vary, and then mapped
+     * to shards by high bits of the hash (multiply-shift)
+     * @param slot slot index
+     * @param shards number of shards
+     * @return shard index of packet's node, [0..shards)
+     */
+    public int uniShard(int slot, int shards) {
+        int h = getUNIKey(slot);
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return (int) (((h & 0xFFFFFFFFL) * shards) >>> 32);
+    }
+
+    /**
+     * copies packet (slot header, timestamp and data) into a slot of another buffer,
+     * target buffer must have fixed layout
+     * @param slot slot index in this buffer
+     * @param to target buffer
+     * @param toSlot slot index in target buffer
+     */
+    public void copySlot(int slot, PacketBuffer to, int toSlot) {
+        assert !to.packed : "packets could be copied only to fixed layout";
+
+        int from = base(slot);
+        int base = to.base(toSlot);
+        int length = buffer.getInt(from + SLOT_HEADER_DATALEN_SHIFT);
+
+        copy(buffer, from, to.buffer, base, SLOT_HEADER_LENGTH + SLOT_TIMESTAMP_LENGTH);
+        copy(buffer, from + dataShift, to.buffer, base + to.dataShift, length);
+    }
+
+    /**
+     * copies bytes between buffers without touching positions,
+     * uses 8 byte words as packets are small
+     */
+    private static void copy(ByteBuffer from, int fromOffset, ByteBuffer to, int toOffset, int length) {
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            to.putLong(toOffset + i, from.getLong(fromOffset + i));
+        }
+        for (; i < length; i++) {
+            to.put(toOffset + i, from.get(fromOffset + i));
+        }
+    }
+
     /**
      * populates some payload to packet data section
      * @param slot slot index to populate in
      * @param length number of payload bytes to populate (after ext header)
      */
     public void populatePacketPayloadTemplate(int slot, int length) {
-        byte[] data = new byte[] {(byte)'d', (byte)'a', (byte)'t', (byte)'a', (byte)':'};
-
+        assert !packed : "payload templates are for fixed layout only";
         // make sure length is safe
         length = Math.min(length, slotSize - SLOT_XNETP_DATA_SHIFT);
-        buffer.position(slot * slotSize + SLOT_XNETP_DATA_SHIFT);
+        populatePacketPayloadTemplate(buffer, slot * slotSize + SLOT_XNETP_DATA_SHIFT, length);
+    }
 
-        int repeat = length / data.length;
+    /**
+     * populates some payload at any place of a buffer
+     * @param b buffer to populate
+     * @param offset offset of payload in the buffer
+     * @param length number of payload bytes to populate
+     */
+    public static void populatePacketPayloadTemplate(ByteBuffer b, int offset, int length) {
+        int repeat = length / PAYLOAD_TEMPLATE.length;
         for (int i = 0; i < repeat; i++) {
-            buffer.put(data);
+            put(b, offset + i * PAYLOAD_TEMPLATE.length, PAYLOAD_TEMPLATE, 0, PAYLOAD_TEMPLATE.length);
+        }
+        put(b, offset + repeat * PAYLOAD_TEMPLATE.length, PAYLOAD_TEMPLATE, 0, length % PAYLOAD_TEMPLATE.length);
+    }
+
+    /**
+     * copies bytes into buffer without touching its position
+     * @param b buffer to copy to
+     * @param offset offset in the buffer
+     * @param src source bytes
+     * @param from first byte in source to copy
+     * @param length number of bytes to copy
+     */
+    private static void put(ByteBuffer b, int offset, byte[] src, int from, int length) {
+        for (int i = 0; i < length; i++) {
+            b.put(offset + i, src[from + i]);
         }
-        buffer.put(data, 0, length % data.length);
     }
 
     /**
@@ -268,8 +551,7 @@ public class PacketBuffer {
      * @return true if packet is valid and false otherwise
      */
     public boolean validate(int slot) {
-        int base = slot * slotSize;
-        int size = buffer.getInt(base + SLOT_HEADER_DATALEN_SHIFT);
+        int size = buffer.getInt(base(slot) + SLOT_HEADER_DATALEN_SHIFT);
 
         byte _type = getPacketTypeAsByte(slot);
         PacketType type = PacketType.byType(_type);
@@ -352,7 +634,7 @@ public class PacketBuffer {
      */
     public void dumpHeader(int slot) {
         Formatter formatter = new Formatter();
-        int base = slot * slotSize;
+        int base = base(slot);
         int len = buffer.getInt(base + SLOT_HEADER_DATALEN_SHIFT);
 
         // slot header
@@ -366,7 +648,7 @@ public class PacketBuffer {
         formatter.format("\u001B[32m  | [IP HDR] |  \u001B[37m");
 
         // ext header
-        base += SLOT_DATA_SHIFT;
+        base += dataShift;
         dump(formatter, buffer, base, 4);
         formatter.format(" ");
         dump(formatter, buffer, base + 4, 16);
@@ -1,14 +1,21 @@
 package xnetp.poc.net;
 
 import xnetp.poc.affinity.Affinity;
+import xnetp.poc.affinity.Memory;
 import xnetp.poc.disk.DiskThreadTLogBufferHandler;
 import xnetp.poc.disk.IStateStore;
 import xnetp.poc.disk.StateStoreFactory;
 import xnetp.poc.disk.StateStoreParameters;
 import xnetp.poc.sockets.RawSocket;
+import xnetp.poc.sockets.SocketFilter;
+import org.jctools.queues.atomic.MpscAtomicArrayQueue;
+import org.jctools.queues.atomic.SpmcAtomicArrayQueue;
 import org.jctools.queues.atomic.SpscAtomicArrayQueue;
 import picocli.CommandLine;
 
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.Queue;
 import java.util.concurrent.*;
 
 
@@ -26,9 +33,22 @@ public class PacketReceiver implements Callable<Integer> {
     public final static int BUF_PACKET_BYTES_MAX = 1024;
     /**
      * maximum number of packets that could be passed via system call
-     * and stores in buffer (as a result)
+     * and stores in buffer (as a result), buffers are allocated
+     * with the requested number of packets (mmsg)
      */
-    public final static int BUF_PACKETS_MAX = 1024;
+    public final static int BUF_PACKETS_MAX = RawSocket.MMSG_BATCH_MAX;
+
+    /**
+     * capacity of exported counters' file,
+     * enough for max number of handlers
+     */
+    private static final int COUNTERS_MAX = 4096;
+
+    /**
+     * period to publish latency percentiles into exported
+     * counters when console statistics are off
+     */
+    private static final long LATENCY_PUBLISH_PERIOD_MS = 1_000;
 
 
     /**
@@ -45,7 +65,18 @@ public class PacketReceiver implements Callable<Integer> {
      * number of receive buffers that are used to store
      * packet data and pass it for processing
      */
-    private static final int RECEIVE_BUFFERS    = 1024;
+    static final int RECEIVE_BUFFERS    = 1024;
+
+    /**
+     * number of receive buffers in inline sharding mode,
+     * receiver repacks and reuses them by itself
+     */
+    private static final int SHARDING_BUFFERS   = 2;
+
+    /**
+     * alignment of buffers inside pooled regions (cache line)
+     */
+    private static final int BUF_POOL_ALIGNMENT = 64;
 
 
     /**
@@ -84,34 +115,15 @@ public class PacketReceiver implements Callable<Integer> {
         rxParameters.validate(BUF_PACKETS_MAX);
         rxParameters.dump();
 
-        // receive socket
-        RawSocket.RawSocket6 socket = (RawSocket.RawSocket6) RawSocket.open(RawSocket.AF_INET6, XNETP_PROTOCOL_TYPE);
-
         /*
          * single thread mode has it's own strange path,
          * so we have separate method
          */
         if (rxParameters.singleThreadMode) {
-            singleThreadLogic(socket);
+            singleThreadLogic((RawSocket.RawSocket6) RawSocket.open(RawSocket.AF_INET6, XNETP_PROTOCOL_TYPE));
             return 0;
         }
 
-
-        // setup receive buffers and interchange queues
-        SpscAtomicArrayQueue<PacketBuffer>[] rxQueueFreeBuffers = new SpscAtomicArrayQueue[rxParameters.handlerThreadsNum];
-        SpscAtomicArrayQueue<PacketBuffer>[] rxQueueUsedBuffers = new SpscAtomicArrayQueue[rxParameters.handlerThreadsNum];
-
-        for (int i = 0; i < rxParameters.handlerThreadsNum; i++) {
-            rxQueueFreeBuffers[i] = new SpscAtomicArrayQueue<>(RECEIVE_BUFFERS);
-            rxQueueUsedBuffers[i] = new SpscAtomicArrayQueue<>(RECEIVE_BUFFERS);
-
-            for (int e = 0; e < RECEIVE_BUFFERS; e++) {
-                PacketBuffer buffer = PacketBuffer.allocate(BUF_PACKETS_MAX, BUF_PACKET_BYTES_MAX);
-                rxQueueFreeBuffers[i].offer(buffer);
-            }
-        }
-
-
         // initialize store for packets' storing
         StateStoreFactory ssFactory = null;
         if (0 < rxParameters.handlerPercentToStore) {
@@ -138,20 +150,236 @@ public class PacketReceiver implements Callable<Integer> {
             }
         }
 
-        // allocate threads
-        RxThreadPacketReceiver receiver = new RxThreadPacketReceiver(
-                rxParameters.receiverAffinity, rxParameters.mmsgs, rxQueueFreeBuffers, rxQueueUsedBuffers, socket);
-
+        // allocate threads, each receiver has own socket
+        // and feeds its own subset of handlers
+        RxThreadPacketReceiver[] receivers = new RxThreadPacketReceiver[rxParameters.receivers];
+        RxThreadPacketOffloader[] offloaders = new RxThreadPacketOffloader[rxParameters.receivers];
         RxThreadPacketHandler[] handlers = new RxThreadPacketHandler[rxParameters.handlerThreadsNum];
+        TxThreadReplySender sender = setupSender();
+        for (int r = 0; r < rxParameters.receivers; r++) {
+            receivers[r] = setupReceiver(r, ssFactory, sender, offloaders, handlers);
+        }
+
+        // counters must be moved to the file before threads start
+        if (rxParameters.countersFile != null) {
+            exportCounters(CountersFile.create(Paths.get(rxParameters.countersFile), COUNTERS_MAX),
+                    receivers, offloaders, handlers, sender);
+        }
+
+        // run the processing
+        if (sender != null) {
+            sender.start();
+        }
         for (int i = 0; i < rxParameters.handlerThreadsNum; i++) {
+            handlers[i].start();
+        }
+        for (int r = 0; r < rxParameters.receivers; r++) {
+            if (offloaders[r] != null) {
+                offloaders[r].start();
+            }
+            receivers[r].start();
+        }
+
+        // run metrics' cycle, threads never stop
+        if (0 < rxParameters.statisticsPeriodMs) {
+            collectMetrics(receivers, offloaders, handlers, sender);
+        } else if (rxParameters.countersFile != null) {
+            publishLatency(handlers, sender);
+        } else {
+            receivers[0].join();
+        }
+
+        return 0;
+    }
+
+    /**
+     * registers counters of all threads in the counters' file,
+     * labels are prefixed with thread role, index and cpu, like "h3@7."
+     * @param file counters' file
+     * @param receivers receiver threads
+     * @param offloaders offloaders of receivers, could contain nulls
+     * @param handlers handler threads
+     * @param sender reply sender, null if not used
+     */
+    private void exportCounters(CountersFile file, RxThreadPacketReceiver[] receivers,
+                                RxThreadPacketOffloader[] offloaders, RxThreadPacketHandler[] handlers,
+                                TxThreadReplySender sender)
+    {
+        for (int r = 0; r < receivers.length; r++) {
+            String prefix = "r" + r + "@" + receivers[r].affinity + ".";
+            file.registerAll(prefix, receivers[r]);
+            file.registerAll(prefix + "idle.", receivers[r].idle);
+            if (receivers[r].sharder != null) {
+                file.registerAll(prefix + "sharder.", receivers[r].sharder);
+            }
+            if (offloaders[r] != null) {
+                prefix = "o" + r + "@" + offloaders[r].affinity + ".";
+                file.registerAll(prefix, offloaders[r]);
+                file.registerAll(prefix + "idle.", offloaders[r].idle);
+                file.registerAll(prefix + "sharder.", offloaders[r].sharder);
+            }
+        }
+        for (int h = 0; h < handlers.length; h++) {
+            String prefix = "h" + h + "@" + handlers[h].affinity + ".";
+            file.registerAll(prefix, handlers[h]);
+            file.registerAll(prefix + "idle.", handlers[h].idle);
+        }
+        if (sender != null) {
+            String prefix = "s@" + sender.affinity + ".";
+            file.registerAll(prefix, sender);
+            file.registerAll(prefix + "idle.", sender.idle);
+        }
+    }
+
+    /**
+     * opens tx socket and allocates reply sender with lanes
+     * of reply buffers for all handlers if requested
+     * @return sender thread or null if handlers send replies themselves
+     */
+    private TxThreadReplySender setupSender() {
+        if (!rxParameters.replySender || (rxParameters.handlerPercentToReply <= 0)) {
+            return null;
+        }
+        RawSocket.RawSocket6 txSocket = (RawSocket.RawSocket6) RawSocket.open(RawSocket.AF_INET6, XNETP_PROTOCOL_TYPE);
+        txSocket.setReceivedBufferSize(0);
+
+        return new TxThreadReplySender(
+                rxParameters.senderAffinity,
+                rxParameters.handlerThreadsNum,
+                rxParameters.replyBuffers,
+                rxParameters.replyBatch,
+                rxParameters.replyAddress.getAddress(),
+                txSocket,
+                rxParameters.idleStrategy(rxParameters.idleHandler));
+    }
+
+    /**
+     * opens socket of the receiver, allocates its buffers, queues
+     * and handlers, receiver r feeds handlers [r*h/n .. (r+1)*h/n)
+     * @param r receiver index
+     * @param ssFactory store factory for handlers, null if store is off
+     * @param sender reply sender with lanes for all handlers, null if not used
+     * @param offloaders offloaders of receivers, populated with the receiver's one if requested
+     * @param handlers all handlers, populated with the receiver's subset
+     * @return receiver thread
+     */
+    private RxThreadPacketReceiver setupReceiver(
+            int r,
+            StateStoreFactory ssFactory,
+            TxThreadReplySender sender,
+            RxThreadPacketOffloader[] offloaders,
+            RxThreadPacketHandler[] handlers)
+    {
+        // receive socket, raw sockets get copies of all packets,
+        // so sockets of several receivers are filtered by shard
+        RawSocket.RawSocket6 socket = (RawSocket.RawSocket6) RawSocket.open(RawSocket.AF_INET6, XNETP_PROTOCOL_TYPE);
+        SocketFilter filter = kernelFilter();
+        if (1 < rxParameters.receivers) {
+            filter = (filter != null) ? filter : new SocketFilter(SocketFilter.Target.raw6);
+            filter.shard(rxParameters.receiversShardMode, rxParameters.receivers, r);
+        }
+        if (filter != null) {
+            if (socket.attachFilter(filter) == -1) {
+                int errno = socket.errno();
+                socket.close();
+                throw new RuntimeException("error attaching socket filter, errno: " + errno);
+            }
+        }
+        if (rxParameters.latency) {
+            if (socket.enableTimestamps() == -1) {
+                int errno = socket.errno();
+                socket.close();
+                throw new RuntimeException("error enabling receive timestamps, errno: " + errno);
+            }
+        }
+
+        // handlers of this receiver
+        int hFrom = r * rxParameters.handlerThreadsNum / rxParameters.receivers;
+        int hTo = (r + 1) * rxParameters.handlerThreadsNum / rxParameters.receivers;
+        int hCount = hTo - hFrom;
+        int rAffinity = rxParameters.receiverAffinity(r);
+
+        // packed mode: one native batch receives packets
+        // and packs them into small buffers
+        RawSocket.MmsgBatch6 packedBatch = null;
+        int packedCapacity = 0;
+        if (0 < rxParameters.packedBytes) {
+            int packetMax = BUF_PACKET_BYTES_MAX - PacketBuffer.SLOT_DATA_SHIFT;
+            packedBatch = socket.bindPacked(rxParameters.mmsgs, packetMax);
+            filter(packedBatch);
+            // must fit at least one packet of max size
+            packedCapacity = Math.max(
+                    rxParameters.mmsgs * rxParameters.packedBytes,
+                    PacketBuffer.packedRecordLength(PacketBuffer.PACKED_DATA_SHIFT + packetMax));
+        }
+
+        // setup receive buffers and interchange queues,
+        // receiver feeds handlers directly, the only offloader
+        // or keeps buffers for itself with inline sharding
+        boolean uniSharding = rxParameters.sharding == PacketReceiverParameters.Sharding.uni;
+        boolean inlineSharding = uniSharding && !rxParameters.offloader;
+        boolean stealing = rxParameters.exchange == PacketReceiverParameters.Exchange.stealing;
+        int lanes = uniSharding ? 1 : hCount;
+        int rxBuffers = inlineSharding ? SHARDING_BUFFERS : RECEIVE_BUFFERS;
+        Queue<PacketBuffer>[] rxQueueFreeBuffers = new Queue[lanes];
+        Queue<PacketBuffer>[] rxQueueUsedBuffers = new Queue[lanes];
+        if (stealing) {
+            // work stealing: the only shared pool of free buffers
+            // and lanes could be consumed by any handler
+            rxQueueFreeBuffers = new Queue[] {new MpscAtomicArrayQueue<PacketBuffer>(lanes * rxBuffers)};
+            for (int i = 0; i < lanes; i++) {
+                rxQueueUsedBuffers[i] = new SpmcAtomicArrayQueue<>(rxBuffers);
+                // pool is spread between nodes of handlers
+                populateBuffers(rxQueueFreeBuffers[0], rxBuffers, handlerAffinity(hFrom + i), socket, packedBatch, packedCapacity);
+            }
+        } else {
+            for (int i = 0; i < lanes; i++) {
+                rxQueueFreeBuffers[i] = new SpscAtomicArrayQueue<>(rxBuffers);
+                rxQueueUsedBuffers[i] = new SpscAtomicArrayQueue<>(rxBuffers);
+
+                // buffers are on the node of the consumer
+                int tAffinity = rxParameters.offloader ? rxParameters.offloaderAffinity
+                        : inlineSharding ? rAffinity : handlerAffinity(hFrom + i);
+                populateBuffers(rxQueueFreeBuffers[i], rxBuffers, tAffinity, socket, packedBatch, packedCapacity);
+            }
+        }
+
+        // offloader or receiver itself repacks received buffers
+        // into handlers' own buffers
+        Queue<PacketBuffer>[] hQueueFreeBuffers = rxQueueFreeBuffers;
+        Queue<PacketBuffer>[] hQueueUsedBuffers = rxQueueUsedBuffers;
+        if (uniSharding) {
+            hQueueFreeBuffers = new Queue[hCount];
+            hQueueUsedBuffers = new Queue[hCount];
+            for (int i = 0; i < hCount; i++) {
+                hQueueFreeBuffers[i] = new SpscAtomicArrayQueue<>(RECEIVE_BUFFERS);
+                hQueueUsedBuffers[i] = new SpscAtomicArrayQueue<>(RECEIVE_BUFFERS);
+                populateBuffers(hQueueFreeBuffers[i], RECEIVE_BUFFERS, handlerAffinity(hFrom + i), null, null, 0);
+            }
+        }
+
+        PacketSharder sharder = null;
+        if (rxParameters.offloader) {
+            offloaders[r] = new RxThreadPacketOffloader(
+                    rxParameters.offloaderAffinity,
+                    rxQueueFreeBuffers[0], rxQueueUsedBuffers[0],
+                    hQueueFreeBuffers, hQueueUsedBuffers,
+                    rxParameters.idleStrategy(rxParameters.idleOffloader));
+        } else if (inlineSharding) {
+            sharder = new PacketSharder(hQueueFreeBuffers, hQueueUsedBuffers);
+        }
+
+        // handlers of this receiver only
+        for (int i = 0; i < hCount; i++) {
             // get affinity for thread
-            int tAffinity = (i < rxParameters.handlersAffinity.length) ? rxParameters.handlersAffinity[i] : 0;
+            int tAffinity = handlerAffinity(hFrom + i);
             // get store instance for thread
             IStateStore store = (ssFactory != null) ? ssFactory.getStateStore() : null;
 
-            // allocate separate tx socket and switch of it's rx buffer
+            // allocate separate tx socket and switch of it's rx buffer,
+            // the only socket of sender is used otherwise
             RawSocket.RawSocket6 txSocket = null;
-            if (0 < rxParameters.handlerPercentToReply) {
+            if ((sender == null) && (0 < rxParameters.handlerPercentToReply)) {
                 // we don't initialize tx socket if replies are not necessary,
                 // just one opened socket leads to "100k+" pps drop and increased cpu load
                 txSocket = (RawSocket.RawSocket6) RawSocket.open(RawSocket.AF_INET6, XNETP_PROTOCOL_TYPE);
@@ -159,41 +387,137 @@ public class PacketReceiver implements Callable<Integer> {
             }
 
 
-            handlers[i] = new RxThreadPacketHandler(
+            handlers[hFrom + i] = new RxThreadPacketHandler(
                     tAffinity,
-                    rxQueueFreeBuffers[i], rxQueueUsedBuffers[i],
+                    hQueueFreeBuffers[stealing ? 0 : i], hQueueUsedBuffers[i],
+                    stealing ? hQueueUsedBuffers : null,
                     rxParameters.handlerPercentToStore,
                     rxParameters.handlerPercentToReply,
                     rxParameters.handlerWorkloadIterations,
+                    rxParameters.mmsgs,
                     rxParameters.replyAddress.getAddress(),
-                    txSocket, store);
+                    txSocket,
+                    (sender != null) ? sender.queuesFreeReplies[hFrom + i] : null,
+                    (sender != null) ? sender.queuesUsedReplies[hFrom + i] : null,
+                    rxParameters.replyFlushUs * 1_000,
+                    store,
+                    rxParameters.idleStrategy(rxParameters.idleHandler));
         }
 
-        // run the processing
-        for (int i = 0; i < rxParameters.handlerThreadsNum; i++) {
-            handlers[i].start();
+        return new RxThreadPacketReceiver(
+                rAffinity, rxParameters.mmsgs, rxQueueFreeBuffers, rxQueueUsedBuffers, socket, packedBatch, sharder,
+                rxParameters.idleStrategy(rxParameters.idleReceiver));
+    }
+
+    /**
+     * @param i handler index
+     * @return affinity of the handler, 0 if not specified
+     */
+    private int handlerAffinity(int i) {
+        return (i < rxParameters.handlersAffinity.length) ? rxParameters.handlersAffinity[i] : 0;
+    }
+
+    /**
+     * allocates buffers and puts them into the queue,
+     * buffers are placed on huge pages and numa node of the cpu if requested
+     * @param queue queue of free buffers to populate
+     * @param count number of buffers to allocate
+     * @param cpu cpu of the buffers' consumer
+     * @param socket socket to bind buffers to, null for unbound fixed buffers
+     * @param packedBatch packed batch if buffers must have packed layout, null otherwise
+     * @param packedCapacity records' capacity of packed buffers
+     */
+    private void populateBuffers(
+            Queue<PacketBuffer> queue,
+            int count,
+            int cpu,
+            RawSocket.RawSocket6 socket,
+            RawSocket.MmsgBatch6 packedBatch,
+            int packedCapacity)
+    {
+        // size of each buffer in pooled mode
+        int bufferLength = (packedBatch != null)
+                ? PacketBuffer.packedLength(rxParameters.mmsgs, packedCapacity)
+                : rxParameters.mmsgs * BUF_PACKET_BYTES_MAX;
+        boolean pooled = rxParameters.buffersHugePages || rxParameters.buffersNuma;
+
+        // one region per consumer, touched from the consumer's cpu
+        // to be on the same numa node
+        ByteBuffer[] pool = null;
+        if (pooled) {
+            int tAffinity = rxParameters.buffersNuma ? cpu : 0;
+            long stride = (bufferLength + BUF_POOL_ALIGNMENT - 1) & -BUF_POOL_ALIGNMENT;
+            ByteBuffer region = Memory.allocate(stride * count, rxParameters.buffersHugePages, tAffinity);
+            pool = Memory.slice(region, count, bufferLength, BUF_POOL_ALIGNMENT);
         }
-        receiver.start();
 
-        // run metrics' cycle
-        collectMetrics(receiver, handlers);
+        for (int e = 0; e < count; e++) {
+            PacketBuffer buffer;
+            if (packedBatch != null) {
+                buffer = pooled
+                        ? PacketBuffer.wrapPacked(pool[e], rxParameters.mmsgs)
+                        : PacketBuffer.allocatePacked(rxParameters.mmsgs, packedCapacity);
+            } else {
+                buffer = pooled
+                        ? PacketBuffer.wrap(pool[e], rxParameters.mmsgs, BUF_PACKET_BYTES_MAX)
+                        : PacketBuffer.allocate(rxParameters.mmsgs, BUF_PACKET_BYTES_MAX);
+                if (socket != null) {
+                    // buffers are received by the one socket only
+                    buffer.batch = socket.bind(buffer.buffer, rxParameters.mmsgs, BUF_PACKET_BYTES_MAX);
+                    filter(buffer.batch);
+                }
+            }
+            queue.offer(buffer);
+        }
+    }
 
-        return 0;
+    /**
+     * builds kernel filter of valid packets and UNI prefixes if requested,
+     * shard condition is added by caller as socket has only one filter
+     * @return filter or null if kernel filtering is off
+     */
+    private SocketFilter kernelFilter() {
+        if (!rxParameters.filterKernel && (rxParameters.filterUni.length == 0)) {
+            return null;
+        }
+        SocketFilter filter = new SocketFilter(SocketFilter.Target.raw6);
+        if (rxParameters.filterKernel) {
+            PacketType.filterKernel(filter);
+        }
+        return PacketReceiverParameters.filterUni(filter, rxParameters.filterUni);
+    }
+
+    /**
+     * sets native filter of invalid packets on receive batch if requested
+     * @param batch receive batch
+     */
+    private void filter(RawSocket.MmsgBatch6 batch) {
+        if (rxParameters.filterNative) {
+            if (batch.filter(PacketBuffer.PACKET_XNETP_TYPE_SHIFT, PacketType.filterLengths()) == -1) {
+                throw new RuntimeException("error setting receive filter");
+            }
+        }
     }
 
     /**
      * collects metrics from threads and renders them to console
-     * @param receiver receiver thread
+     * @param receivers receiver threads
+     * @param offloaders offloader threads of receivers, null if not used
      * @param handlers handler threads
+     * @param sender reply sender, null if not used
      * @throws InterruptedException if any
      */
-    private void collectMetrics(RxThreadPacketReceiver receiver, RxThreadPacketHandler[] handlers)
+    private void collectMetrics(RxThreadPacketReceiver[] receivers, RxThreadPacketOffloader[] offloaders,
+                                RxThreadPacketHandler[] handlers, TxThreadReplySender sender)
             throws InterruptedException
     {
         // period in nanoseconds
         final long msPeriod = rxParameters.statisticsPeriodMs;
         final long period = msPeriod * 1_000_000L;
 
+        // interval counts of latency histograms, reused
+        long[] latencyCounts = new long[LatencyHistogram.BUCKETS];
+
         // collect and print statistics
         long tStart = System.nanoTime();
         while (true) {
@@ -202,14 +526,6 @@ public class PacketReceiver implements Callable<Integer> {
                 // scale factor for per sec outouts
                 double factor = 1E9 / (tNow - tStart);
 
-                long rxIterations       = receiver.rxIterationCounter.getAndSet(0);
-                long rxPackets          = receiver.rxPacketCounter.getAndSet(0);
-                long rxErrors           = receiver.rxErrors.getAndSet(0);
-                int  rxErrno            = receiver.rxErrno.getAndSet(0);
-                long rxNoFreeBuffers    = receiver.rxNoFreeBuffers.getAndSet(0);
-                long rxNoFreeBuffersLong   = receiver.rxNoFreeBuffersLong.getAndSet(0);
-                long rxUsedBuffersOverflow = receiver.rxUsedBuffersOverflow.getAndSet(0);
-
 /*
 ---- [iteration: 5000 ms] ----------------------------------------------------------------------------------------------------------------------------------------
      [receive]                  packets/s            iterations        no free buffers   used buffers o/flow     errors       errno
@@ -230,38 +546,147 @@ public class PacketReceiver implements Callable<Integer> {
                 System.out.print(msPeriod);
                 System.out.println(" ms] ----------------------------------------------------------------------------------------------------------------------------------------");
 
-                // print receiver statistics
-                System.out.println("     [receive]                  packets/s            iterations         no free buffers        nfbL  used buffers o/flow     errors       errno");
-                System.out.println(String.format("                               %10d            %10d              %10d  %10d           %10d   %8d      %6d\n",
-                        (int)(factor * rxPackets), rxIterations, rxNoFreeBuffers, rxNoFreeBuffersLong, rxUsedBuffersOverflow, rxErrors, rxErrno));
+                // print receivers' statistics
+                System.out.println("     [receive]    cpu           packets/s            iterations         no free buffers        nfbL  used buffers o/flow     errors       errno    rejected/s");
+                long totalPackets = 0;
+                for (RxThreadPacketReceiver receiver : receivers) {
+                    long rxIterations       = receiver.rxIterationCounter.delta();
+                    long rxPackets          = receiver.rxPacketCounter.delta();
+                    long rxErrors           = receiver.rxErrors.delta();
+                    int  rxErrno            = receiver.rxErrno.getAndSet(0);
+                    long rxNoFreeBuffers    = receiver.rxNoFreeBuffers.delta();
+                    long rxNoFreeBuffersLong   = receiver.rxNoFreeBuffersLong.delta();
+                    long rxUsedBuffersOverflow = receiver.rxUsedBuffersOverflow.delta();
+                    long rxRejected         = receiver.rxRejected.delta();
+                    totalPackets += rxPackets;
+
+                    System.out.println(String.format("                %4d          %10d            %10d              %10d  %10d           %10d   %8d      %6d    %10d",
+                            receiver.affinity, (int)(factor * rxPackets), rxIterations, rxNoFreeBuffers,
+                            rxNoFreeBuffersLong, rxUsedBuffersOverflow, rxErrors, rxErrno, (int)(factor * rxRejected)));
+                }
+                if (1 < receivers.length) {
+                    System.out.println(String.format("     total                %10d", (int)(factor * totalPackets)));
+                }
+                System.out.println();
+
+                // print offloader statistics
+                for (RxThreadPacketOffloader offloader : offloaders) {
+                    if (offloader == null) {
+                        continue;
+                    }
+                    long oIterations        = offloader.rxIterationCounter.delta();
+                    long oPackets           = offloader.rxPacketCounter.delta();
+                    long oNoUsedBuffers     = offloader.rxNoUsedBuffers.delta();
+                    System.out.println("     [offload]    cpu           packets/s            iterations       no rx buffers");
+                    System.out.println(String.format("                %4d          %10d            %10d          %10d\n",
+                            offloader.affinity, (int)(factor * oPackets), oIterations, oNoUsedBuffers));
+                }
+
+                // print sharding statistics, skew is max/avg of packets per shard
+                for (int r = 0; r < receivers.length; r++) {
+                    PacketSharder sharder = (offloaders[r] != null) ? offloaders[r].sharder : receivers[r].sharder;
+                    if (sharder == null) {
+                        continue;
+                    }
+                    long sBuffers           = sharder.txBufferCounter.delta();
+                    long sNoFreeBuffers     = sharder.txNoFreeBuffers.delta();
+                    long sUsedBuffersOverflow = sharder.txUsedBuffersOverflow.delta();
+                    long[] sPackets = new long[sharder.shardPackets.length];
+                    for (int i = 0; i < sPackets.length; i++) {
+                        sPackets[i] = sharder.shardPackets[i].delta();
+                    }
+                    System.out.println("     [shards]        skew          tx buffers/s      no tx buffers   tx o/flow   |   packets/s per shard");
+                    StringBuilder line = new StringBuilder(String.format("                   %6.3f            %10d         %10d  %10d   |",
+                            PacketSharder.skew(sPackets), (int)(factor * sBuffers), sNoFreeBuffers, sUsedBuffersOverflow));
+                    for (long p : sPackets) {
+                        line.append(String.format(" %10d", (int)(factor * p)));
+                    }
+                    System.out.println(line.append('\n'));
+                }
+
 
+                // print idle time of threads, percent of the period
+                System.out.println("     [idle]       cpu      spin %     yield %      park %     episodes");
+                for (RxThreadPacketReceiver receiver : receivers) {
+                    printIdle("r", receiver.affinity, receiver.idle, tNow - tStart);
+                }
+                for (RxThreadPacketOffloader offloader : offloaders) {
+                    if (offloader != null) {
+                        printIdle("o", offloader.affinity, offloader.idle, tNow - tStart);
+                    }
+                }
+                for (RxThreadPacketHandler handler : handlers) {
+                    printIdle("h", handler.affinity, handler.idle, tNow - tStart);
+                }
+                if (sender != null) {
+                    printIdle("s", sender.affinity, sender.idle, tNow - tStart);
+                }
+                System.out.println();
 
                 // print processing statistics
                 System.out.println("     [handlers:  per sec]                                         |   [per iteration]");
                 System.out.println("  ----------------------------------------------------------------|-----------------------------------------------------------------------------------------------");
-                System.out.println("    cpu    err pkts    w/loads     stores    replies  tx/errors   |    iters    perrors    w/loads     stores    replies   r/errors    errno      nub        fbo");
+                System.out.println("    cpu    err pkts    w/loads     stores    replies  tx/errors   |    iters    perrors    w/loads     stores    replies   r/errors    errno      nub        fbo     stolen");
                 for (int i = 0; i < rxParameters.handlerThreadsNum; i++) {
                     RxThreadPacketHandler handler = handlers[i];
-                    long hIterations         = handler.rxIterationCounter.getAndSet(0);
-                    long hNoUsedBuffers      = handler.rxNoUsedBuffers.getAndSet(0);
-                    long hFreeBuffersOverflow = handler.rxFreeBuffersOverflow.getAndSet(0);
-                    long hPacketErrors       = handler.rxPacketErrors.getAndSet(0);
-                    long hPacketReplies      = handler.rxPacketReplies.getAndSet(0);
-                    long hPacketStores       = handler.rxPacketStores.getAndSet(0);
-                    long hPacketWorkload     = handler.rxPacketWorkload.getAndSet(0);
-                    long hErrors             = handler.txErrors.getAndSet(0);
+                    long hIterations         = handler.rxIterationCounter.delta();
+                    long hNoUsedBuffers      = handler.rxNoUsedBuffers.delta();
+                    long hFreeBuffersOverflow = handler.rxFreeBuffersOverflow.delta();
+                    long hPacketErrors       = handler.rxPacketErrors.delta();
+                    long hPacketReplies      = handler.rxPacketReplies.delta();
+                    long hPacketStores       = handler.rxPacketStores.delta();
+                    long hPacketWorkload     = handler.rxPacketWorkload.delta();
+                    long hErrors             = handler.txErrors.delta();
                     int  hErrno              = handler.txErrno.getAndSet(0);
+                    long hStolenBuffers      = handler.rxStolenBuffers.delta();
 
                     String line = String.format(
-                            "     %2d  %10d %10d %10d %10d %10d   |%9d %10d %10d %10d %10d %10d %8d %8d   %8d",
+                            "     %2d  %10d %10d %10d %10d %10d   |%9d %10d %10d %10d %10d %10d %8d %8d   %8d %10d",
                             handlers[i].affinity, (int)(factor*hPacketErrors), (int)(factor*hPacketWorkload),
                             (int)(factor*hPacketStores), (int)(factor*hPacketReplies), (int)(factor*hErrors),
                             hIterations, hPacketErrors, hPacketWorkload, hPacketStores, hPacketReplies, hErrors, hErrno,
-                            hNoUsedBuffers, hFreeBuffersOverflow);
+                            hNoUsedBuffers, hFreeBuffersOverflow, hStolenBuffers);
                     System.out.println(line);
                 }
                 System.out.println();
 
+                // print reply sender statistics, batches include replies
+                // accumulated across several received buffers
+                if (sender != null) {
+                    long sBatches           = sender.txBatches.delta();
+                    long sPackets           = sender.txPackets.delta();
+                    long sErrors            = sender.txErrors.delta();
+                    int  sErrno             = sender.txErrno.getAndSet(0);
+                    long sNoUsedBuffers     = sender.txNoUsedBuffers.delta();
+                    long sNoFreeReplies     = 0;
+                    for (RxThreadPacketHandler handler : handlers) {
+                        sNoFreeReplies += handler.txNoFreeReplies.delta();
+                    }
+                    System.out.println("     [sender]     cpu           packets/s             batches/s   pkts/batch   no batches   no free replies     errors   errno");
+                    System.out.println(String.format("                %4d          %10d            %10d   %10.2f   %10d        %10d %10d  %6d\n",
+                            sender.affinity, (int)(factor * sPackets), (int)(factor * sBatches),
+                            (sBatches != 0) ? (double) sPackets / sBatches : 0d,
+                            sNoUsedBuffers, sNoFreeReplies, sErrors, sErrno));
+                }
+
+                // latency from kernel receive, us
+                if (rxParameters.latency) {
+                    System.out.println("     [latency us]         receive -> process                  |          receive -> reply");
+                    System.out.println("    cpu         p50        p99      p99.9        max          |         p50        p99      p99.9        max");
+                    for (RxThreadPacketHandler handler : handlers) {
+                        System.out.println(String.format("     %2d  %s          |  %s",
+                                handler.affinity,
+                                formatLatency(handler.processLatency, latencyCounts),
+                                formatLatency(handler.replyLatency, latencyCounts)));
+                    }
+                    if (sender != null) {
+                        // replies are sent by sender, so handlers' reply latency is empty
+                        System.out.println(String.format("      s  %53s|  %s",
+                                "", formatLatency(sender.replyLatency, latencyCounts)));
+                    }
+                    System.out.println();
+                }
+
                 // transaction log, this is hack to get real writer
                 if (handlers[0].store instanceof DiskThreadTLogBufferHandler) {
                     DiskThreadTLogBufferHandler writer = (DiskThreadTLogBufferHandler) handlers[0].store;
@@ -290,13 +715,74 @@ public class PacketReceiver implements Callable<Integer> {
         }
     }
 
+    /**
+     * prints idle tiers' time of one thread and resets them
+     * @param role thread role, r - receiver, o - offloader, h - handler
+     * @param affinity thread's cpu
+     * @param idle thread's idle strategy
+     * @param period period in ns
+     */
+    private static void printIdle(String role, int affinity, IdleStrategy idle, long period) {
+        long spin = idle.tierNanos[IdleStrategy.TIER_SPIN].delta();
+        long yield = idle.tierNanos[IdleStrategy.TIER_YIELD].delta();
+        long park = idle.tierNanos[IdleStrategy.TIER_PARK].delta();
+        long episodes = idle.episodes.delta();
+        System.out.println(String.format("        %s    %4d      %6.2f      %6.2f      %6.2f   %10d",
+                role, affinity, 100d * spin / period, 100d * yield / period, 100d * park / period, episodes));
+    }
+
+    /**
+     * formats percentiles of the histogram for the last interval
+     * @param histogram latency histogram of one thread
+     * @param counts reusable array for interval counts
+     * @return p50, p99, p99.9 and max in us
+     */
+    private static String formatLatency(LatencyHistogram histogram, long[] counts) {
+        histogram.interval(counts);
+        return String.format("%10.1f %10.1f %10.1f %10.1f",
+                histogram.p50.get() / 1000d,
+                histogram.p99.get() / 1000d,
+                histogram.p999.get() / 1000d,
+                histogram.max.get() / 1000d);
+    }
+
+    /**
+     * publishes latency percentiles of threads into their counters
+     * when console statistics are off but counters are exported,
+     * threads never stop
+     * @param handlers handler threads
+     * @param sender reply sender, null if not used
+     * @throws InterruptedException if any
+     */
+    private static void publishLatency(RxThreadPacketHandler[] handlers, TxThreadReplySender sender)
+            throws InterruptedException
+    {
+        long[] latencyCounts = new long[LatencyHistogram.BUCKETS];
+        while (true) {
+            Thread.sleep(LATENCY_PUBLISH_PERIOD_MS);
+            for (RxThreadPacketHandler handler : handlers) {
+                handler.processLatency.interval(latencyCounts);
+                handler.replyLatency.interval(latencyCounts);
+            }
+            if (sender != null) {
+                sender.replyLatency.interval(latencyCounts);
+            }
+        }
+    }
+
     /**
      * implements logic of simplified single thread mode,
      * only subset of parameters are included
      */
     private void singleThreadLogic(RawSocket.RawSocket6 socket) {
 
-        PacketBuffer buffer = PacketBuffer.allocate(BUF_PACKETS_MAX, BUF_PACKET_BYTES_MAX);
+        SocketFilter filter = kernelFilter();
+        if ((filter != null) && (socket.attachFilter(filter) == -1)) {
+            throw new RuntimeException("error attaching socket filter, errno: " + socket.errno());
+        }
+
+        PacketBuffer buffer = PacketBuffer.allocate(rxParameters.mmsgs, BUF_PACKET_BYTES_MAX);
+        RawSocket.MmsgBatch6 batch = socket.bind(buffer.buffer, rxParameters.mmsgs, BUF_PACKET_BYTES_MAX);
 
         // packets' counter
         long pCounter = 0;
@@ -308,8 +794,8 @@ public class PacketReceiver implements Callable<Integer> {
 
 
         // bind this thread to cpu if requested
-        if (rxParameters.receiverAffinity != 0) {
-            Affinity.setAffinity(rxParameters.receiverAffinity);
+        if (rxParameters.receiverAffinity(0) != 0) {
+            Affinity.setAffinity(rxParameters.receiverAffinity(0));
         }
 
         // calc statistics period in ns
@@ -317,7 +803,7 @@ public class PacketReceiver implements Callable<Integer> {
 
         // main cycle
         while (true) {
-            int packets = socket.recvmmsg(buffer.buffer, rxParameters.mmsgs, BUF_PACKET_BYTES_MAX);
+            int packets = batch.recvmmsg(rxParameters.mmsgs);
             if (packets == -1) {
                 // remember last error only
                 errno = socket.errno();
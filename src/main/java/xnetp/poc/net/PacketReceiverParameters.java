@@ -1,6 +1,8 @@
 package xnetp.poc.net;
 
 import xnetp.poc.disk.StateStoreParameters;
+import xnetp.poc.sockets.RawSocket;
+import xnetp.poc.sockets.SocketFilter;
 import picocli.CommandLine;
 
 import java.net.InetAddress;
@@ -21,6 +23,20 @@ public class PacketReceiverParameters {
             description = "number of messages to receive via one system call")
     public int mmsgs;
 
+    @CommandLine.Option(names = "--packed",
+            defaultValue = "0",
+            paramLabel = "<bytes>",
+            description = "packed buffers: average bytes reserved per packet, packets are stored back-to-back, 0 - fixed slots")
+    public int packedBytes;
+
+    @CommandLine.Option(names = "--buffers.hugepages",
+            description = "receive buffers' pools are backed by 2MB pages")
+    public boolean buffersHugePages = false;
+
+    @CommandLine.Option(names = "--buffers.numa",
+            description = "receive buffers' pools are placed on numa nodes of handlers' cpus (first touch)")
+    public boolean buffersNuma = false;
+
     @CommandLine.Option(names = {"-uv", "--uni.volumes"},
             defaultValue = "1",
             paramLabel = "<volumes>",
@@ -48,9 +64,13 @@ public class PacketReceiverParameters {
     public boolean singleThreadMode = false;
 
     @CommandLine.Option(names = {"-spm", "--stat.period.ms"},
-            description = "period in ms to print receive statistics")
+            description = "period in ms to print receive statistics, 0 - no console statistics")
     public long statisticsPeriodMs = 5_000;
 
+    @CommandLine.Option(names = "--counters.file",
+            description = "memory mapped file to export threads' counters to (like /dev/shm/xnetp.rx), see CountersReader")
+    public String countersFile;
+
 
     @CommandLine.Option(names = {"-th", "--thread.handlers"},
             defaultValue = "2",
@@ -71,6 +91,30 @@ public class PacketReceiverParameters {
             description = "reply address")
     public InetAddress replyAddress;
 
+    @CommandLine.Option(names = "--handlers.reply.sender",
+            description = "replies are sent by dedicated sender thread, handlers pass batches of replies to it")
+    public boolean replySender = false;
+
+    @CommandLine.Option(names = "--handlers.reply.buffers",
+            defaultValue = "2",
+            description = "sender mode: reply buffers per handler, handler fills one while others are sent")
+    public int replyBuffers;
+
+    @CommandLine.Option(names = "--handlers.reply.batch",
+            defaultValue = "0",
+            description = "sender mode: max replies per batch, 0 - mmsgs")
+    public int replyBatch;
+
+    @CommandLine.Option(names = "--handlers.reply.flush.us",
+            defaultValue = "100",
+            description = "sender mode: max time to accumulate replies across received buffers, 0 - pass after each buffer")
+    public long replyFlushUs;
+
+    @CommandLine.Option(names = {"-tsa", "--thread.sender.affinity"},
+            defaultValue = "0",
+            description = "reply sender affinity (cpu core index)")
+    public int senderAffinity;
+
     @CommandLine.Option(names = {"-hw", "--handlers.workload"},
             defaultValue = "0",
             description = "packets' handlers: number of accumulator iterations to emulate processing")
@@ -79,17 +123,131 @@ public class PacketReceiverParameters {
 
 
 
+    @CommandLine.Option(names = {"-tr", "--thread.receivers"},
+            defaultValue = "1",
+            description = "packets' receiver threads number, each with own socket and subset of handlers")
+    public int receivers;
+
+    @CommandLine.Option(names = "--receivers.shard",
+            defaultValue = "rxhash",
+            description = "value to split packets between receivers' sockets by [rxhash|cpu]")
+    public RawSocket.ShardMode receiversShardMode;
+
     @CommandLine.Option(names = {"-tra", "--thread.receiver.affinity"},
+            split = ",",
+            description = "packets' receivers affinity (cpu core indices, like \"0,1\")")
+    public int[] receiversAffinity = new int[0];
+
+
+    /**
+     * the way received packets are distributed between handlers
+     */
+    public enum Sharding {
+        // whole buffers are passed to any handler with free buffers
+        buffers,
+        // packets are repacked by node UNI, the same node
+        // is always processed by the same handler
+        uni
+    }
+
+    @CommandLine.Option(names = "--sharding",
+            defaultValue = "buffers",
+            description = "packets' distribution between handlers [buffers|uni], uni is inline in receiver if no offloader")
+    public Sharding sharding;
+
+    /**
+     * the way buffers are exchanged between receiver and handlers
+     */
+    public enum Exchange {
+        // each handler has own lane of free and used buffers
+        lanes,
+        // shared pool of free buffers, idle handlers
+        // take used buffers from siblings' lanes
+        stealing
+    }
+
+    @CommandLine.Option(names = "--exchange",
+            defaultValue = "lanes",
+            description = "buffers' exchange between receiver and handlers [lanes|stealing]")
+    public Exchange exchange;
+
+    @CommandLine.Option(names = "--offloader",
+            description = "offloader thread repacks received packets into handlers' buffers by node UNI")
+    public boolean offloader = false;
+
+    @CommandLine.Option(names = {"-toa", "--thread.offloader.affinity"},
             defaultValue = "0",
-            description = "packets' receiver affinity (cpu core index)")
-    public int receiverAffinity;
+            description = "offloader affinity (cpu core index)")
+    public int offloaderAffinity;
 
+    @CommandLine.Option(names = "--filter.native",
+            description = "invalid packets (unknown types, wrong lengths) are dropped in native receive")
+    public boolean filterNative = false;
+
+    @CommandLine.Option(names = "--filter.kernel",
+            description = "packets of unknown types or out of valid lengths are dropped by socket's bpf filter")
+    public boolean filterKernel = false;
+
+    @CommandLine.Option(names = "--filter.uni",
+            split = ",",
+            description = "accepts only nodes of UNI volumes or volume:segment prefixes by socket's bpf filter, like \"0,1:15\"")
+    public String[] filterUni = new String[0];
+
+    @CommandLine.Option(names = "--latency",
+            description = "enables kernel receive timestamps and tracks handlers' receive->process/reply latency")
+    public boolean latency = false;
+
+    @CommandLine.Option(names = "--idle.receiver",
+            defaultValue = "backoff",
+            description = "receivers' idle strategy while waiting for free buffers [spin|yield|park|backoff|adaptive]")
+    public IdleStrategy.Type idleReceiver;
+
+    @CommandLine.Option(names = "--idle.offloader",
+            defaultValue = "backoff",
+            description = "offloader's idle strategy while waiting for received buffers [spin|yield|park|backoff|adaptive]")
+    public IdleStrategy.Type idleOffloader;
+
+    @CommandLine.Option(names = "--idle.handler",
+            defaultValue = "backoff",
+            description = "handlers' idle strategy while waiting for received buffers [spin|yield|park|backoff|adaptive]")
+    public IdleStrategy.Type idleHandler;
+
+    @CommandLine.Option(names = "--idle.spins",
+            defaultValue = "100",
+            description = "backoff/adaptive idle strategies: spins before yields, initial value for adaptive")
+    public int idleSpins;
+
+    @CommandLine.Option(names = "--idle.yields",
+            defaultValue = "0",
+            description = "backoff/adaptive idle strategies: yields before parks")
+    public int idleYields;
+
+    @CommandLine.Option(names = "--idle.park.max.us",
+            defaultValue = "1000",
+            description = "idle strategies: max park time in us")
+    public long idleParkMaxUs;
 
     @CommandLine.Option(names = {"-tha", "--thread.handlers.affinity"},
             split = ",",
             description = "packets' handlers affinity (cpu core indices, like \"0,1,2,3\")")
     public int[] handlersAffinity = new int[0];
 
+    /**
+     * @param type idle strategy type of thread's role
+     * @return new idle strategy instance for one thread
+     */
+    public IdleStrategy idleStrategy(IdleStrategy.Type type) {
+        return IdleStrategy.create(type, idleSpins, idleYields, idleParkMaxUs * 1000);
+    }
+
+    /**
+     * @param r receiver index
+     * @return affinity of the receiver, 0 if not specified
+     */
+    public int receiverAffinity(int r) {
+        return (r < receiversAffinity.length) ? receiversAffinity[r] : 0;
+    }
+
 
     /*
      *
@@ -152,6 +310,40 @@ public class PacketReceiverParameters {
             throw new CommandLine.ParameterException(
                     spec.commandLine(), "mmsgs must be in 1.." + BUF_PACKETS_MAX + " diapason");
         }
+        if (packedBytes < 0) {
+            throw new CommandLine.ParameterException(
+                    spec.commandLine(), "packed bytes must be positive");
+        }
+        if (offloader) {
+            // offloader always shards by uni
+            sharding = Sharding.uni;
+        }
+        if ((exchange == Exchange.stealing) && (sharding == Sharding.uni)) {
+            throw new CommandLine.ParameterException(
+                    spec.commandLine(), "work stealing could not be used with uni sharding");
+        }
+        try {
+            filterUni(new SocketFilter(SocketFilter.Target.raw6), filterUni);
+        } catch (IllegalArgumentException e) {
+            throw new CommandLine.ParameterException(
+                    spec.commandLine(), "--filter.uni is incorrect: " + e.getMessage());
+        }
+        if ((idleSpins < 0) || (idleYields < 0) || (idleParkMaxUs < 1)) {
+            throw new CommandLine.ParameterException(
+                    spec.commandLine(), "idle spins and yields must be >= 0, max park time must be > 0");
+        }
+        if (statisticsPeriodMs < 0) {
+            throw new CommandLine.ParameterException(
+                    spec.commandLine(), "statistics period must be >= 0");
+        }
+        if ((receivers < 1) || (handlerThreadsNum < receivers)) {
+            throw new CommandLine.ParameterException(
+                    spec.commandLine(), "receivers must be in 1..handlers diapason");
+        }
+        if (offloader && (1 < receivers)) {
+            throw new CommandLine.ParameterException(
+                    spec.commandLine(), "offloader could be used with the only receiver");
+        }
         if (handlerThreadsNum <  1) {
             throw new CommandLine.ParameterException(
                     spec.commandLine(), "too little handler threads, should be > 0");
@@ -166,12 +358,68 @@ public class PacketReceiverParameters {
                         spec.commandLine(), "reply address is required in case if reply percentage is > 0");
             }
         }
+        if (replySender) {
+            if (replyBuffers < 2) {
+                throw new CommandLine.ParameterException(
+                        spec.commandLine(), "reply buffers must be >= 2");
+            }
+            if ((replyBatch < 0) || (replyBatch > BUF_PACKETS_MAX) || (replyFlushUs < 0)) {
+                throw new CommandLine.ParameterException(
+                        spec.commandLine(), "reply batch must be in 0.." + BUF_PACKETS_MAX + " diapason, flush time must be >= 0");
+            }
+            if (replyBatch == 0) {
+                replyBatch = mmsgs;
+            }
+        }
+
+        // buffers of one lane are pooled into one region, all lanes
+        // (plus handlers' lanes with uni sharding) are allocated upfront
+        long packetBytes = (0 < packedBytes)
+                ? packedBytes + PacketBuffer.PACKED_INDEX_ENTRY_LENGTH
+                : PacketReceiver.BUF_PACKET_BYTES_MAX;
+        long laneBytes = mmsgs * packetBytes * PacketReceiver.RECEIVE_BUFFERS;
+        if (Integer.MAX_VALUE < laneBytes) {
+            throw new CommandLine.ParameterException(
+                    spec.commandLine(), "mmsgs * packet bytes * " + PacketReceiver.RECEIVE_BUFFERS
+                    + " buffers must be in 1.." + Integer.MAX_VALUE + " diapason, reduce mmsgs");
+        }
+        long lanes = handlerThreadsNum + ((sharding == Sharding.uni) ? receivers : 0);
+        long replyBytes = (long) handlerThreadsNum * PacketReceiver.BUF_PACKET_BYTES_MAX
+                * (replySender ? replyBuffers * replyBatch : mmsgs);
+        if (PacketBuffer.POOL_BYTES_MAX < lanes * laneBytes + replyBytes) {
+            throw new CommandLine.ParameterException(
+                    spec.commandLine(), "buffers' pool of " + ((lanes * laneBytes + replyBytes) >> 20)
+                    + " MB must be in 1.." + (PacketBuffer.POOL_BYTES_MAX >> 20) + " MB diapason, reduce mmsgs or handlers");
+        }
         if (!Set.of("single","tree","tslog").contains(storeMode)) {
             throw new CommandLine.ParameterException(
                     spec.commandLine(), "--store.mode is unknown, must be [single|tree|tlog]");
         }
     }
 
+    /**
+     * adds UNI prefixes to kernel filter
+     * @param filter filter to populate
+     * @param prefixes prefixes like "VV" or "VV:SS", decimal
+     * @return the same filter
+     * @throws IllegalArgumentException if prefix is incorrect
+     */
+    public static SocketFilter filterUni(SocketFilter filter, String[] prefixes) {
+        if (SocketFilter.ALTERNATIVES_MAX < prefixes.length) {
+            throw new IllegalArgumentException("too many prefixes, max: " + SocketFilter.ALTERNATIVES_MAX);
+        }
+        for (String prefix : prefixes) {
+            String[] parts = prefix.trim().split(":");
+            int volume = Integer.parseInt(parts[0]);
+            int segment = (parts.length == 2) ? Integer.parseInt(parts[1]) : -1;
+            if ((2 < parts.length) || (volume < 0) || (255 < volume) || (segment < -1) || (255 < segment)) {
+                throw new IllegalArgumentException(prefix);
+            }
+            filter.uni(volume, segment);
+        }
+        return filter;
+    }
+
     /**
      * dumps parameters to screen to be sure that everything is fine
      */
@@ -187,11 +435,27 @@ public class PacketReceiverParameters {
 
 
         if (singleThreadMode) {
-            System.out.println("  threading:  single thread,   cpu# " + receiverAffinity);
+            System.out.println("  threading:  single thread,   cpu# " + receiverAffinity(0));
         } else {
-            System.out.println("  threading:  1 receiver + " + handlerThreadsNum + " handlers");
-            System.out.println("   receiver:   cpu: " + receiverAffinity);
+            System.out.println("  threading:  " + receivers + " receivers + " + handlerThreadsNum + " handlers");
+            System.out.println("  receivers:   num: " + receivers + "    cpus: " + Arrays.toString(receiversAffinity)
+                    + ((1 < receivers) ? "    shard by: " + receiversShardMode : ""));
+            if (offloader) {
+                System.out.println("  offloader:   cpu: " + offloaderAffinity);
+            }
+            System.out.println("   sharding:  mode: " + sharding + ((sharding == Sharding.uni)
+                    ? (offloader ? ", offloader" : ", inline in receiver") : ""));
+            System.out.println("   exchange:  mode: " + exchange);
+            System.out.println("       idle:  receiver: " + idleReceiver + "    offloader: " + idleOffloader
+                    + "    handler: " + idleHandler);
+            System.out.println("              spins: " + idleSpins + "    yields: " + idleYields
+                    + "    max park: " + idleParkMaxUs + " us");
             System.out.println("   handlers:   num: " + handlerThreadsNum + "    cpus: " + Arrays.toString(handlersAffinity));
+            System.out.println("    latency:  " + (latency ? "on, kernel timestamps" : "off"));
+            System.out.println("     filter:  " + (filterNative ? "native, before java buffers" : "handlers only")
+                    + (filterKernel ? "    kernel: types, lengths" : "")
+                    + ((0 < filterUni.length) ? "    uni: " + String.join(",", filterUni) : ""));
+            System.out.println("   counters:  " + ((countersFile != null) ? countersFile : "console only"));
         }
         System.out.println();
 
@@ -200,11 +464,21 @@ public class PacketReceiverParameters {
         } else {
             System.out.println("  receiver:  mode: multiple threads ");
             System.out.println("      mmsg: " + mmsgs + " packets");
+            if (0 < packedBytes) {
+                System.out.println("    packed: " + packedBytes + " bytes per packet");
+            }
+            if (buffersHugePages || buffersNuma) {
+                System.out.println("   buffers: huge pages: " + buffersHugePages + "    numa local: " + buffersNuma);
+            }
             System.out.println( String.format("    w/load: %6.2f%% packets       iterations: %d",
                     100f - handlerPercentToStore - handlerPercentToReply, handlerWorkloadIterations));
             System.out.println( String.format("     store: %6.2f%% packets", handlerPercentToStore));
             System.out.println( String.format("     reply: %6.2f%% packets          send to: %s",
                     handlerPercentToReply, (replyAddress != null) ? replyAddress.toString() : ""));
+            if (replySender) {
+                System.out.println("    sender: cpu: " + senderAffinity + "    buffers: " + replyBuffers
+                        + "    batch: " + replyBatch + "    flush: " + replyFlushUs + " us");
+            }
         }
         System.out.println();
 
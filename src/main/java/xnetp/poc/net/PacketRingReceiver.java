@@ -0,0 +1,337 @@
+package xnetp.poc.net;
+
+import xnetp.poc.sockets.RxRing;
+import xnetp.poc.sockets.RxRingStatistics;
+import xnetp.poc.sockets.SocketFilter;
+import org.jctools.queues.atomic.SpmcAtomicArrayQueue;
+import picocli.CommandLine;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+
+@CommandLine.Command(name = "ringreceiver", usageHelpWidth = 120,
+        description = "Consumes packets via N AF_PACKET rx rings joined into fanout group")
+public class PacketRingReceiver implements Callable<Integer> {
+
+    @CommandLine.Spec
+    private CommandLine.Model.CommandSpec spec;
+
+    @CommandLine.Parameters(
+            index = "0",
+            paramLabel = "interface",
+            description = "network interface to receive packets from")
+    private String ifName;
+
+    @CommandLine.Option(names = {"-r", "--rings"},
+            defaultValue = "1",
+            description = "number of rings/sockets in fanout group, one reader thread per ring")
+    private int rings;
+
+    @CommandLine.Option(names = {"-f", "--fanout"},
+            defaultValue = "hash",
+            description = "fanout mode [hash|lb|cpu|qm]")
+    private RxRing.FanoutMode fanoutMode;
+
+    @CommandLine.Option(names = "--fanout.group",
+            defaultValue = "-1",
+            description = "fanout group id, derived from pid by default")
+    private int fanoutGroup;
+
+    @CommandLine.Option(names = {"-b", "--ring.blocks"},
+            defaultValue = "16",
+            description = "number of blocks in each ring")
+    private int blocks;
+
+    @CommandLine.Option(names = {"-bs", "--ring.block.size"},
+            defaultValue = "4194304",
+            description = "size of each block in bytes, multiple of page size")
+    private int blockSize;
+
+    @CommandLine.Option(names = {"-fs", "--ring.frame.size"},
+            defaultValue = "2048",
+            description = "frame size in bytes, multiple of 16")
+    private int frameSize;
+
+    @CommandLine.Option(names = {"-tov", "--ring.retire.timeout"},
+            defaultValue = "60",
+            description = "block retire timeout in ms")
+    private int retireTimeout;
+
+    @CommandLine.Option(names = {"-tra", "--thread.readers.affinity"},
+            split = ",",
+            description = "readers' affinity (cpu core indices, like \"0,1,2,3\")")
+    private int[] readersAffinity = new int[0];
+
+    @CommandLine.Option(names = {"-th", "--thread.handlers"},
+            defaultValue = "0",
+            description = "pipeline mode: block handler threads per ring, 0 - blocks are processed by readers inline")
+    private int handlers;
+
+    @CommandLine.Option(names = {"-tha", "--thread.handlers.affinity"},
+            split = ",",
+            description = "handlers' affinity for all rings in order (cpu core indices, like \"0,1,2,3\")")
+    private int[] handlersAffinity = new int[0];
+
+    @CommandLine.Option(names = "--filter.xnetp",
+            description = "rings get only xnetp (0xFD) frames of known types and valid lengths, bpf filter on sockets")
+    private boolean filterXnetp = false;
+
+    @CommandLine.Option(names = "--filter.uni",
+            split = ",",
+            description = "rings get only nodes of UNI volumes or volume:segment prefixes, like \"0,1:15\"")
+    private String[] filterUni = new String[0];
+
+    @CommandLine.Option(names = {"-spm", "--stat.period.ms"},
+            description = "period in ms to print receive statistics")
+    private long statisticsPeriodMs = 5_000;
+
+
+    /**
+     * entry point
+     *
+     * @param args arguments
+     */
+    public static void main(String[] args) {
+        int result = new CommandLine(PacketRingReceiver.class).execute(args);
+        System.exit(result);
+    }
+
+    /**
+     * performs some post validation of parameters
+     */
+    private void validate() {
+        if ((rings < 1) || (64 < rings)) {
+            throw new CommandLine.ParameterException(
+                    spec.commandLine(), "rings must be in 1..64 diapason");
+        }
+        if ((handlers < 0) || (64 < handlers)) {
+            throw new CommandLine.ParameterException(
+                    spec.commandLine(), "handlers must be in 0..64 diapason");
+        }
+        if (fanoutGroup < -1 || 0xFFFF < fanoutGroup) {
+            throw new CommandLine.ParameterException(
+                    spec.commandLine(), "fanout group must be in 0..65535 diapason");
+        }
+        try {
+            PacketReceiverParameters.filterUni(new SocketFilter(SocketFilter.Target.packet), filterUni);
+        } catch (IllegalArgumentException e) {
+            throw new CommandLine.ParameterException(
+                    spec.commandLine(), "--filter.uni is incorrect: " + e.getMessage());
+        }
+    }
+
+    /**
+     * dumps parameters to screen to be sure that everything is fine
+     */
+    private void dumpParameters() {
+        System.out.println();
+        System.out.println("  interface: " + ifName);
+        System.out.println("      rings: " + rings + "    fanout: " + fanoutMode + "    group: " + fanoutGroup);
+        System.out.println("       ring: blocks: " + blocks + "    block size: " + blockSize +
+                "    frame size: " + frameSize + "    retire timeout: " + retireTimeout + " ms");
+        System.out.println("    readers: cpus: " + Arrays.toString(readersAffinity));
+        if (filterXnetp || (0 < filterUni.length)) {
+            System.out.println("     filter: " + (filterXnetp ? "xnetp types, lengths    " : "")
+                    + ((0 < filterUni.length) ? "uni: " + String.join(",", filterUni) : ""));
+        }
+        if (0 < handlers) {
+            System.out.println("   pipeline: handlers per ring: " + handlers + "    cpus: " + Arrays.toString(handlersAffinity));
+        } else {
+            System.out.println("   pipeline: off, inline processing");
+        }
+        System.out.println();
+    }
+
+    /**
+     * builds kernel filter of xnetp frames if requested
+     * @return filter or null if filtering is off
+     */
+    private SocketFilter filter() {
+        if (!filterXnetp && (filterUni.length == 0)) {
+            return null;
+        }
+        SocketFilter filter = new SocketFilter(SocketFilter.Target.packet).protocol(PacketReceiver.XNETP_PROTOCOL_TYPE);
+        if (filterXnetp) {
+            PacketType.filterKernel(filter);
+        }
+        return PacketReceiverParameters.filterUni(filter, filterUni);
+    }
+
+    @Override
+    public Integer call() {
+        try {
+            // simple wrapper to catch and dump exception
+            // instead of picocli
+            return _call();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return -1;
+    }
+
+    /**
+     * application logic
+     *
+     * @return nothing
+     * @throws Exception if any
+     */
+    private Integer _call() throws Exception {
+        validate();
+        if (fanoutGroup == -1) {
+            fanoutGroup = (int) (ProcessHandle.current().pid() & 0xFFFF);
+        }
+        dumpParameters();
+
+        // open all rings and join them into the group,
+        // single ring doesn't need fanout
+        RxRing[] rxRings = new RxRing[rings];
+        SocketFilter filter = filter();
+        try {
+            for (int i = 0; i < rings; i++) {
+                RxRing ring = RxRing.open(ifName, blocks, blockSize, frameSize, retireTimeout);
+                rxRings[i] = ring;
+                if (filter != null) {
+                    if (ring.attachFilter(filter) == -1) {
+                        throw new RuntimeException("error attaching socket filter, errno: " + ring.errno());
+                    }
+                }
+                if (1 < rings) {
+                    if (ring.fanout(fanoutGroup, fanoutMode) == -1) {
+                        throw new RuntimeException("error joining fanout group, errno: " + ring.errno());
+                    }
+                }
+            }
+        } catch (Exception e) {
+            // release rings (sockets and mapped memory) opened so far
+            for (RxRing ring : rxRings) {
+                if (ring != null) {
+                    ring.close();
+                }
+            }
+            throw e;
+        }
+
+        // allocate threads, readers process blocks inline
+        // or just pass them to handlers in pipeline mode
+        Thread[] readers = new Thread[rings];
+        RxThreadRingBlockHandler[][] blockHandlers = new RxThreadRingBlockHandler[rings][handlers];
+        for (int i = 0; i < rings; i++) {
+            int tAffinity = (i < readersAffinity.length) ? readersAffinity[i] : 0;
+            if (handlers == 0) {
+                readers[i] = new RxThreadRingReader(tAffinity, rxRings[i], new RxRing.XnetpCounter());
+            } else {
+                SpmcAtomicArrayQueue<Integer> queueBlocks = new SpmcAtomicArrayQueue<>(blocks);
+                readers[i] = new RxThreadRingPoller(tAffinity, rxRings[i], queueBlocks);
+                for (int h = 0; h < handlers; h++) {
+                    int hIndex = i * handlers + h;
+                    int hAffinity = (hIndex < handlersAffinity.length) ? handlersAffinity[hIndex] : 0;
+                    blockHandlers[i][h] = new RxThreadRingBlockHandler(
+                            hAffinity, rxRings[i], queueBlocks, new RxRing.XnetpCounter());
+                }
+            }
+        }
+
+        // run the processing
+        for (int i = 0; i < rings; i++) {
+            for (int h = 0; h < handlers; h++) {
+                blockHandlers[i][h].start();
+            }
+            readers[i].start();
+        }
+
+        // run metrics' cycle
+        collectMetrics(rxRings, readers, blockHandlers);
+
+        return 0;
+    }
+
+    /**
+     * collects metrics from readers and handlers and renders them to console
+     * @param rxRings opened rings
+     * @param readers reader threads, one per ring, inline readers or pollers
+     * @param blockHandlers block handlers per ring in pipeline mode
+     * @throws InterruptedException if any
+     */
+    private void collectMetrics(RxRing[] rxRings, Thread[] readers, RxThreadRingBlockHandler[][] blockHandlers)
+            throws InterruptedException
+    {
+        // period in nanoseconds
+        final long period = statisticsPeriodMs * 1_000_000L;
+
+        // kernel and blocks' statistics per ring
+        RxRingStatistics[] stats = new RxRingStatistics[rxRings.length];
+        for (int i = 0; i < rxRings.length; i++) {
+            stats[i] = new RxRingStatistics();
+        }
+
+        long tStart = System.nanoTime();
+        while (true) {
+            long tNow = System.nanoTime();
+            if (period < tNow - tStart) {
+                // scale factor for per sec outputs
+                double factor = 1E9 / (tNow - tStart);
+
+                System.out.print("---- [iteration: ");
+                System.out.print(statisticsPeriodMs);
+                System.out.println(" ms] ------------------------------------------------------------------------------------------------------------------");
+                System.out.println("   ring    cpu   packets/s    blocks/s   |   k/pkts/s    drops/s   drops %  freezes   |  fill avg us  fill max us   |  drops total  freezes total    errors      busy");
+
+                long totalPackets = 0;
+                long totalDrops = 0;
+                for (int i = 0; i < rxRings.length; i++) {
+                    long rxPackets = 0;
+                    long rxBlocks;
+                    long rxErrors;
+                    long rxBusy = 0;
+                    int affinity;
+                    if (readers[i] instanceof RxThreadRingReader) {
+                        RxThreadRingReader reader = (RxThreadRingReader) readers[i];
+                        rxPackets   = reader.rxPacketCounter.delta();
+                        rxBlocks    = reader.rxBlockCounter.delta();
+                        rxErrors    = reader.rxErrors.delta();
+                        affinity    = reader.affinity;
+                    } else {
+                        RxThreadRingPoller poller = (RxThreadRingPoller) readers[i];
+                        rxBlocks    = poller.rxBlockCounter.delta();
+                        rxErrors    = poller.rxErrors.delta();
+                        rxBusy      = poller.rxBlocksBusy.delta();
+                        affinity    = poller.affinity;
+                        for (RxThreadRingBlockHandler handler : blockHandlers[i]) {
+                            rxPackets += handler.rxPacketCounter.delta();
+                        }
+                    }
+
+                    RxRingStatistics stat = stats[i];
+                    rxRings[i].updateStatistics(stat);
+
+                    totalPackets += rxPackets;
+                    totalDrops += stat.intervalDrops;
+
+                    System.out.println(String.format("   %4d   %4d  %10d  %10d   | %10d %10d   %6.2f %8d   |  %11d  %11d   | %12d  %13d  %8d  %8d",
+                            i, affinity, (int)(factor * rxPackets), (int)(factor * rxBlocks),
+                            (int)(factor * stat.intervalPackets), (int)(factor * stat.intervalDrops),
+                            stat.intervalDropRate(), stat.intervalFreezes,
+                            stat.intervalBlockFillAvgNs / 1000, stat.intervalBlockFillMaxNs / 1000,
+                            stat.drops, stat.freezes, rxErrors, rxBusy));
+
+                    // pipeline handlers of the ring
+                    for (RxThreadRingBlockHandler handler : blockHandlers[i]) {
+                        long hBlocks = handler.rxBlockCounter.delta();
+                        long hNoBlocks = handler.rxNoBlocks.delta();
+                        System.out.println(String.format("      h   %4d              %10d   |   no blocks: %10d",
+                                handler.affinity, (int)(factor * hBlocks), hNoBlocks));
+                    }
+                }
+                System.out.println(String.format("  total        %10d               |            %10d",
+                        (int)(factor * totalPackets), (int)(factor * totalDrops)));
+                System.out.println("\n\n");
+
+                // prepare for the next turn
+                tStart = tNow;
+            }
+
+            Thread.sleep(100);
+        }
+    }
+}
@@ -1,14 +1,17 @@
 package xnetp.poc.net;
 
 import xnetp.poc.sockets.RawSocket;
+import xnetp.poc.sockets.TxRing;
 import picocli.CommandLine;
 
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.file.Paths;
+import java.util.Enumeration;
 import java.util.Arrays;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 
 @CommandLine.Command(name = "sender", usageHelpWidth = 120,
         description = "Produces ipv6 packet load")
@@ -70,10 +73,58 @@ public class PacketSender implements Callable<Integer> {
             description = "uni (ipv6) addresses' en each segment, 2 last bytes: FC::VVSS:AAAA")
     private int uniAddresses;
 
+    @CommandLine.Option(names = "--engine",
+            defaultValue = "mmsg",
+            description = "sending engine [mmsg|txring], txring writes ethernet frames into AF_PACKET tx ring")
+    private Engine engine;
+
+    @CommandLine.Option(names = "--txring.interface",
+            description = "txring: network interface to send frames via")
+    private String txInterface;
+
+    @CommandLine.Option(names = "--txring.mac.dst",
+            description = "txring: destination (next hop) mac address, like 00:11:22:33:44:55")
+    private String txDstMac;
+
+    @CommandLine.Option(names = "--txring.mac.src",
+            description = "txring: source mac address, interface address by default")
+    private String txSrcMac;
+
+    @CommandLine.Option(names = "--txring.source",
+            description = "txring: source ipv6 address, the first ipv6 address of the interface by default")
+    private InetAddress txSource;
+
+    @CommandLine.Option(names = "--txring.blocks",
+            defaultValue = "64",
+            description = "txring: number of blocks in each ring")
+    private int txBlocks;
+
+    @CommandLine.Option(names = "--txring.block.size",
+            defaultValue = "65536",
+            description = "txring: size of each block in bytes, multiple of page size")
+    private int txBlockSize;
+
+    @CommandLine.Option(names = "--txring.frame.size",
+            defaultValue = "2048",
+            description = "txring: frame size in bytes, multiple of 16")
+    private int txFrameSize;
+
+    @CommandLine.Option(names = "--txring.qdisc.bypass",
+            description = "txring: send frames directly to driver bypassing qdisc layer")
+    private boolean txQdiscBypass = false;
+
     @CommandLine.Option(names = "--dump",
             description = "dump mode, packets only dumped to console")
     private boolean dump = false;
 
+    @CommandLine.Option(names = {"-spm", "--stat.period.ms"},
+            description = "period in ms to print send statistics, 0 - no console statistics")
+    private long statisticsPeriodMs = 5_000;
+
+    @CommandLine.Option(names = "--counters.file",
+            description = "memory mapped file to export threads' counters to (like /dev/shm/xnetp.tx), see CountersReader")
+    private String countersFile;
+
     /**
      * maximum amount in buffer any packet could take
      * including header
@@ -81,9 +132,9 @@ public class PacketSender implements Callable<Integer> {
     private final static int BUF_PACKET_BYTES_MAX   = 1024;
     /**
      * maximum number of packets that could be passed via system call
-     * and stores in buffer (as a result)
+     * and stores in buffer, the same as for receiver
      */
-    private final static int BUF_PACKETS_MAX        = 16;
+    private final static int BUF_PACKETS_MAX        = RawSocket.MMSG_BATCH_MAX;
 
     /**
      * sum of all distribution values to be checked against,
@@ -97,6 +148,33 @@ public class PacketSender implements Callable<Integer> {
      */
     private final static int XNETP_PROTOCOL_TYPE    = 253;
 
+    /**
+     * hop limit for packets generated by txring engine
+     */
+    private final static int TXRING_HOP_LIMIT       = 64;
+
+    /**
+     * packet types, cached as values() clones array on each call
+     */
+    private final static PacketType[] PACKET_TYPES  = PacketType.values();
+
+    /**
+     * supported sending engines
+     */
+    enum Engine {
+        // RawSocket6.sendmmsg over packet buffer
+        mmsg,
+        // AF_PACKET tx ring, frames are populated in place
+        txring
+    }
+
+    /**
+     * txring engine parameters resolved from the interface
+     */
+    private byte[] txSrcMacBytes;
+    private byte[] txDstMacBytes;
+    private byte[] txSourceBytes;
+
 
     /**
      * entry point
@@ -119,10 +197,17 @@ public class PacketSender implements Callable<Integer> {
             throw new CommandLine.ParameterException(
                     spec.commandLine(), "only ipv6 addresses are supported");
         }
-        if ((mmsgs < 1) || (mmsgs > 16)) {
+        if ((mmsgs < 1) || (mmsgs > BUF_PACKETS_MAX)) {
             throw new CommandLine.ParameterException(
                     spec.commandLine(), "mmsgs must be in 1.." + BUF_PACKETS_MAX + " diapason");
         }
+        // each thread allocates own buffer
+        long poolBytes = (long) threads * mmsgs * BUF_PACKET_BYTES_MAX;
+        if ((threads < 1) || (PacketBuffer.POOL_BYTES_MAX < poolBytes)) {
+            throw new CommandLine.ParameterException(
+                    spec.commandLine(), "threads * mmsgs * " + BUF_PACKET_BYTES_MAX + " bytes must be in 1.."
+                    + (PacketBuffer.POOL_BYTES_MAX >> 20) + " MB diapason");
+        }
         if (distribution.length < 4) {
             throw new CommandLine.ParameterException(
                     spec.commandLine(), "packets.types must provide 4 values");
@@ -131,6 +216,10 @@ public class PacketSender implements Callable<Integer> {
             throw new CommandLine.ParameterException(
                     spec.commandLine(), "packets.types must add up to " + DISTRIBUTIONS_TOTAL);
         }
+        if (statisticsPeriodMs < 0) {
+            throw new CommandLine.ParameterException(
+                    spec.commandLine(), "statistics period must be >= 0");
+        }
         if (16 < threads) {
             throw new CommandLine.ParameterException(
                     spec.commandLine(), "more 16 threads aren't supported");
@@ -147,6 +236,98 @@ public class PacketSender implements Callable<Integer> {
             throw new CommandLine.ParameterException(
                     spec.commandLine(), "ip.segments must be 1..65535");
         }
+        if (engine == Engine.txring) {
+            validateTxRing();
+        }
+    }
+
+    /**
+     * validates txring engine parameters and resolves
+     * mac and source addresses from the interface if not specified
+     */
+    private void validateTxRing() {
+        if (dump) {
+            throw new CommandLine.ParameterException(
+                    spec.commandLine(), "dump mode is not supported by txring engine");
+        }
+        if (txInterface == null) {
+            throw new CommandLine.ParameterException(
+                    spec.commandLine(), "txring.interface must be specified for txring engine");
+        }
+        if (txDstMac == null) {
+            throw new CommandLine.ParameterException(
+                    spec.commandLine(), "txring.mac.dst must be specified for txring engine");
+        }
+        if (txFrameSize < TxRing.FRAME_IPV6_DATA_SHIFT + BUF_PACKET_BYTES_MAX - PacketBuffer.SLOT_DATA_SHIFT) {
+            throw new CommandLine.ParameterException(
+                    spec.commandLine(), "txring.frame.size is too small for xnetp packets");
+        }
+        if (txBlocks * (txBlockSize / txFrameSize) < mmsgs) {
+            throw new CommandLine.ParameterException(
+                    spec.commandLine(), "txring must have at least mmsg frames");
+        }
+
+        try {
+            NetworkInterface nInterface = NetworkInterface.getByName(txInterface);
+            if (nInterface == null) {
+                throw new CommandLine.ParameterException(
+                        spec.commandLine(), "unknown network interface: " + txInterface);
+            }
+
+            txDstMacBytes = parseMac(txDstMac);
+            txSrcMacBytes = (txSrcMac == null) ? nInterface.getHardwareAddress() : parseMac(txSrcMac);
+            if ((txSrcMacBytes == null) || (txSrcMacBytes.length != 6)) {
+                throw new CommandLine.ParameterException(
+                        spec.commandLine(), "interface has no mac address, txring.mac.src must be specified");
+            }
+
+            if (txSource != null) {
+                if (!(txSource instanceof Inet6Address)) {
+                    throw new CommandLine.ParameterException(
+                            spec.commandLine(), "txring.source must be ipv6 address");
+                }
+                txSourceBytes = txSource.getAddress();
+            } else {
+                Enumeration<InetAddress> addresses = nInterface.getInetAddresses();
+                while (addresses.hasMoreElements()) {
+                    InetAddress address = addresses.nextElement();
+                    if (address instanceof Inet6Address) {
+                        txSourceBytes = address.getAddress();
+                        break;
+                    }
+                }
+                if (txSourceBytes == null) {
+                    throw new CommandLine.ParameterException(
+                            spec.commandLine(), "interface has no ipv6 address, txring.source must be specified");
+                }
+            }
+        } catch (java.net.SocketException e) {
+            throw new CommandLine.ParameterException(
+                    spec.commandLine(), "error accessing interface: " + e.getMessage());
+        }
+    }
+
+    /**
+     * parses mac address in 00:11:22:33:44:55 form
+     * @param mac string representation
+     * @return 6 bytes of the address
+     */
+    private byte[] parseMac(String mac) {
+        String[] parts = mac.split("[:-]");
+        if (parts.length != 6) {
+            throw new CommandLine.ParameterException(
+                    spec.commandLine(), "incorrect mac address: " + mac);
+        }
+        byte[] result = new byte[6];
+        for (int i = 0; i < 6; i++) {
+            try {
+                result[i] = (byte) Integer.parseInt(parts[i], 16);
+            } catch (NumberFormatException e) {
+                throw new CommandLine.ParameterException(
+                        spec.commandLine(), "incorrect mac address: " + mac);
+            }
+        }
+        return result;
     }
 
     /**
@@ -155,6 +336,11 @@ public class PacketSender implements Callable<Integer> {
     private void dumpParameters() {
         System.out.println("sender parameters:");
         System.out.println("  destination address:" + host.getHostAddress());
+        System.out.println("  engine: " + engine);
+        if (engine == Engine.txring) {
+            System.out.println("    interface: " + txInterface + "    qdisc bypass: " + txQdiscBypass);
+            System.out.println("    ring: blocks: " + txBlocks + "    block size: " + txBlockSize + "    frame size: " + txFrameSize);
+        }
         System.out.println();
         System.out.println("  packets' types:");
         int index = 0;
@@ -207,13 +393,19 @@ public class PacketSender implements Callable<Integer> {
                 new AtomicInteger(-1), new AtomicInteger(-1), new AtomicInteger(-1), new AtomicInteger(-1)
         };
 
-        // counters, false sharing is here yet
-        AtomicLong[] txCounters = new AtomicLong[] {
-                new AtomicLong(), new AtomicLong(), new AtomicLong(), new AtomicLong(),
-                new AtomicLong(), new AtomicLong(), new AtomicLong(), new AtomicLong(),
-                new AtomicLong(), new AtomicLong(), new AtomicLong(), new AtomicLong(),
-                new AtomicLong(), new AtomicLong(), new AtomicLong(), new AtomicLong()
-        };
+        // counters, padded and written by sending threads only
+        Counter[] txCounters = new Counter[16];
+        for (int i = 0; i < txCounters.length; i++) {
+            txCounters[i] = new Counter();
+        }
+
+        // counters must be moved to the file before threads start
+        if (countersFile != null) {
+            CountersFile file = CountersFile.create(Paths.get(countersFile), txCounters.length);
+            for (int i = 0; i < threads; i++) {
+                file.register("tx#" + i + ".packets", txCounters[i]);
+            }
+        }
 
         // tracks running threads
         Future futures[] = new Future[threads];
@@ -234,6 +426,15 @@ public class PacketSender implements Callable<Integer> {
         }
 
 
+        // no console statistics, just wait for threads
+        if (statisticsPeriodMs == 0) {
+            for (int i = 0; i < threads; i++) {
+                futures[i].get();
+            }
+            executor.shutdown();
+            return 0;
+        }
+
         // delay till all threads start (just simple sync)
         Thread.sleep(500);
         System.out.println("\nsending statistics");
@@ -242,13 +443,13 @@ public class PacketSender implements Callable<Integer> {
         long tStart = System.currentTimeMillis();
         while (true) {
             long tEnd = System.currentTimeMillis();
-            if (5000 < tEnd - tStart) {
+            if (statisticsPeriodMs < tEnd - tStart) {
                 // collect threads' statistics
                 long txPackets = 0;
                 long[] txCountersCopy = new long[threads];
                 int[] txErrorCopy = new int[threads];
                 for (int i = 0; i < threads; i++) {
-                    txCountersCopy[i] = txCounters[i].getAndSet(0);
+                    txCountersCopy[i] = txCounters[i].delta();
                     txErrorCopy[i] = txErrors[i].getAndSet(-1);
                     txPackets += txCountersCopy[i];
                 }
@@ -295,7 +496,7 @@ public class PacketSender implements Callable<Integer> {
         // thread name for info displaying
         String name;
         // external counter to be updated to track tx operations
-        AtomicLong extCounter;
+        Counter extCounter;
         // service indicator
         AtomicInteger extError;
 
@@ -311,7 +512,7 @@ public class PacketSender implements Callable<Integer> {
          */
         TxThread(
                 String _name,
-                AtomicLong _extCounter,
+                Counter _extCounter,
                 AtomicInteger _extError,
                 long _tPackets,
                 long _tPps,
@@ -327,11 +528,15 @@ public class PacketSender implements Callable<Integer> {
 
         @Override
         public void run() {
+            if (engine == Engine.txring) {
+                runTxRing();
+                return;
+            }
             try {
                 // extract and cache address
                 byte[] address = host.getAddress();
 
-                PacketBuffer buffer = PacketBuffer.allocate(BUF_PACKETS_MAX, BUF_PACKET_BYTES_MAX);
+                PacketBuffer buffer = PacketBuffer.allocate(mmsgs, BUF_PACKET_BYTES_MAX);
 
                 // populate templates for xnetp packets
                 for (int i = 0; i < mmsgs; i++) {
@@ -360,6 +565,7 @@ public class PacketSender implements Callable<Integer> {
 
                 // open socket and prepare to send data
                 RawSocket.RawSocket6 rSocket = (RawSocket.RawSocket6) RawSocket.open(RawSocket.AF_INET6, XNETP_PROTOCOL_TYPE);
+                RawSocket.MmsgBatch6 batch = rSocket.bind(buffer.buffer, mmsgs, BUF_PACKET_BYTES_MAX);
 
                 // local packet counter to exit when finished
                 long pCounter = 0;
@@ -394,7 +600,7 @@ public class PacketSender implements Callable<Integer> {
                         result = mmsgs;
                     } else {
                         // send packets
-                        result = rSocket.sendmmsg(buffer.buffer, mmsgs, BUF_PACKET_BYTES_MAX);
+                        result = batch.sendmmsg(mmsgs);
                         if (result == -1) {
                             // this could be tx queue overload
                             extError.set(rSocket.errno());
@@ -407,7 +613,7 @@ public class PacketSender implements Callable<Integer> {
                     generatePackets = true;
 
                     pCounter += result;
-                    extCounter.addAndGet(result);
+                    extCounter.add(result);
 
                     // exit if have sent all packets for this thread
                     if ((txPackets != -1) && (txPackets <= pCounter)) {
@@ -423,11 +629,116 @@ public class PacketSender implements Callable<Integer> {
                         }
                     }
                 }
+                batch.close();
                 rSocket.close();
             } catch (Throwable e) {
                 e.printStackTrace();
             }
         }
+
+        /**
+         * sending logic for tx ring engine, packets are generated directly
+         * in ring's frames and sent with one system call per mmsg frames
+         */
+        private void runTxRing() {
+            try {
+                // extract and cache address
+                byte[] address = host.getAddress();
+
+                // each thread has its own ring
+                TxRing ring = TxRing.open(txInterface, txBlocks, txBlockSize, txFrameSize, txQdiscBypass);
+
+                // populate templates once, frames keep content after sending
+                for (int f = 0; f < ring.frames; f++) {
+                    int base = ring.frame(f);
+                    ring.populateEthernetHeader(f, txDstMacBytes, txSrcMacBytes, TxRing.ETH_P_IPV6);
+                    ring.populateIpv6Header(f, txSourceBytes, address, XNETP_PROTOCOL_TYPE, TXRING_HOP_LIMIT);
+                    PacketBuffer.populatePacketExtHeaderTemplate(ring.ring, base + TxRing.FRAME_IPV6_DATA_SHIFT);
+                    PacketBuffer.populatePacketPayloadTemplate(ring.ring,
+                            base + TxRing.FRAME_IPV6_DATA_SHIFT + PacketBuffer.PACKET_XNETP_EXT_HDR_LENGTH,
+                            txFrameSize - TxRing.FRAME_IPV6_DATA_SHIFT - PacketBuffer.PACKET_XNETP_EXT_HDR_LENGTH);
+                }
+
+                // partial sums of distributions
+                int[] proportions = distribution.clone();
+                for (int i = 1; i < proportions.length; i++) {
+                    proportions[i] += proportions[i - 1];
+                }
+
+                // log thread parameters
+                System.out.println("  thread: " + name +
+                        "    packets: " + txPackets +
+                        "    pps: " + txPps +
+                        "    frames: " + ring.frames +
+                        "    p: " + Arrays.toString(proportions));
+
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+
+                // local packet counter to exit when finished
+                long pCounter = 0;
+
+                while (true) {
+                    // mark iteration start to support pps
+                    long tSendStart = System.nanoTime();
+
+                    // fill up to mmsg frames, less if ring is full
+                    int queued = 0;
+                    for (; queued < mmsgs; queued++) {
+                        int f = ring.acquire();
+                        if (f == -1) {
+                            break;
+                        }
+
+                        PacketType pType = selectPacketType(proportions, random);
+                        boolean packetCorrect = (pType != PacketType.ERROR);
+                        if (!packetCorrect) {
+                            pType = selectForgedPacketType(proportions, random);
+                        }
+
+                        int length = PacketBuffer.populatePacketData(ring.ring,
+                                ring.frame(f) + TxRing.FRAME_IPV6_DATA_SHIFT,
+                                pType, uniVolumes, unipSegments, uniAddresses, packetCorrect);
+                        ring.setIpv6PayloadLength(f, length);
+                        ring.commit(f, TxRing.ETH_HDR_LENGTH + TxRing.IPV6_HDR_LENGTH + length);
+                    }
+
+                    // kick kernel, committed frames are kept in ring on errors
+                    // and will be sent with the next call
+                    if (ring.flush(false) == -1) {
+                        extError.set(ring.errno());
+                    }
+
+                    if (queued == 0) {
+                        // ring is full, kernel is still sending
+                        Thread.yield();
+                        continue;
+                    }
+
+                    pCounter += queued;
+                    extCounter.add(queued);
+
+                    // exit if have sent all packets for this thread
+                    if ((txPackets != -1) && (txPackets <= pCounter)) {
+                        break;
+                    }
+
+                    // try to support necessary pps if specified
+                    if (txPps != -1) {
+                        long tSendEnd = System.nanoTime();
+                        long tSleepUntil = tSendEnd + (long) (1E9 / txPps * queued) - (tSendEnd - tSendStart);
+                        while (System.nanoTime() < tSleepUntil) {
+                            //Thread.onSpinWait();
+                        }
+                    }
+                }
+
+                // wait for the last frames to leave the ring
+                ring.flush(true);
+                ring.close();
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     /**
@@ -445,44 +756,14 @@ public class PacketSender implements Callable<Integer> {
         assert proportions[proportions.length - 1] == DISTRIBUTIONS_TOTAL  : "strange packets' types' distribution";
 
         ThreadLocalRandom random = ThreadLocalRandom.current();
-        PacketType[] pTypes = PacketType.values();
 
         for (int i = 0; i < packets; i++) {
-            int rnd = random.nextInt(DISTRIBUTIONS_TOTAL);
-            int pTypeIndex = 0;
+            PacketType pType = selectPacketType(proportions, random);
 
-            // special check for 00:XX:YY:ZZ proportions
-            while ((proportions[pTypeIndex] == 0) || (proportions[pTypeIndex] < rnd)) {
-                pTypeIndex++;
-            }
-
-            boolean packetCorrect = true;
-            PacketType pType = pTypes[pTypeIndex];
-            if (pType == PacketType.ERROR) {
-                // indicate error
-                packetCorrect = false;
-
-                // select new package type
-                if (proportions[pTypes.length - 2] == 0) {
-                    // seems we have only error packages to be sent,
-
-                    // select any type
-                    //pType = pTypes[random.nextInt(pTypes.length - 1)];
-
-                    // select minimal type
-                    pType = PacketType.MINIMAL;
-                } else {
-                    // select error type proportionally to specified distribution
-
-                    // this will give random for correct types only,
-                    // 0:70:0:30 will sum to 0:70:70:100 and give [0..70) diapason
-                    rnd = random.nextInt(proportions[pTypes.length - 2]);
-                    pTypeIndex = 0;
-                    while ((proportions[pTypeIndex] == 0) || (proportions[pTypeIndex] < rnd)) {
-                        pTypeIndex++;
-                    }
-                    pType = pTypes[pTypeIndex];
-                }
+            // error type means incorrect packet of some correct type
+            boolean packetCorrect = (pType != PacketType.ERROR);
+            if (!packetCorrect) {
+                pType = selectForgedPacketType(proportions, random);
             }
 
             // populate
@@ -492,4 +773,52 @@ public class PacketSender implements Callable<Integer> {
         buffer.packets = packets;
     }
 
+    /**
+     * selects type of the packet to generate using specified distribution
+     * @param proportions partial sum of distributions of packet types
+     * @param random random generator
+     * @return packet type, {@link PacketType#ERROR} means incorrect packet must be generated
+     */
+    private static PacketType selectPacketType(int[] proportions, ThreadLocalRandom random) {
+        int rnd = random.nextInt(DISTRIBUTIONS_TOTAL);
+        int pTypeIndex = 0;
+
+        // special check for 00:XX:YY:ZZ proportions
+        while ((proportions[pTypeIndex] == 0) || (proportions[pTypeIndex] < rnd)) {
+            pTypeIndex++;
+        }
+        return PACKET_TYPES[pTypeIndex];
+    }
+
+    /**
+     * selects correct type of the packet to be forged into incorrect one
+     * @param proportions partial sum of distributions of packet types
+     * @param random random generator
+     * @return packet type to generate as a base for incorrect packet
+     */
+    private static PacketType selectForgedPacketType(int[] proportions, ThreadLocalRandom random) {
+        PacketType[] pTypes = PACKET_TYPES;
+
+        // select new package type
+        if (proportions[pTypes.length - 2] == 0) {
+            // seems we have only error packages to be sent,
+
+            // select any type
+            //pType = pTypes[random.nextInt(pTypes.length - 1)];
+
+            // select minimal type
+            return PacketType.MINIMAL;
+        }
+
+        // select error type proportionally to specified distribution
+
+        // this will give random for correct types only,
+        // 0:70:0:30 will sum to 0:70:70:100 and give [0..70) diapason
+        int rnd = random.nextInt(proportions[pTypes.length - 2]);
+        int pTypeIndex = 0;
+        while ((proportions[pTypeIndex] == 0) || (proportions[pTypeIndex] < rnd)) {
+            pTypeIndex++;
+        }
+        return pTypes[pTypeIndex];
+    }
 }
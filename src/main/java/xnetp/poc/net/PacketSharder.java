@@ -0,0 +1,156 @@
+package xnetp.poc.net;
+
+import java.util.Queue;
+
+/**
+ * repacks packets of received buffers into per handler buffers
+ * by node UNI (FC::VV:SS:AAAA), so each node is always processed
+ * by the same handler and its state could be owned by that thread,
+ * must be used by one thread only
+ */
+public class PacketSharder {
+
+    // will track packets per shard (handler) to calculate skew
+    public final Counter[] shardPackets;
+
+    // will track buffers passed to handlers
+    public final Counter txBufferCounter = new Counter();
+
+    // indicates there are no free buffers of some handler,
+    // processing takes too much time
+    public final Counter txNoFreeBuffers = new Counter();
+
+    // indicates handlers' queues are full
+    public final Counter txUsedBuffersOverflow = new Counter();
+
+
+    // here we get empty buffers of each handler
+    private final Queue<PacketBuffer>[] queueHandlersFreeBuffers;
+    // there we send repacked buffers to each handler
+    private final Queue<PacketBuffer>[] queueHandlersUsedBuffers;
+
+    // buffers being filled for each handler
+    private final PacketBuffer[] handlersBuffers;
+
+    // packets per shard of the current buffer, not to touch atomics per packet
+    private final int[] shardCounters;
+
+    /**
+     * allowed constructor
+     * @param _queueHandlersFreeBuffers free buffers' queues of handlers
+     * @param _queueHandlersUsedBuffers queues to pass repacked buffers to handlers
+     */
+    public PacketSharder(
+            Queue<PacketBuffer>[] _queueHandlersFreeBuffers,
+            Queue<PacketBuffer>[] _queueHandlersUsedBuffers)
+    {
+        if (_queueHandlersFreeBuffers.length != _queueHandlersUsedBuffers.length) {
+            throw new RuntimeException("queues must be of the same length");
+        }
+
+        queueHandlersFreeBuffers = _queueHandlersFreeBuffers;
+        queueHandlersUsedBuffers = _queueHandlersUsedBuffers;
+
+        int shards = _queueHandlersFreeBuffers.length;
+        handlersBuffers = new PacketBuffer[shards];
+        shardCounters = new int[shards];
+        shardPackets = new Counter[shards];
+        for (int i = 0; i < shards; i++) {
+            shardPackets[i] = new Counter();
+        }
+    }
+
+    /**
+     * classifies and repacks all packets of the buffer,
+     * full handlers' buffers are passed immediately
+     * @param buffer buffer with received packets, could be reused after the call
+     */
+    public void shard(PacketBuffer buffer) {
+        int shards = handlersBuffers.length;
+
+        for (int i = 0; i < buffer.packets; i++) {
+            int h = buffer.uniShard(i, shards);
+            shardCounters[h]++;
+
+            PacketBuffer hBuffer = handlersBuffers[h];
+            if (hBuffer == null) {
+                hBuffer = take(h);
+            }
+
+            buffer.copySlot(i, hBuffer, hBuffer.packets);
+            hBuffer.packets++;
+
+            if (hBuffer.packets == hBuffer.slots) {
+                pass(h);
+            }
+        }
+
+        for (int h = 0; h < shards; h++) {
+            if (shardCounters[h] != 0) {
+                shardPackets[h].add(shardCounters[h]);
+                shardCounters[h] = 0;
+            }
+        }
+    }
+
+    /**
+     * passes all partially filled buffers to handlers,
+     * called when there is nothing more to receive right now
+     */
+    public void flush() {
+        for (int h = 0; h < handlersBuffers.length; h++) {
+            if ((handlersBuffers[h] != null) && (0 < handlersBuffers[h].packets)) {
+                pass(h);
+            }
+        }
+    }
+
+    /**
+     * takes free buffer of the handler, waits if there are no free buffers
+     * @param h handler index
+     * @return empty buffer to repack packets into
+     */
+    private PacketBuffer take(int h) {
+        PacketBuffer hBuffer = queueHandlersFreeBuffers[h].poll();
+        if (hBuffer == null) {
+            txNoFreeBuffers.increment();
+            while ((hBuffer = queueHandlersFreeBuffers[h].poll()) == null) {
+                Thread.onSpinWait();
+            }
+        }
+        hBuffer.packets = 0;
+        handlersBuffers[h] = hBuffer;
+        return hBuffer;
+    }
+
+    /**
+     * passes accumulated buffer to the handler
+     * @param h handler index
+     */
+    private void pass(int h) {
+        PacketBuffer hBuffer = handlersBuffers[h];
+        handlersBuffers[h] = null;
+
+        // MUST cycle to not loose buffer
+        while (!queueHandlersUsedBuffers[h].offer(hBuffer)) {
+            txUsedBuffersOverflow.increment();
+            Thread.onSpinWait();
+        }
+        txBufferCounter.increment();
+    }
+
+    /**
+     * skew of packets' distribution between shards
+     * @param packets packets per shard
+     * @return max/average ratio, 1.0 is perfect distribution
+     */
+    public static double skew(long[] packets) {
+        long max = 0;
+        long total = 0;
+        for (long p : packets) {
+            max = Math.max(max, p);
+            total += p;
+        }
+        return (total == 0) ? 1.0 : (double) max * packets.length / total;
+    }
+}
@@ -1,5 +1,9 @@
 package xnetp.poc.net;
 
+import xnetp.poc.sockets.SocketFilter;
+
+import java.util.Arrays;
+
 /**
  * Enumeration of xnetp packet types for testing
  */
@@ -51,6 +55,41 @@ public enum PacketType {
         }
     }
 
+    /**
+     * builds filter of valid packets for native receive
+     * @return valid length for each of 256 type codes, -1 for unknown types
+     */
+    public static int[] filterLengths() {
+        int[] lengths = new int[256];
+        Arrays.fill(lengths, -1);
+        for (PacketType type : values()) {
+            if (type != ERROR) {
+                lengths[type.code & 0xFF] = type.length;
+            }
+        }
+        return lengths;
+    }
+
+    /**
+     * adds conditions of valid packets to kernel filter: known types
+     * and payload length diapason of them (per type lengths are
+     * checked by native or java validation)
+     * @param filter filter to populate
+     * @return the same filter
+     */
+    public static SocketFilter filterKernel(SocketFilter filter) {
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        for (PacketType type : values()) {
+            if (type != ERROR) {
+                filter.type(type.code);
+                min = Math.min(min, type.length);
+                max = Math.max(max, type.length);
+            }
+        }
+        return filter.length(min, max);
+    }
+
     @Override
     public String toString() {
         switch (this) {
@@ -2,6 +2,7 @@ package xnetp.poc.net;
 
 import xnetp.poc.affinity.Affinity;
 import xnetp.poc.disk.IStateStore;
+import xnetp.poc.disk.IUniStateStore;
 import xnetp.poc.sockets.RawSocket;
 
 import java.io.IOException;
@@ -9,9 +10,7 @@ import java.util.Queue;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.LockSupport;
 
-import static xnetp.poc.net.PacketReceiver.BUF_PACKETS_MAX;
 import static xnetp.poc.net.PacketReceiver.BUF_PACKET_BYTES_MAX;
 
 /**
@@ -26,30 +25,45 @@ public class RxThreadPacketHandler extends Thread {
 
 
     // will track received buffers
-    public AtomicLong rxIterationCounter = new AtomicLong();
+    public final Counter rxIterationCounter = new Counter();
 
     // indicates there are no used buffers to receive data,
     // packets' receiving takes too much time
-    public AtomicLong rxNoUsedBuffers = new AtomicLong(0);
+    public final Counter rxNoUsedBuffers = new Counter();
 
     // indicates there are no used buffers to receive data, for long time
-    public AtomicLong rxNoUsedBuffersLong = new AtomicLong(0);
+    public final Counter rxNoUsedBuffersLong = new Counter();
 
     // indicates all buffers are used,
     // packets' receiving takes too much time
-    public AtomicLong rxFreeBuffersOverflow = new AtomicLong();
+    public final Counter rxFreeBuffersOverflow = new Counter();
+
+    // will track buffers taken from siblings' lanes
+    public final Counter rxStolenBuffers = new Counter();
 
 
     /**
      * various counters available externally
      */
-    public AtomicLong rxPacketErrors = new AtomicLong();
-    public AtomicLong rxPacketReplies = new AtomicLong();
-    public AtomicLong rxPacketStores = new AtomicLong();
-    public AtomicLong rxPacketWorkload = new AtomicLong();
-    public AtomicLong txErrors = new AtomicLong();
+    public final Counter rxPacketErrors = new Counter();
+    public final Counter rxPacketReplies = new Counter();
+    public final Counter rxPacketStores = new Counter();
+    public final Counter rxPacketWorkload = new Counter();
+    public final Counter txErrors = new Counter();
     public AtomicInteger txErrno = new AtomicInteger();
 
+    // indicates all reply buffers are being sent,
+    // sender thread doesn't keep up with replies
+    public final Counter txNoFreeReplies = new Counter();
+
+    /**
+     * latency from kernel receive timestamp to the end of
+     * buffer's processing and to sending of the reply,
+     * only packets with timestamps are recorded
+     */
+    public final LatencyHistogram processLatency = new LatencyHistogram();
+    public final LatencyHistogram replyLatency = new LatencyHistogram();
+
     /**
      * accumulator to make sure workload is really calculated
      */
@@ -59,6 +73,10 @@ public class RxThreadPacketHandler extends Thread {
     private Queue<PacketBuffer> queueFreeBuffers;
     // there we'll send buffers with packets for processing
     private Queue<PacketBuffer> queueUsedBuffers;
+    // lanes of all handlers to steal from when idle, null - no stealing
+    private Queue<PacketBuffer>[] queuesSiblingsUsedBuffers;
+    // index of own lane among siblings' lanes
+    private int lane;
 
     // percent of packets to store
     private long percentToStore;
@@ -68,14 +86,29 @@ public class RxThreadPacketHandler extends Thread {
     private long workloadIterations;
 
 
-    // pre-allocated buffer for reply data
+    // pre-allocated buffer for reply data, receive timestamps
+    // of requests are kept in slots till replies are sent
     private PacketBuffer sendBuffer;
 
-    // reference to network api
+    // reference to network api, replies are sent synchronously
     private RawSocket.RawSocket6 socket;
 
+    // lane of the reply sender, null - replies are sent synchronously
+    private Queue<PacketBuffer> queueFreeReplies;
+    private Queue<PacketBuffer> queueUsedReplies;
+    // max time to accumulate replies before passing them to sender,
+    // 0 - replies are passed after each received buffer
+    private long replyFlushNs;
+    // time the first reply of the current batch was accumulated at
+    private long replyStartNs;
+
     // instance to save state with
     public IStateStore store;
+    // the same store if it accepts primitive keys, null otherwise
+    private IUniStateStore uniStore;
+
+    // strategy to wait for buffers
+    public final IdleStrategy idle;
 
     // threads' affinity, cpu index
     public final int affinity;
@@ -85,24 +118,43 @@ public class RxThreadPacketHandler extends Thread {
      *
      * @param _queueFreeBuffers
      * @param _queueUsedBuffers
+     * @param _queuesSiblingsUsedBuffers lanes of all handlers to steal buffers from, null - no stealing
      * @param _percentToStore  percent [0..100]
      * @param _percentToReply percent [0..100]
      * @param _workloadIterations
+     * @param _mmsgs max number of packets in received buffers and so in replies
+     * @param _rSocket socket to send replies with synchronously, null if sender is used
+     * @param _queueFreeReplies sender's lane of empty reply buffers, null - synchronous replies
+     * @param _queueUsedReplies sender's lane to pass filled reply buffers to, null - synchronous replies
+     * @param _replyFlushNs max time to accumulate replies before passing them to sender
+     * @param _idle strategy to wait for buffers with
      */
     public RxThreadPacketHandler(
             int _affinity,
             Queue<PacketBuffer> _queueFreeBuffers,
             Queue<PacketBuffer> _queueUsedBuffers,
+            Queue<PacketBuffer>[] _queuesSiblingsUsedBuffers,
             float _percentToStore,
             float _percentToReply,
             long _workloadIterations,
+            int _mmsgs,
             byte[] _replyAddress,
             RawSocket.RawSocket6 _rSocket,
-            IStateStore _store)
+            Queue<PacketBuffer> _queueFreeReplies,
+            Queue<PacketBuffer> _queueUsedReplies,
+            long _replyFlushNs,
+            IStateStore _store,
+            IdleStrategy _idle)
     {
         affinity = _affinity;
         queueFreeBuffers = _queueFreeBuffers;
         queueUsedBuffers = _queueUsedBuffers;
+        queuesSiblingsUsedBuffers = _queuesSiblingsUsedBuffers;
+        if (queuesSiblingsUsedBuffers != null) {
+            while (queuesSiblingsUsedBuffers[lane] != queueUsedBuffers) {
+                lane++;
+            }
+        }
 
         // normalize percents to use with fixed point
         percentToStore = (long) (PERCENT_LONG_NORMALIZED * _percentToStore / 100f);
@@ -112,18 +164,43 @@ public class RxThreadPacketHandler extends Thread {
 
         socket = _rSocket;
         store = _store;
+        uniStore = (_store instanceof IUniStateStore) ? (IUniStateStore) _store : null;
+        idle = _idle;
+
+        queueFreeReplies = _queueFreeReplies;
+        queueUsedReplies = _queueUsedReplies;
+        replyFlushNs = _replyFlushNs;
+
+        if (queueUsedReplies != null) {
+            // sender's buffers are already populated and bound
+            sendBuffer = queueFreeReplies.poll();
+        } else {
+            // preallocate send buffer and prepare
+            // native headers once for all replies
+            sendBuffer = allocateReplies(_mmsgs, _replyAddress);
+            if (socket != null) {
+                sendBuffer.batch = socket.bind(sendBuffer.buffer, _mmsgs, BUF_PACKET_BYTES_MAX);
+            }
+        }
+    }
 
-        // preallocate send buffer and populate it
-        sendBuffer = PacketBuffer.allocate(BUF_PACKETS_MAX, BUF_PACKET_BYTES_MAX);
-        for (int i = 0; i < BUF_PACKETS_MAX; i++) {
+    /**
+     * allocates buffer for replies and populates it with templates
+     * @param slots max number of replies
+     * @param replyAddress destination address of all replies
+     * @return buffer without packets
+     */
+    static PacketBuffer allocateReplies(int slots, byte[] replyAddress) {
+        PacketBuffer buffer = PacketBuffer.allocate(slots, BUF_PACKET_BYTES_MAX);
+        for (int i = 0; i < slots; i++) {
             // destination addresses
-            sendBuffer.populateSlotAddress(i, _replyAddress);
+            buffer.populateSlotAddress(i, replyAddress);
             // headers with fixed values
-            sendBuffer.populatePacketExtHeaderTemplate(i);
+            buffer.populatePacketExtHeaderTemplate(i);
             // test payload
-            sendBuffer.populatePacketPayloadTemplate(i, BUF_PACKET_BYTES_MAX);
+            buffer.populatePacketPayloadTemplate(i, BUF_PACKET_BYTES_MAX);
         }
-
+        return buffer;
     }
 
     @Override
@@ -136,43 +213,29 @@ public class RxThreadPacketHandler extends Thread {
 
 
         while (true) {
-            PacketBuffer buffer = queueUsedBuffers.poll();
+            PacketBuffer buffer = poll();
             if (buffer == null) {
                 // no ready buffers
-                rxNoUsedBuffers.incrementAndGet();
-
-                // run very quick waits
-                int counter = 100;
-                while (((buffer = queueUsedBuffers.poll()) == null) && (0 < --counter)) {
-                    Thread.onSpinWait();
-                }
-                // back off and run long waits till data is available
-                if ((counter == 0) && (buffer == null)) {
-                    // remember long waiting
-                    rxNoUsedBuffersLong.incrementAndGet();
-
-                    counter = 10;
-                    while (((buffer = queueUsedBuffers.poll()) == null) && (0 < --counter)) {
-                        LockSupport.parkNanos(1);
+                rxNoUsedBuffers.increment();
+
+                // wait till data is available, remember long waiting
+                boolean waitingLong = false;
+                do {
+                    // don't keep accumulated replies while idle
+                    flushReplies();
+                    if ((idle.idle() != IdleStrategy.TIER_SPIN) && !waitingLong) {
+                        waitingLong = true;
+                        rxNoUsedBuffersLong.increment();
                     }
-
-                    // still no buffer, sleep to release the cpu
-                    if ((counter == 0) && (buffer == null)) {
-                        while ((buffer = queueUsedBuffers.poll()) == null) {
-                            try {
-                                Thread.sleep(1);
-                            } catch (InterruptedException e) {
-                            }
-                        }
-                    }
-                }
+                } while ((buffer = poll()) == null);
+                idle.reset();
             }
 
             //
-            //rxIterationCounter.incrementAndGet();
+            //rxIterationCounter.increment();
 
             // count received buffers
-            rxIterationCounter.incrementAndGet();
+            rxIterationCounter.increment();
 
             process(buffer);
 
@@ -180,7 +243,7 @@ public class RxThreadPacketHandler extends Thread {
             // return buffer to receiver, MUST cycle to not loose buffer
             while (!queueFreeBuffers.offer(buffer)) {
                 // that is strange, there always should be room there
-                rxFreeBuffersOverflow.incrementAndGet();
+                rxFreeBuffersOverflow.increment();
                 Thread.onSpinWait();
             }
         }
@@ -188,15 +251,40 @@ public class RxThreadPacketHandler extends Thread {
     }
 
     /**
-     * processes packets' data, imitates xnetp
+     * polls own lane and steals from siblings' lanes
+     * if own lane is empty and stealing is enabled
+     * @return buffer with packets or null
+     */
+    private PacketBuffer poll() {
+        PacketBuffer buffer = queueUsedBuffers.poll();
+        if ((buffer == null) && (queuesSiblingsUsedBuffers != null)) {
+            // start from the next sibling, so idle handlers
+            // don't hit the same lane
+            int lanes = queuesSiblingsUsedBuffers.length;
+            for (int i = 1; i < lanes; i++) {
+                if ((buffer = queuesSiblingsUsedBuffers[(lane + i) % lanes].poll()) != null) {
+                    rxStolenBuffers.increment();
+                    break;
+                }
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * processes packets' data, imitates xnetp,
+     * package visible for benchmarks
      * @param buffer buffer with packets
      */
-    private void process(PacketBuffer buffer) {
+    void process(PacketBuffer buffer) {
 
         ThreadLocalRandom random = ThreadLocalRandom.current();
 
-        // reset number of replies
-        sendBuffer.packets = 0;
+        // replies are accumulated across received buffers
+        // only if they are passed to sender
+        if (queueUsedReplies == null) {
+            sendBuffer.packets = 0;
+        }
 
         // precess received packets
         for (int i = 0; i < buffer.packets; i++) {
@@ -205,37 +293,49 @@ public class RxThreadPacketHandler extends Thread {
 
             // skip error packets, but count them
             if (!valid) {
-                rxPacketErrors.incrementAndGet();
+                rxPacketErrors.increment();
                 continue;
             }
 
             boolean processed = false;
             if (random.nextInt(PERCENT_LONG_NORMALIZED) < percentToStore) {
                 store(buffer, i);
-                rxPacketStores.incrementAndGet();
+                rxPacketStores.increment();
                 processed = true;
             }
 
             if (random.nextInt(PERCENT_LONG_NORMALIZED) < percentToReply) {
                 accumulateReply(buffer, i);
-                rxPacketReplies.incrementAndGet();
+                rxPacketReplies.increment();
                 processed = true;
 
                 // simulate workload for all replies
                 if (0 < workloadIterations) {
                     __workloadAccumulator.set(workload());
-                    rxPacketWorkload.incrementAndGet();
+                    rxPacketWorkload.increment();
                 }
             }
 
 //            if (!processed) {
 //                __workloadAccumulator.set(workload());
-//                rxPacketWorkload.incrementAndGet();
+//                rxPacketWorkload.increment();
 //            }
         }
 
+        // all packets of the buffer are processed,
+        // clock is read once per buffer
+        long now = LatencyHistogram.realtimeNanos();
+        for (int i = 0; i < buffer.packets; i++) {
+            long timestamp = buffer.getTimestamp(i);
+            if (timestamp != 0) {
+                processLatency.record(now - timestamp);
+            }
+        }
+
         // packets number updated by accumulateReply
-        if (sendBuffer.packets > 0) {
+        if (queueUsedReplies != null) {
+            flushReplies();
+        } else if (sendBuffer.packets > 0) {
             sendReplies();
         }
     }
@@ -247,9 +347,13 @@ public class RxThreadPacketHandler extends Thread {
      * @param rxSlot slot in rx buffer
      */
     private void store(PacketBuffer rxBuffer, int rxSlot) {
-        byte[] uni = rxBuffer.getUNI(rxSlot);
         try {
-            store.save(uni);
+            if (uniStore != null) {
+                // no allocation per packet
+                uniStore.save(rxBuffer.getUNIHigh(rxSlot), rxBuffer.getUNILow(rxSlot));
+            } else {
+                store.save(rxBuffer.getUNI(rxSlot));
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -261,21 +365,77 @@ public class RxThreadPacketHandler extends Thread {
      * @param rxSlot slot in rx buffer
      */
     private void accumulateReply(PacketBuffer rxBuffer, int rxSlot) {
+        if (sendBuffer.packets == sendBuffer.slots) {
+            // full batch, could happen with sender only
+            // as replies are accumulated across received buffers
+            publishReplies();
+        }
+        if (sendBuffer.packets == 0) {
+            replyStartNs = System.nanoTime();
+        }
+
         byte pType = rxBuffer.getPacketTypeAsByte(rxSlot);
 
         sendBuffer.setPacketType(sendBuffer.packets, pType);
         sendBuffer.setPacketLength(sendBuffer.packets, PacketType.byType(pType).length);
+        sendBuffer.setTimestamp(sendBuffer.packets, rxBuffer.getTimestamp(rxSlot));
         sendBuffer.packets++;
     }
 
     /**
-     * sends accumulated replies to the specified address
+     * passes accumulated replies to sender if batch is full or
+     * accumulated for too long, does nothing in synchronous mode
+     */
+    private void flushReplies() {
+        if ((queueUsedReplies == null) || (sendBuffer.packets == 0)) {
+            return;
+        }
+        if ((sendBuffer.packets == sendBuffer.slots)
+                || (replyFlushNs <= System.nanoTime() - replyStartNs))
+        {
+            publishReplies();
+        }
+    }
+
+    /**
+     * passes current reply buffer to sender and takes the next
+     * empty one, waits if all buffers are being sent
+     */
+    private void publishReplies() {
+        // never full as buffers are limited by capacity
+        queueUsedReplies.offer(sendBuffer);
+
+        PacketBuffer next = queueFreeReplies.poll();
+        if (next == null) {
+            txNoFreeReplies.increment();
+            while ((next = queueFreeReplies.poll()) == null) {
+                Thread.onSpinWait();
+            }
+        }
+        sendBuffer = next;
+    }
+
+    /**
+     * sends accumulated replies to the specified address,
+     * replies are only accumulated if there is no socket (benchmarks)
      */
     private void sendReplies() {
-        int result = socket.sendmmsg(sendBuffer.buffer, sendBuffer.packets, sendBuffer.slotSize);
+        if (socket == null) {
+            return;
+        }
+        int result = sendBuffer.batch.sendmmsg(sendBuffer.packets);
         if (result == -1) {
             txErrno.set(socket.errno());
-            txErrors.incrementAndGet();
+            txErrors.increment();
+            return;
+        }
+
+        long now = LatencyHistogram.realtimeNanos();
+        for (int i = 0; i < result; i++) {
+            long timestamp = sendBuffer.getTimestamp(i);
+            if (timestamp != 0) {
+                replyLatency.record(now - timestamp);
+            }
         }
     }
 
@@ -1,22 +1,100 @@
 package xnetp.poc.net;
 
-import org.jctools.queues.atomic.SpscAtomicArrayQueue;
+import xnetp.poc.affinity.Affinity;
+
+import java.util.Queue;
 
 /**
  * processes received buffers with packets and offloads
- * them for further processing
+ * them for further processing: packets are classified by UNI
+ * and repacked into per handler buffers, so each handler
+ * always sees the same subset of nodes
  */
-public class RxThreadPacketOffloader implements Runnable {
+public class RxThreadPacketOffloader extends Thread {
+
+    // will track processed received buffers
+    public final Counter rxIterationCounter = new Counter();
+
+    // will track repacked packets
+    public final Counter rxPacketCounter = new Counter();
+
+    // indicates there are no received buffers,
+    // partial handlers' buffers are flushed in this case
+    public final Counter rxNoUsedBuffers = new Counter();
+
+
+
+    // here we return received buffers to receiver
+    private final Queue<PacketBuffer> queueFreeBuffers;
+    // here we get buffers from receiver
+    private final Queue<PacketBuffer> queueUsedBuffers;
+
+    // repacks packets into handlers' buffers
+    public final PacketSharder sharder;
+
+    // threads' affinity, cpu index
+    public final int affinity;
 
+    // strategy to wait for received buffers
+    public final IdleStrategy idle;
+
+    /**
+     * allowed constructor
+     * @param _affinity cpu index to pin thread to, 0 - no pinning
+     * @param _queueFreeBuffers queue to return processed received buffers to receiver
+     * @param _queueUsedBuffers queue with received buffers
+     * @param _queueHandlersFreeBuffers free buffers' queues of handlers
+     * @param _queueHandlersUsedBuffers queues to pass repacked buffers to handlers
+     * @param _idle strategy to wait for received buffers with
+     */
     public RxThreadPacketOffloader(
-            SpscAtomicArrayQueue _queueFreeBuffers,
-            SpscAtomicArrayQueue _queueUsedBuffers)
+            int _affinity,
+            Queue<PacketBuffer> _queueFreeBuffers,
+            Queue<PacketBuffer> _queueUsedBuffers,
+            Queue<PacketBuffer>[] _queueHandlersFreeBuffers,
+            Queue<PacketBuffer>[] _queueHandlersUsedBuffers,
+            IdleStrategy _idle)
     {
-
+        affinity = _affinity;
+        idle = _idle;
+        queueFreeBuffers = _queueFreeBuffers;
+        queueUsedBuffers = _queueUsedBuffers;
+        sharder = new PacketSharder(_queueHandlersFreeBuffers, _queueHandlersUsedBuffers);
     }
 
     @Override
     public void run() {
 
+        // set threads' affinity if requested
+        if (affinity > 0) {
+            Affinity.setAffinity(affinity);
+        }
+
+        while (true) {
+            PacketBuffer buffer = queueUsedBuffers.poll();
+            if (buffer == null) {
+                rxNoUsedBuffers.increment();
+
+                // nothing more to accumulate now, don't delay
+                // packets already repacked
+                sharder.flush();
+
+                while ((buffer = queueUsedBuffers.poll()) == null) {
+                    idle.idle();
+                }
+                idle.reset();
+            }
+
+            rxIterationCounter.increment();
+
+            // classify and repack
+            sharder.shard(buffer);
+            rxPacketCounter.add(buffer.packets);
+
+            // return buffer to receiver, MUST cycle to not loose buffer
+            while (!queueFreeBuffers.offer(buffer)) {
+                Thread.onSpinWait();
+            }
+        }
     }
 }
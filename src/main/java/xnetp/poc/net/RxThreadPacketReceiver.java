@@ -5,7 +5,6 @@ import xnetp.poc.sockets.RawSocket;
 
 import java.util.Queue;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 
 import static xnetp.poc.net.PacketReceiver.BUF_PACKET_BYTES_MAX;
 
@@ -17,27 +16,30 @@ import static xnetp.poc.net.PacketReceiver.BUF_PACKET_BYTES_MAX;
 public class RxThreadPacketReceiver extends Thread {
 
     // will track iterations
-    public AtomicLong rxIterationCounter = new AtomicLong();
+    public final Counter rxIterationCounter = new Counter();
 
     // will track received packets
-    public AtomicLong rxPacketCounter = new AtomicLong();
+    public final Counter rxPacketCounter = new Counter();
 
     // will track errors during receive
-    public AtomicLong rxErrors = new AtomicLong();
+    public final Counter rxErrors = new Counter();
+
+    // will track packets dropped by native filter
+    public final Counter rxRejected = new Counter();
 
     // last errno during packets' receive
     public AtomicInteger rxErrno = new AtomicInteger();
 
     // indicates there are no empty buffers to receive data,
     // processing takes too much time
-    public AtomicLong rxNoFreeBuffers = new AtomicLong();
+    public final Counter rxNoFreeBuffers = new Counter();
 
     // indicates there are no free buffers to receive data, for long time
-    public AtomicLong rxNoFreeBuffersLong = new AtomicLong(0);
+    public final Counter rxNoFreeBuffersLong = new Counter();
 
     // indicates all buffers are used,
     // processing takes too much time
-    public AtomicLong rxUsedBuffersOverflow = new AtomicLong();
+    public final Counter rxUsedBuffersOverflow = new Counter();
 
 
     // here we'll get free buffers to receive packets to
@@ -46,7 +48,7 @@ public class RxThreadPacketReceiver extends Thread {
     private Queue<PacketBuffer>[] queueUsedBuffers;
 
     // threads' affinity, cput index
-    private int affinity;
+    public final int affinity;
 
     // number of packets to receive for one syscall
     private int mmsgs;
@@ -54,6 +56,17 @@ public class RxThreadPacketReceiver extends Thread {
     // reference to network api
     private RawSocket.RawSocket6 socket;
 
+    // batch to receive into packed buffers, null for fixed slots
+    private RawSocket.MmsgBatch6 packedBatch;
+
+    // inline uni sharding, received buffers are repacked into
+    // handlers' buffers and reused by this thread, null to pass
+    // buffers themselves
+    public final PacketSharder sharder;
+
+    // strategy to wait for free buffers
+    public final IdleStrategy idle;
+
     /**
      *
      */
@@ -62,9 +75,13 @@ public class RxThreadPacketReceiver extends Thread {
             int _mmsgs,
             Queue<PacketBuffer>[] _queueFreeBuffers,
             Queue<PacketBuffer>[] _queueUsedBuffers,
-            RawSocket.RawSocket6 _rSocket)
+            RawSocket.RawSocket6 _rSocket,
+            RawSocket.MmsgBatch6 _packedBatch,
+            PacketSharder _sharder,
+            IdleStrategy _idle)
     {
-        if (_queueFreeBuffers.length != _queueUsedBuffers.length) {
+        // free buffers could be in the only shared pool
+        if ((_queueFreeBuffers.length != _queueUsedBuffers.length) && (_queueFreeBuffers.length != 1)) {
             throw new RuntimeException("queues must be of the same length");
         }
 
@@ -74,6 +91,9 @@ public class RxThreadPacketReceiver extends Thread {
         queueUsedBuffers = _queueUsedBuffers;
 
         socket = _rSocket;
+        packedBatch = _packedBatch;
+        sharder = _sharder;
+        idle = _idle;
     }
 
     @Override
@@ -86,8 +106,9 @@ public class RxThreadPacketReceiver extends Thread {
 
 
         int queues = queueFreeBuffers.length;
+        int lanes = queueUsedBuffers.length;
         int indexQueueFree = queues - 1;
-        int indexQueueUsed;// = queues - 1;
+        int indexQueueUsed = lanes - 1;
         while (true) {
             // switch to the next queue to try on this turn
             // this drops performance as 4x !!! in synthetic test
@@ -96,53 +117,81 @@ public class RxThreadPacketReceiver extends Thread {
             // try 1st queue at first
             PacketBuffer buffer = queueFreeBuffers[indexQueueFree].poll();
             if (buffer == null) {
-                rxNoFreeBuffers.incrementAndGet();
-                indexQueueFree = (indexQueueFree == 0) ? queues - 1 : indexQueueFree - 1;
+                rxNoFreeBuffers.increment();
 
-                int counter = 1000;
-                while (((buffer = queueFreeBuffers[indexQueueFree].poll()) == null) && (0 < --counter)) {
+                // cycle free queues till data is available,
+                // remember long waiting
+                boolean waitingLong = false;
+                do {
                     indexQueueFree = (indexQueueFree == 0) ? queues - 1 : indexQueueFree - 1;
-                    Thread.onSpinWait();
-                }
-                // back off and run long waits till data is available
-                if ((counter == 0) && (buffer == null)) {
-                    rxNoFreeBuffersLong.incrementAndGet();
-                    while ((buffer = queueFreeBuffers[indexQueueFree].poll()) == null) {
-                        indexQueueFree = (indexQueueFree == 0) ? queues - 1 : indexQueueFree - 1;
-                        try {
-                            Thread.sleep(1);
-                        } catch (InterruptedException e) {
-                        }
+                    if ((idle.idle() != IdleStrategy.TIER_SPIN) && !waitingLong) {
+                        waitingLong = true;
+                        rxNoFreeBuffersLong.increment();
                     }
-                }
-
-
+                } while ((buffer = queueFreeBuffers[indexQueueFree].poll()) == null);
+                idle.reset();
             }
 
-            // get data
-            int packets = socket.recvmmsg(buffer.buffer, mmsgs, BUF_PACKET_BYTES_MAX);
+            // get data, use prepared headers if buffer is bound to the socket
+            int packets;
+            RawSocket.MmsgBatch6 batch = buffer.packed ? packedBatch : buffer.batch;
+            if (buffer.packed) {
+                packets = packedBatch.recvmmsgPacked(buffer.buffer, buffer.slots, mmsgs);
+            } else if (buffer.batch != null) {
+                packets = buffer.batch.recvmmsg(mmsgs);
+            } else {
+                packets = socket.recvmmsg(buffer.buffer, mmsgs, BUF_PACKET_BYTES_MAX);
+            }
             if (packets == -1) {
                 // remember last error only
-                rxErrors.incrementAndGet();
-                //rxErrno.set(rSocket.errno());
+                rxErrors.increment();
+                rxErrno.set(socket.errno());
+                // buffer is not used, return it, receiver with inline
+                // sharding owns only few buffers
+                queueFreeBuffers[indexQueueFree].offer(buffer);
                 continue;
             }
 
             // count total received packets
-            rxPacketCounter.addAndGet(packets);
-            rxIterationCounter.incrementAndGet();
+            rxPacketCounter.add(packets);
+            rxIterationCounter.increment();
+
+            // invalid packets are dropped in native code,
+            // nothing to pass if all of them are rejected
+            if ((batch != null) && batch.filtered) {
+                rxRejected.add(batch.rejected());
+                if (packets == 0) {
+                    queueFreeBuffers[indexQueueFree].offer(buffer);
+                    continue;
+                }
+            }
 
             // save number of packets received
             buffer.packets = packets;
 
+            if (sharder != null) {
+                sharder.shard(buffer);
+                // socket is drained, don't delay packets
+                // till the next receive
+                if (packets < mmsgs) {
+                    sharder.flush();
+                }
+                // buffer is private, just reuse it
+                queueFreeBuffers[indexQueueFree].offer(buffer);
+                continue;
+            }
+
             // we MUST cycle to not loose buffer,
             // use the same queue to return the buffer,
-            // only helps in case if we cycled with free buffers queue
-            indexQueueUsed = indexQueueFree;
+            // only helps in case if we cycled with free buffers queue,
+            // lanes are just rotated with the shared pool
+            indexQueueUsed = (queues == lanes)
+                    ? indexQueueFree
+                    : (indexQueueUsed == 0) ? lanes - 1 : indexQueueUsed - 1;
             while (!queueUsedBuffers[indexQueueUsed].offer(buffer)) {
                 // remember error
-                rxUsedBuffersOverflow.incrementAndGet();
-                indexQueueUsed = (indexQueueUsed == 0) ? queues - 1 : indexQueueUsed - 1;
+                rxUsedBuffersOverflow.increment();
+                indexQueueUsed = (indexQueueUsed == 0) ? lanes - 1 : indexQueueUsed - 1;
                 Thread.onSpinWait();
             }
 
@@ -150,7 +199,7 @@ public class RxThreadPacketReceiver extends Thread {
             long tNow = System.nanoTime();
             if (5e9 < tNow - tStart) {
                 // print statistics
-                long rxPackets = rxPacketCounter.getAndSet(0);
+                long rxPackets = rxPacketCounter.delta();
                 System.out.println(String.format("receive pps: %,10d", (int)(1E9d / (tNow - tStart) * rxPackets)));
                 // prepare for the next turn
                 tStart = tNow;
@@ -0,0 +1,101 @@
+package xnetp.poc.net;
+
+import xnetp.poc.affinity.Affinity;
+import xnetp.poc.sockets.PacketVisitor;
+import xnetp.poc.sockets.RxRing;
+
+import java.util.Queue;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * rx ring block handler thread for pipeline mode,
+ * takes indices of acquired blocks from poller, processes blocks
+ * and releases each one to kernel as soon as it's processed,
+ * blocks could be released out of order by different handlers
+ */
+public class RxThreadRingBlockHandler extends Thread {
+
+    // will track processed blocks
+    public final Counter rxBlockCounter = new Counter();
+
+    // will track processed packets
+    public final Counter rxPacketCounter = new Counter();
+
+    // indicates there are no blocks to process
+    public final Counter rxNoBlocks = new Counter();
+
+    // indicates there are no blocks to process, for long time
+    public final Counter rxNoBlocksLong = new Counter();
+
+
+    // ring the blocks belong to
+    private final RxRing ring;
+
+    // here we'll get blocks to process
+    private final Queue<Integer> queueBlocks;
+
+    // visitor to process packets with, owned by this thread
+    private final PacketVisitor visitor;
+
+    // threads' affinity, cpu index
+    public final int affinity;
+
+    /**
+     * allowed constructor
+     * @param _affinity cpu index to pin thread to, 0 - no pinning
+     * @param _ring ring the blocks belong to
+     * @param _queueBlocks queue with indices of acquired blocks
+     * @param _visitor packet visitor, called from this thread only
+     */
+    public RxThreadRingBlockHandler(
+            int _affinity,
+            RxRing _ring,
+            Queue<Integer> _queueBlocks,
+            PacketVisitor _visitor)
+    {
+        affinity = _affinity;
+        ring = _ring;
+        queueBlocks = _queueBlocks;
+        visitor = _visitor;
+    }
+
+    @Override
+    public void run() {
+
+        // set threads' affinity if requested
+        if (affinity > 0) {
+            Affinity.setAffinity(affinity);
+        }
+
+        while (!isInterrupted()) {
+            Integer block = queueBlocks.poll();
+            if (block == null) {
+                // no ready blocks
+                rxNoBlocks.increment();
+
+                // run very quick waits
+                int counter = 100;
+                while (((block = queueBlocks.poll()) == null) && (0 < --counter)) {
+                    Thread.onSpinWait();
+                }
+                // back off and run long waits till data is available
+                if (block == null) {
+                    rxNoBlocksLong.increment();
+                    while ((block = queueBlocks.poll()) == null) {
+                        LockSupport.parkNanos(1000);
+                        if (isInterrupted()) {
+                            return;
+                        }
+                    }
+                }
+            }
+
+            int packets = ring.process(block, visitor);
+            ring.release(block);
+
+            rxBlockCounter.increment();
+            rxPacketCounter.add(packets);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package xnetp.poc.net;
+
+import xnetp.poc.affinity.Affinity;
+import xnetp.poc.sockets.RxRing;
+
+import java.util.Queue;
+
+
+/**
+ * rx ring poller thread for pipeline mode, waits for retired blocks
+ * and passes their indices to handler threads without processing,
+ * blocks are released by handlers
+ */
+public class RxThreadRingPoller extends Thread {
+
+    // timeout in ms for one poll call
+    private static final int POLL_TIMEOUT_MS = 100;
+
+    // will track blocks passed to handlers
+    public final Counter rxBlockCounter = new Counter();
+
+    // indicates the next block is still processed by handlers,
+    // processing takes too much time and kernel could drop packets
+    public final Counter rxBlocksBusy = new Counter();
+
+    // indicates handlers' queue is full, that is strange
+    // as queue must have room for all blocks
+    public final Counter rxQueueOverflow = new Counter();
+
+    // will track poll errors
+    public final Counter rxErrors = new Counter();
+
+
+    // ring to poll
+    public final RxRing ring;
+
+    // there we'll send indices of blocks for processing
+    private final Queue<Integer> queueBlocks;
+
+    // preallocated block indices to not box them on each turn
+    private final Integer[] blockIds;
+
+    // threads' affinity, cpu index
+    public final int affinity;
+
+    /**
+     * allowed constructor
+     * @param _affinity cpu index to pin thread to, 0 - no pinning
+     * @param _ring ring to poll
+     * @param _queueBlocks queue to pass blocks to handlers, must have room for all blocks of the ring
+     */
+    public RxThreadRingPoller(
+            int _affinity,
+            RxRing _ring,
+            Queue<Integer> _queueBlocks)
+    {
+        affinity = _affinity;
+        ring = _ring;
+        queueBlocks = _queueBlocks;
+
+        blockIds = new Integer[_ring.blocks];
+        for (int i = 0; i < blockIds.length; i++) {
+            blockIds[i] = i;
+        }
+    }
+
+    @Override
+    public void run() {
+
+        // set threads' affinity if requested
+        if (affinity > 0) {
+            Affinity.setAffinity(affinity);
+        }
+
+        while (!isInterrupted()) {
+            int block = ring.acquire(POLL_TIMEOUT_MS);
+            if (block < 0) {
+                if (block == RxRing.BLOCK_BUSY) {
+                    // wait for handlers to release the block
+                    rxBlocksBusy.increment();
+                    Thread.onSpinWait();
+                } else if (block == RxRing.BLOCK_ERROR) {
+                    rxErrors.increment();
+                }
+                continue;
+            }
+
+            rxBlockCounter.increment();
+
+            // we MUST cycle to not loose the block
+            while (!queueBlocks.offer(blockIds[block])) {
+                rxQueueOverflow.increment();
+                Thread.onSpinWait();
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package xnetp.poc.net;
+
+import xnetp.poc.affinity.Affinity;
+import xnetp.poc.sockets.PacketVisitor;
+import xnetp.poc.sockets.RxRing;
+
+
+
+/**
+ * rx ring reader thread, polls one ring of a fanout group
+ * and passes packets of retired blocks to visitor
+ */
+public class RxThreadRingReader extends Thread {
+
+    // timeout in ms for one poll call, allows to check for interruption
+    private static final int POLL_TIMEOUT_MS = 100;
+
+    // will track processed blocks
+    public final Counter rxBlockCounter = new Counter();
+
+    // will track received packets
+    public final Counter rxPacketCounter = new Counter();
+
+    // will track poll errors
+    public final Counter rxErrors = new Counter();
+
+
+    // ring to read, owned by this thread
+    public final RxRing ring;
+
+    // visitor to process packets with
+    private final PacketVisitor visitor;
+
+    // threads' affinity, cpu index
+    public final int affinity;
+
+    /**
+     * allowed constructor
+     * @param _affinity cpu index to pin thread to, 0 - no pinning
+     * @param _ring ring to read packets from
+     * @param _visitor packet visitor, called from this thread only
+     */
+    public RxThreadRingReader(
+            int _affinity,
+            RxRing _ring,
+            PacketVisitor _visitor)
+    {
+        affinity = _affinity;
+        ring = _ring;
+        visitor = _visitor;
+    }
+
+    @Override
+    public void run() {
+
+        // set threads' affinity if requested
+        if (affinity > 0) {
+            Affinity.setAffinity(affinity);
+        }
+
+        while (!isInterrupted()) {
+            int packets = ring.poll(visitor, POLL_TIMEOUT_MS);
+            if (packets == -1) {
+                rxErrors.increment();
+                continue;
+            }
+            if (packets == 0) {
+                continue;
+            }
+
+            rxBlockCounter.increment();
+            rxPacketCounter.add(packets);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package xnetp.poc.net;
+
+import org.jctools.queues.atomic.SpscAtomicArrayQueue;
+import xnetp.poc.affinity.Affinity;
+import xnetp.poc.sockets.RawSocket;
+
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static xnetp.poc.net.PacketReceiver.BUF_PACKET_BYTES_MAX;
+
+/**
+ * sends replies accumulated by handlers, so handlers don't
+ * block in sendmmsg and stay on the receive path.
+ *
+ * each handler has own lane: two or more reply buffers circulate
+ * between free (sender -> handler) and used (handler -> sender)
+ * queues, handler fills one buffer while others are being sent
+ */
+public class TxThreadReplySender extends Thread {
+
+    // will track sent batches (sendmmsg calls)
+    public final Counter txBatches = new Counter();
+
+    // will track sent packets
+    public final Counter txPackets = new Counter();
+
+    // will track send errors
+    public final Counter txErrors = new Counter();
+    public AtomicInteger txErrno = new AtomicInteger();
+
+    // indicates there are no batches to send (waiting episodes)
+    public final Counter txNoUsedBuffers = new Counter();
+
+    /**
+     * latency from kernel receive timestamp of requests
+     * to sending of the replies
+     */
+    public final LatencyHistogram replyLatency = new LatencyHistogram();
+
+    // handlers get empty reply buffers here, lane per handler
+    public final Queue<PacketBuffer>[] queuesFreeReplies;
+    // handlers pass filled reply buffers here, lane per handler
+    public final Queue<PacketBuffer>[] queuesUsedReplies;
+
+    // socket to send replies with
+    private final RawSocket.RawSocket6 socket;
+
+    // lane to start polling from
+    private int lane = 0;
+
+    // strategy to wait for reply batches
+    public final IdleStrategy idle;
+
+    // threads' affinity, cpu index
+    public final int affinity;
+
+
+    /**
+     * allowed constructor, allocates lanes with reply buffers
+     * @param _affinity cpu index to pin thread to, 0 - no pinning
+     * @param _handlers number of handlers (lanes)
+     * @param _buffers reply buffers per handler, 2 at least
+     * @param _slots max number of replies in one buffer
+     * @param _replyAddress destination address of all replies
+     * @param _socket socket to send replies with
+     * @param _idle strategy to wait for reply batches with
+     */
+    @SuppressWarnings("unchecked")
+    public TxThreadReplySender(
+            int _affinity,
+            int _handlers,
+            int _buffers,
+            int _slots,
+            byte[] _replyAddress,
+            RawSocket.RawSocket6 _socket,
+            IdleStrategy _idle)
+    {
+        affinity = _affinity;
+        socket = _socket;
+        idle = _idle;
+
+        queuesFreeReplies = new Queue[_handlers];
+        queuesUsedReplies = new Queue[_handlers];
+        for (int h = 0; h < _handlers; h++) {
+            queuesFreeReplies[h] = new SpscAtomicArrayQueue<>(_buffers);
+            queuesUsedReplies[h] = new SpscAtomicArrayQueue<>(_buffers);
+            for (int b = 0; b < _buffers; b++) {
+                PacketBuffer buffer = RxThreadPacketHandler.allocateReplies(_slots, _replyAddress);
+                buffer.batch = socket.bind(buffer.buffer, _slots, BUF_PACKET_BYTES_MAX);
+                queuesFreeReplies[h].offer(buffer);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+
+        // set threads' affinity if requested
+        if (affinity > 0) {
+            Affinity.setAffinity(affinity);
+        }
+
+        int lanes = queuesUsedReplies.length;
+        boolean waiting = false;
+        while (true) {
+            // round robin over lanes, so busy handler
+            // doesn't delay replies of others
+            PacketBuffer buffer = null;
+            for (int i = 0; (i < lanes) && (buffer == null); i++) {
+                buffer = queuesUsedReplies[lane].poll();
+                if (buffer == null) {
+                    lane = (lane + 1 == lanes) ? 0 : lane + 1;
+                }
+            }
+
+            if (buffer == null) {
+                // count waiting episodes, not iterations
+                if (!waiting) {
+                    waiting = true;
+                    txNoUsedBuffers.increment();
+                }
+                idle.idle();
+                continue;
+            }
+            if (waiting) {
+                waiting = false;
+                idle.reset();
+            }
+
+            send(buffer);
+
+            // return buffer to handler, there is always room
+            // as number of buffers is limited by capacity
+            buffer.packets = 0;
+            queuesFreeReplies[lane].offer(buffer);
+            lane = (lane + 1 == lanes) ? 0 : lane + 1;
+        }
+    }
+
+    /**
+     * sends all replies of the buffer
+     * @param buffer buffer with replies
+     */
+    private void send(PacketBuffer buffer) {
+        int result = buffer.batch.sendmmsg(buffer.packets);
+        if (result == -1) {
+            txErrno.set(socket.errno());
+            txErrors.increment();
+            return;
+        }
+        txBatches.increment();
+        txPackets.add(result);
+
+        long now = LatencyHistogram.realtimeNanos();
+        for (int i = 0; i < result; i++) {
+            long timestamp = buffer.getTimestamp(i);
+            if (timestamp != 0) {
+                replyLatency.record(now - timestamp);
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package xnetp.poc.sockets;
+
+import java.nio.ByteBuffer;
+
+/**
+ * callback used by {@link RxRing} to hand packets of a retired block
+ * to the application without copying them out of the ring,
+ * all offsets are absolute indices inside the ring buffer and
+ * are valid only during the call, block is released to kernel
+ * right after the last packet of the block is visited
+ */
+@FunctionalInterface
+public interface PacketVisitor {
+
+    /**
+     * called for each packet in a retired block
+     * @param ring ring buffer (native byte order), must not be modified outside of the offsets passed
+     * @param packet offset of the packet's tpacket3_hdr
+     * @param mac offset of the ethernet header
+     * @param net offset of the network (ip) header
+     * @param payload offset of the network payload, right after the fixed ip header,
+     *                equals to net for non ip packets
+     * @param length number of bytes captured starting from mac offset (tp_snaplen)
+     */
+    void visit(ByteBuffer ring, int packet, int mac, int net, int payload, int length);
+}
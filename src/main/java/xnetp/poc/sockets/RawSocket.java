@@ -10,6 +10,18 @@ public class RawSocket {
     public static final int AF_INET;
     public static final int AF_INET6;
 
+    /**
+     * max number of messages kernel handles in one sendmmsg/recvmmsg call (UIO_MAXIOV),
+     * bound batches split bigger batches into chunks of this size
+     */
+    public static final int MMSG_CHUNK_MAX;
+
+    /**
+     * max number of messages in bound batches,
+     * limited only by memory, sockets' buffers make bigger batches useless
+     */
+    public static final int MMSG_BATCH_MAX = 64 * 1024;
+
     /**
      * these reflects defines in C code,
      * todo: set them up in runtime and|or move to RawSocketX
@@ -27,6 +39,7 @@ public class RawSocket {
         // get kernel level declarations
         AF_INET  = _AF_INET();
         AF_INET6 = _AF_INET6();
+        MMSG_CHUNK_MAX = _mmsgChunkMax();
     }
 
     /**
@@ -200,6 +213,149 @@ public class RawSocket {
         public int recvmmsg(ByteBuffer buffer, int msgsmax, int slotSize) {
             return RawSocket._recvmmsg6(sd, buffer, msgsmax, slotSize);
         }
+
+        /**
+         * binds buffer to this socket, prepares native message headers for
+         * all slots of the buffer once to be reused by all send/receive calls,
+         * slots' headers are used as destination/source addresses in place
+         * @param buffer buffer with slots, must not be reallocated while batch is used
+         * @param slots number of slots in the buffer
+         * @param slotSize number of bytes per each slot, @see RawSocket6#sendmmsg(ByteBuffer, int, int)
+         * @return batch to send and receive messages with
+         */
+        public MmsgBatch6 bind(ByteBuffer buffer, int slots, int slotSize) {
+            if ((slots < 1) || (MMSG_BATCH_MAX < slots)) {
+                throw new IllegalArgumentException("number of slots must be in 1.." + MMSG_BATCH_MAX);
+            }
+            long batch = RawSocket._mmsgBind6(buffer, slots, slotSize);
+            if (batch == 0) {
+                throw new RuntimeException("error binding buffer to socket, errno: " + RawSocket._errno());
+            }
+            return new MmsgBatch6(sd, batch, slots);
+        }
+
+        /**
+         * creates batch with its own native buffer to receive packets into
+         * and pack them into buffers with packed layout,
+         * @see MmsgBatch6#recvmmsgPacked(ByteBuffer, int, int)
+         * @param slots max number of messages to receive with one call
+         * @param packetMax max size of packets' data
+         * @return batch to receive messages with
+         */
+        public MmsgBatch6 bindPacked(int slots, int packetMax) {
+            if ((slots < 1) || (MMSG_BATCH_MAX < slots)) {
+                throw new IllegalArgumentException("number of slots must be in 1.." + MMSG_BATCH_MAX);
+            }
+            long batch = RawSocket._mmsgBindPacked6(slots, packetMax);
+            if (batch == 0) {
+                throw new RuntimeException("error allocating packed batch, errno: " + RawSocket._errno());
+            }
+            return new MmsgBatch6(sd, batch, slots);
+        }
+    }
+
+    /**
+     * native mmsg headers prepared for (socket, buffer) pair,
+     * removes per call setup of headers for all messages,
+     * must be used from one thread at a time and closed explicitly
+     */
+    public static class MmsgBatch6 {
+
+        /**
+         * socket descriptor the batch is bound to
+         */
+        private final int sd;
+        /**
+         * native batch pointer
+         */
+        private long batch;
+        /**
+         * number of prepared slots
+         */
+        public final int slots;
+        /**
+         * true if received packets are filtered
+         */
+        public boolean filtered = false;
+
+        /**
+         * constructs container object for the native batch
+         */
+        private MmsgBatch6(int _sd, long _batch, int _slots) {
+            sd = _sd;
+            batch = _batch;
+            slots = _slots;
+        }
+
+        /**
+         * sends first messages of the bound buffer,
+         * lengths are taken from slots' headers,
+         * batches bigger than {@link RawSocket#MMSG_CHUNK_MAX} are sent
+         * with several system calls till the first partial send
+         * @param msglen number of messages to send, up to slots
+         * @return number of messages sent, -1 in case of any error
+         */
+        public int sendmmsg(int msglen) {
+            return RawSocket._mmsgSend6(sd, batch, msglen);
+        }
+
+        /**
+         * receives messages into the bound buffer,
+         * waits for the 1st message only, batches bigger than {@link RawSocket#MMSG_CHUNK_MAX}
+         * are received with several system calls till receive queue is empty
+         * @param msgsmax max number of messages to receive, up to slots
+         * @return number of messages received (valid only if filtered) or -1 in case of any error
+         */
+        public int recvmmsg(int msgsmax) {
+            return RawSocket._mmsgRecv6(sd, batch, msgsmax);
+        }
+
+        /**
+         * receives messages and packs them back-to-back into the target buffer,
+         *              buffer format: [ [index: indexSlots * 4] (aligned) [record] [record] ... ]
+         *              record format: [ [slot header 32 bytes] [timestamp 8 bytes] [data] ] (aligned to 8 bytes)
+         * messages that don't fit into the target are kept and returned
+         * by the next call without receiving, works only for packed batches
+         * @param target buffer to pack messages into
+         * @param indexSlots number of entries in the target's index
+         * @param msgsmax max number of messages to receive, up to slots and index slots
+         * @return number of messages packed or -1 in case of any error
+         */
+        public int recvmmsgPacked(ByteBuffer target, int indexSlots, int msgsmax) {
+            return RawSocket._mmsgRecvPacked6(sd, batch, target, indexSlots, msgsmax);
+        }
+
+        /**
+         * sets filter of received packets, invalid packets are dropped
+         * in native code and never reach java buffers, valid packet has
+         * known type and exactly the length of the type
+         * @param typeShift shift of one byte packet type inside packet data
+         * @param lengths valid data length for each of 256 type codes, -1 to reject type,
+         *                null to remove filter
+         * @return result of the operation, -1 in case of any error
+         */
+        public int filter(int typeShift, int[] lengths) {
+            int result = RawSocket._mmsgFilter6(batch, typeShift, lengths);
+            if (result == 0) {
+                filtered = (lengths != null);
+            }
+            return result;
+        }
+
+        /**
+         * @return number of packets rejected by filter during the last receive call
+         */
+        public int rejected() {
+            return RawSocket._mmsgRejected(batch);
+        }
+
+        /**
+         * releases native headers, batch must not be used after this call
+         */
+        public void close() {
+            RawSocket._mmsgFree(batch);
+            batch = 0;
+        }
     }
 
     /**
@@ -283,6 +439,50 @@ public class RawSocket {
         return _setReceiveBufferSize(sd, _size);
     }
 
+    /**
+     * sets SO_TIMESTAMPNS option on this socket descriptor,
+     * bound batches save kernel receive time of each packet
+     * into slots (see PacketBuffer#getTimestamp)
+     * @return result of the operation
+     */
+    public int enableTimestamps() {
+        return _enableTimestamps(sd);
+    }
+
+    /**
+     * value to shard packets between several sockets by
+     */
+    public enum ShardMode {
+        // packets' flow hash (skb hash, from nic rss or kernel)
+        rxhash,
+        // cpu that processes packet in softirq (rss queue or rps)
+        cpu
+    }
+
+    /**
+     * attaches classic bpf filter that accepts only packets of one shard,
+     * all raw sockets of the protocol get copies of each packet, so several
+     * receive sockets must be filtered to get disjoint flows
+     * @param _mode value to shard by
+     * @param _shards total number of shards (sockets)
+     * @param _shard shard of this socket, [0..shards)
+     * @return result of the operation, -1 in case of any error
+     */
+    public int attachShardFilter(ShardMode _mode, int _shards, int _shard) {
+        return attachFilter(new SocketFilter(SocketFilter.Target.raw6).shard(_mode, _shards, _shard));
+    }
+
+    /**
+     * attaches kernel filter to this socket, packets rejected by filter
+     * are not queued to the socket, replaces previously attached filter,
+     * so shard condition must be a part of the same filter
+     * @param _filter filter compiled for {@link SocketFilter.Target#raw6}
+     * @return result of the operation, -1 in case of any error
+     */
+    public int attachFilter(SocketFilter _filter) {
+        return _attachFilter(sd, _filter.compile());
+    }
+
 
 
 
@@ -330,6 +530,21 @@ public class RawSocket {
      */
     private native static int _setReceiveBufferSize(int socket, int size);
 
+    /**
+     * enables receive timestamps (SO_TIMESTAMPNS) on the specified socket descriptor
+     * @param socket socket descriptor
+     * @return result of the operation
+     */
+    private native static int _enableTimestamps(int socket);
+
+    /**
+     * attaches classic bpf program (SO_ATTACH_FILTER) to the specified socket descriptor
+     * @param socket socket descriptor
+     * @param program instructions, 4 values each: code, jt, jf, k
+     * @return result of the operation
+     */
+    private native static int _attachFilter(int socket, int[] program);
+
 
     private native static int _receive4(int socket, ByteBuffer buffer);
     private native static int _receive6(int socket, ByteBuffer buffer);
@@ -345,6 +560,24 @@ public class RawSocket {
     private native static int _recvmmsg6(int socket, ByteBuffer buffer, int msgsmax, int bufferBlockSize);
 
 
+    /**
+     * @return kernel limit for number of messages per mmsg call
+     */
+    private native static int _mmsgChunkMax();
+
+    /**
+     * allocates native headers for all slots of the buffer
+     * @return batch pointer or 0 in case of any error
+     */
+    private native static long _mmsgBind6(ByteBuffer buffer, int slots, int slotSize);
+    private native static long _mmsgBindPacked6(int slots, int packetMax);
+    private native static int _mmsgSend6(int socket, long batch, int msglen);
+    private native static int _mmsgRecv6(int socket, long batch, int msgsmax);
+    private native static int _mmsgRecvPacked6(int socket, long batch, ByteBuffer target, int indexSlots, int msgsmax);
+    private native static int _mmsgFilter6(long batch, int typeShift, int[] lengths);
+    private native static int _mmsgRejected(long batch);
+    private native static void _mmsgFree(long batch);
+
     /**
      * @return errno result with the last error
      */
@@ -352,5 +585,4 @@ public class RawSocket {
 
     //    private native static
     // SO_BINDTODEVICE | bind
-    // SO_ATTACH_FILTER (since Linux 2.2), SO_ATTACH_BPF
 }
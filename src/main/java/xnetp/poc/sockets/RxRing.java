@@ -2,113 +2,136 @@ package xnetp.poc.sockets;
 
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.VarHandle;
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
 import java.net.NetworkInterface;
-import java.nio.Buffer;
+import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Formatter;
-
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * receive engine based on linux AF_PACKET socket with TPACKET_V3 rx ring,
+ * kernel fills blocks of the mapped ring with packets, each retired block
+ * is passed packet by packet to {@link PacketVisitor} and released back to kernel,
+ * no system calls are made while there are ready blocks and no data is copied,
+ * mapped ring is wrapped by native code into direct buffer of the ring size
+ * (JNI NewDirectByteBuffer), so no access to jdk internals is required
+ */
 public class RxRing {
 
-    private static Field fAddress;
-    private static Field fCapacity;
-    private static Field fLimit;
-
-    private static final VarHandle MODIFIERS;
-    static {
-        try {
-            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(Field.class, MethodHandles.lookup());
-            MODIFIERS = lookup.findVarHandle(Field.class, "modifiers", int.class);
-
-            fAddress = Buffer.class.getDeclaredField("address");
-            fAddress.setAccessible(true);
-
-            fCapacity = Buffer.class.getDeclaredField("capacity");
-            makeNonPrivate(fCapacity);
-            fCapacity.setAccessible(true);
-
-            fLimit = Buffer.class.getDeclaredField("limit");
-            makeNonPrivate(fLimit);
-            fLimit.setAccessible(true);
-        } catch (IllegalAccessException | NoSuchFieldException ex) {
-            throw new RuntimeException(ex);
-        }
-    }
-    public static void makeNonPrivate(Field field) {
-        int mods = field.getModifiers();
-        if (Modifier.isPrivate(mods)) {
-            MODIFIERS.set(field, mods & ~Modifier.PRIVATE);
-        }
-    }
-
-
-
-
-
     static {
         System.loadLibrary("netrxring");
     }
 
-    public static void main(String[] args) {
-        RxRing ring = new RxRing();
-    }
+    /**
+     * block status flags as declared in linux kernel (if_packet.h)
+     */
+    public static final int TP_STATUS_KERNEL        = 0;
+    public static final int TP_STATUS_USER          = (1 << 0);
 
-    int sd;
-    ByteBuffer ring;
-    int blockSize;
-    int blocks;
+    /**
+     * offsets inside tpacket_block_desc,
+     * @see RxRing#dumpBlockHeader(ByteBuffer, int, int) for the structure
+     */
+    public static final int BLOCK_STATUS_SHIFT              = 8;
+    public static final int BLOCK_NUM_PKTS_SHIFT            = 12;
+    public static final int BLOCK_OFFSET_TO_FIRST_PKT_SHIFT = 16;
+    public static final int BLOCK_TS_FIRST_PKT_SHIFT        = 32;
+    public static final int BLOCK_TS_LAST_PKT_SHIFT         = 40;
 
+    /**
+     * offsets inside tpacket3_hdr,
+     * @see RxRing#dumpPacketHeader(ByteBuffer, int) for the structure
+     */
+    public static final int PACKET_NEXT_OFFSET_SHIFT    = 0;
+    public static final int PACKET_SNAPLEN_SHIFT        = 12;
+    public static final int PACKET_MAC_SHIFT            = 24;
+    public static final int PACKET_NET_SHIFT            = 26;
 
-    private static int TP_STATUS_KERNEL	=  0;
-    private static int TP_STATUS_USER   = (1 << 0);
+    /**
+     * results of {@link RxRing#acquire(int)} when no block is acquired
+     */
+    public static final int BLOCK_NONE              = -1;
+    public static final int BLOCK_BUSY              = -2;
+    public static final int BLOCK_ERROR             = -3;
 
-    public RxRing() {
-        blockSize = 1 << 24;
-        blocks = 16;
-        int frameSize = 1 << 11;
+    /**
+     * access to blocks' status with memory ordering,
+     * status is shared with kernel and (in pipeline mode) other threads
+     */
+    private static final VarHandle STATUS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
 
-        try {
-            ring = ByteBuffer.allocateDirect(16).order(ByteOrder.nativeOrder());
+    /**
+     * ethernet protocol field shift and values as they are read
+     * in native (little endian) order from the ring
+     */
+    public static final int ETH_PROTO_SHIFT         = 12;
+    public static final short ETH_P_IPV6            = (short)0xDD86;
+    public static final short ETH_P_IP              = (short)0x0008;
 
-            NetworkInterface enp3s0f0 = NetworkInterface.getByName("enp3s0f0");
-            int ifIndex = enp3s0f0.getIndex();
+    /**
+     * size of fixed ipv6 header
+     */
+    public static final int IPV6_HDR_LENGTH         = 40;
 
-            System.out.println("blocks: " + blocks);
-            System.out.println("block size: " + blockSize);
+    /**
+     * kernel restrictions for ring parameters
+     */
+    private static final int PAGE_SIZE              = 4096;
+    private static final int TPACKET_ALIGNMENT      = 16;
+    private static final int TPACKET3_HDRLEN        = 68;
 
-            sd = _socket(ifIndex, ring, blocks, blockSize, frameSize);
-            System.out.println("socket: " + sd);
-            if (sd == -1) {
-                System.out.println(_errno());
-                return;
-            }
 
-            long mmap = ring.getLong(0);
-            System.out.println(String.format("\nmmap: 0x%X\n", mmap));
+    /**
+     * fanout modes as declared in linux kernel (if_packet.h),
+     * defines how packets are spread between sockets of one fanout group
+     */
+    public enum FanoutMode {
+        // by flow hash, keeps flows on the same socket
+        hash(0),
+        // round robin
+        lb(1),
+        // by cpu the packet arrived on
+        cpu(2),
+        // by recorded nic rx queue
+        qm(5);
+
+        // kernel value of the mode
+        public final int code;
+
+        FanoutMode(int _code) {
+            code = _code;
+        }
+    }
 
+    /**
+     * demo mode, counts all packets and xnetp ones on the specified interface
+     * @param args [interface] [seconds]
+     */
+    public static void main(String[] args) throws Exception {
+        String ifName = (0 < args.length) ? args[0] : "enp3s0f0";
+        long seconds = (1 < args.length) ? Long.parseLong(args[1]) : 100;
 
-            hack(ring, blocks, blockSize);
+        XnetpCounter visitor = new XnetpCounter();
+        RxRingStatistics stat = new RxRingStatistics();
+        RxRing ring = RxRing.open(ifName, 16, 1 << 24, 1 << 11, 60);
 
-//            System.out.print("initial:  ");
-//            dumpBlockHeader(ring, blockSize, 0);
+        System.out.println("interface: " + ifName);
+        System.out.println("blocks: " + ring.blocks);
+        System.out.println("block size: " + ring.blockSize);
 
-            long iterCounter = counter;
-            long iterCounterAll = counterAll;
-            long iterStart = System.nanoTime();
-            long iterations = 0;
+        long iterCounter = visitor.counter;
+        long iterCounterAll = visitor.counterAll;
+        long iterStart = System.nanoTime();
+        long iterations = 0;
 
-            int blockToPoll = 0;
-            long tStart = System.currentTimeMillis();
-            while (System.currentTimeMillis() - tStart < 100000) {
-                int bStatus = ring.getInt(blockSize * blockToPoll + 8);
-                if ((bStatus & TP_STATUS_USER) == 0) {
-                    _poll(sd, -1);
+        long tStart = System.currentTimeMillis();
+        try {
+            while (System.currentTimeMillis() - tStart < seconds * 1000) {
+                if (ring.poll(visitor, 100) <= 0) {
                     continue;
                 }
-
-                process(ring, blockToPoll);
                 iterations++;
 
                 // stat
@@ -116,127 +139,445 @@ public class RxRing {
                 if ((long)5E9 < time - iterStart) {
                     double factor = 1E9 / (time - iterStart);
 
-                    long packets = counter - iterCounter;
-                    long packetsAll = counterAll - iterCounterAll;
-                    System.out.println(              "      [receive]     iterations     pkt:all   pkt:all/s   pkt:xnetp     xnetp/s");
-                    System.out.println(String.format("                  %12d%12d%12d%12d%12d\n",
-                            iterations, packetsAll, (int)(factor * packetsAll), packets, (int)(factor * packets)));
-
+                    long packets = visitor.counter - iterCounter;
+                    long packetsAll = visitor.counterAll - iterCounterAll;
+                    ring.updateStatistics(stat);
+                    System.out.println(              "      [receive]     iterations     pkt:all   pkt:all/s   pkt:xnetp     xnetp/s       drops     freezes fill avg us fill max us");
+                    System.out.println(String.format("                  %12d%12d%12d%12d%12d%12d%12d%12d%12d\n",
+                            iterations, packetsAll, (int)(factor * packetsAll), packets, (int)(factor * packets),
+                            stat.intervalDrops, stat.intervalFreezes,
+                            stat.intervalBlockFillAvgNs / 1000, stat.intervalBlockFillMaxNs / 1000));
 
                     // start next iter
-                    iterCounter = counter;
-                    iterCounterAll = counterAll;
+                    iterCounter = visitor.counter;
+                    iterCounterAll = visitor.counterAll;
                     iterStart = time;
                     iterations = 0;
                 }
+            }
+        } finally {
+            ring.close();
+        }
 
+        System.out.println("counter:  xnetp: " + visitor.counter);
+        System.out.println("counter:    all: " + visitor.counterAll);
+        System.out.println("counter:  drops: " + stat.drops);
+    }
 
+    /**
+     * demo visitor, counts all packets and ipv6 packets with xnetp (0xFD) next header
+     */
+    public static class XnetpCounter implements PacketVisitor {
+        public long counterAll = 0;
+        public long counter = 0;
+
+        @Override
+        public void visit(ByteBuffer ring, int packet, int mac, int net, int payload, int length) {
+            counterAll++;
 
-                // release
-                ring.putInt(blockSize * blockToPoll + 8, TP_STATUS_KERNEL);
-                blockToPoll = (blockToPoll + 1) % blocks;
+            // skip non ipv6
+            if (ring.getShort(mac + ETH_PROTO_SHIFT) != ETH_P_IPV6) {
+                return;
             }
-            System.out.println("counter:  xnetp: " + counter);
-            System.out.println("counter:    all: " + counterAll);
 
+            // skip non xnetp
+            if (ring.get(net + 6) != (byte)0xFD) {
+                return;
+            }
 
-            restore(ring);
-        } catch (Exception e) {
-            e.printStackTrace();
+            counter++;
         }
-
-        _X_close(sd, ring, blocks, blockSize);
     }
 
-    long counterAll = 0;
-    long counter = 0;
 
-    public void process(ByteBuffer buffer, int block) {
-        int base = block * blockSize;
-        int num_pkts = buffer.getInt(base + 8 + 4);
-        int offset_to_first__pkt = buffer.getInt(base + 8 + 8);
+    /**
+     * socket descriptor
+     */
+    private final int sd;
+
+    /**
+     * mapped ring, blocks*blockSize bytes
+     */
+    private final ByteBuffer ring;
+
+    /**
+     * ring geometry
+     */
+    public final int blocks;
+    public final int blockSize;
+    public final int frameSize;
+
+    /**
+     * index of the next block to wait for,
+     * kernel fills blocks sequentially
+     */
+    private int blockToPoll = 0;
+
+    /**
+     * blocks' fill time accumulators for the current statistics interval,
+     * written by the polling thread, drained by statistics reader
+     */
+    private final AtomicLong statBlocks = new AtomicLong();
+    private final AtomicLong statBlockFillNs = new AtomicLong();
+    private final AtomicLong statBlockFillMaxNs = new AtomicLong();
+
+    /**
+     * buffer for kernel statistics
+     */
+    private final int[] statistics = new int[3];
 
-        //System.out.println("num_pkts: " + num_pkts + "    offset: " + offset_to_first__pkt);
-        int offset = base + offset_to_first__pkt;
-        for (int i = 0; i < num_pkts; i++) {
-            int tp_next_offset = processPacket(buffer, offset);
-            offset += tp_next_offset;
+    /**
+     * blocks passed to user in pipeline mode and not released yet,
+     * 1 - block is in flight
+     */
+    private final AtomicIntegerArray blocksInFlight;
+
+    /**
+     * number of processed blocks and packets,
+     * updated by the polling thread only,
+     * only blocks are counted in pipeline mode
+     */
+    public long rxBlocks = 0;
+    public long rxPackets = 0;
+
+    /**
+     * facade method to open AF_PACKET socket with TPACKET_V3 rx ring
+     * bound to the specified interface
+     * @param ifName network interface name
+     * @param blocks number of blocks in the ring
+     * @param blockSize size of each block, must be multiple of page size
+     * @param frameSize frame size, must be multiple of 16, only used by kernel for validation
+     * @param retireTimeoutMs timeout in ms after which kernel retires not completely filled block
+     * @return rx ring instance to work with
+     * @throws SocketException if interface is not available
+     */
+    public static RxRing open(String ifName, int blocks, int blockSize, int frameSize, int retireTimeoutMs)
+            throws SocketException
+    {
+        NetworkInterface nInterface = NetworkInterface.getByName(ifName);
+        if (nInterface == null) {
+            throw new IllegalArgumentException("unknown network interface: " + ifName);
         }
+        return open(nInterface.getIndex(), blocks, blockSize, frameSize, retireTimeoutMs);
     }
-    public int processPacket(ByteBuffer buffer, int offset) {
 
-        int tp_next_offset = buffer.getInt(offset);
-        int tp_mac = buffer.getShort(offset + 24);
-        int tp_net = buffer.getShort(offset + 26);
+    /**
+     * facade method to open AF_PACKET socket with TPACKET_V3 rx ring
+     * @see RxRing#open(String, int, int, int, int) for parameters
+     * @param ifIndex network interface index
+     * @return rx ring instance to work with
+     */
+    public static RxRing open(int ifIndex, int blocks, int blockSize, int frameSize, int retireTimeoutMs) {
+        if (blocks < 1) {
+            throw new IllegalArgumentException("number of blocks must be > 0");
+        }
+        if ((blockSize < PAGE_SIZE) || (blockSize % PAGE_SIZE != 0)) {
+            throw new IllegalArgumentException("block size must be multiple of " + PAGE_SIZE);
+        }
+        if ((frameSize < TPACKET3_HDRLEN) || (frameSize % TPACKET_ALIGNMENT != 0) || (blockSize < frameSize)) {
+            throw new IllegalArgumentException("frame size must be multiple of " + TPACKET_ALIGNMENT + " and fit the block");
+        }
+        if ((long)blocks * blockSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("ring is too big, blocks * block size must be < 2GB");
+        }
+        if (retireTimeoutMs < 0) {
+            throw new IllegalArgumentException("retire timeout must be >= 0");
+        }
 
-        counterAll++;
+        int sd = _socket(ifIndex, blocks, blockSize, frameSize, retireTimeoutMs);
+        if (sd == -1) {
+            throw new RuntimeException("error opening rx ring socket, errno: " + _errno());
+        }
 
-        // skip non ipv6
-        short eth_proto = buffer.getShort(offset + tp_mac + 12);
-        //System.out.println(String.format("  eth_proto: %X", eth_proto));
-        if (eth_proto != (short)0xDD86) {
-            return tp_next_offset;
+        ByteBuffer ring = _mmap(sd, blocks * blockSize);
+        if (ring == null) {
+            int errno = _errno();
+            _close(sd, null, 0);
+            throw new RuntimeException("error mapping rx ring, errno: " + errno);
         }
 
-        // skip non xnetp
-        byte next_hdr = buffer.get(offset + tp_net + 6);
-        //System.out.println(String.format("  next_hdr: %X", next_hdr));
-        if (next_hdr != (byte)0xFD) {
-            return tp_next_offset;
+        // buffer from native code is always big endian
+        ring.order(ByteOrder.nativeOrder());
+        return new RxRing(sd, ring, blocks, blockSize, frameSize);
+    }
+
+    /**
+     * constructs container object for the opened socket and mapped ring
+     */
+    private RxRing(int _sd, ByteBuffer _ring, int _blocks, int _blockSize, int _frameSize) {
+        sd = _sd;
+        ring = _ring;
+        blocks = _blocks;
+        blockSize = _blockSize;
+        frameSize = _frameSize;
+        blocksInFlight = new AtomicIntegerArray(_blocks);
+    }
+
+    /**
+     * waits for the next block to be retired by kernel, passes all its
+     * packets to the visitor and releases the block back to kernel,
+     * must not be mixed with {@link RxRing#acquire(int)} on the same ring
+     * @param visitor visitor to process packets with
+     * @param timeout timeout in ms to wait for data, 0 - return immediately, -1 - infinite
+     * @return number of packets processed, 0 if no block is ready, -1 in case of poll error
+     */
+    public int poll(PacketVisitor visitor, int timeout) {
+        if (!isBlockReady(blockToPoll)) {
+            int result = _poll(sd, timeout);
+            if (result == -1) {
+                return -1;
+            }
+            if (!isBlockReady(blockToPoll)) {
+                return 0;
+            }
         }
 
-        counter++;
+        int packets = process(blockToPoll, visitor);
+        release(blockToPoll);
+        blockToPoll = (blockToPoll + 1) % blocks;
 
-        return tp_next_offset;
+        rxBlocks++;
+        rxPackets += packets;
+        return packets;
     }
 
+    /**
+     * pipeline mode: waits for the next block to be retired by kernel and
+     * takes its ownership without processing, block could be passed to any
+     * thread for {@link RxRing#process(int, PacketVisitor)} and MUST be
+     * returned with {@link RxRing#release(int)}, blocks could be released in any order,
+     * must be called from one (polling) thread only
+     * @param timeout timeout in ms to wait for data, 0 - return immediately, -1 - infinite
+     * @return index of the acquired block,
+     *          {@link RxRing#BLOCK_NONE} if no block is ready,
+     *          {@link RxRing#BLOCK_BUSY} if the next block is still processed by user,
+     *          {@link RxRing#BLOCK_ERROR} in case of poll error
+     */
+    public int acquire(int timeout) {
+        int block = blockToPoll;
 
+        // kernel fills blocks in order and can't pass the block
+        // that has not been released yet, so the ring is full
+        if (blocksInFlight.get(block) != 0) {
+            return BLOCK_BUSY;
+        }
 
+        if (!isBlockReady(block)) {
+            int result = _poll(sd, timeout);
+            if (result == -1) {
+                return BLOCK_ERROR;
+            }
+            if (!isBlockReady(block)) {
+                return BLOCK_NONE;
+            }
+        }
 
+        blocksInFlight.set(block, 1);
+        blockToPoll = (block + 1) % blocks;
 
+        rxBlocks++;
+        return block;
+    }
 
-    public void close() {
-        _close(sd, ring, blocks, blockSize);
+    /**
+     * @param block block index
+     * @return true if block is retired by kernel and owned by user
+     */
+    private boolean isBlockReady(int block) {
+        return ((int)STATUS.getAcquire(ring, block * blockSize + BLOCK_STATUS_SHIFT) & TP_STATUS_USER) != 0;
     }
 
+    /**
+     * returns block to kernel, all reads of the block
+     * made by the calling thread happen before the release
+     * @param block block index owned by user
+     */
+    public void release(int block) {
+        STATUS.setRelease(ring, block * blockSize + BLOCK_STATUS_SHIFT, TP_STATUS_KERNEL);
+        blocksInFlight.lazySet(block, 0);
+    }
 
-    private native static int _socket(int ifIndex, ByteBuffer ring, int _blocks, int _blockSize, int _frameSize);
-    private native static int _poll(int socket, int timeout);
-    private native static int _close(int socket, ByteBuffer ring, int _blocks, int _blockSize);
+    /**
+     * passes all packets from the block to visitor,
+     * could be called from any thread for the blocks it owns
+     * @param block block index, must be owned by user
+     * @param visitor visitor to call
+     * @return number of packets in the block
+     */
+    public int process(int block, PacketVisitor visitor) {
+        ByteBuffer buffer = ring;
+        int base = block * blockSize;
+        int numPkts = buffer.getInt(base + BLOCK_NUM_PKTS_SHIFT);
+
+        int offset = base + buffer.getInt(base + BLOCK_OFFSET_TO_FIRST_PKT_SHIFT);
+        for (int i = 0; i < numPkts; i++) {
+            int mac = offset + (buffer.getShort(offset + PACKET_MAC_SHIFT) & 0xFFFF);
+            int net = offset + (buffer.getShort(offset + PACKET_NET_SHIFT) & 0xFFFF);
+            int length = buffer.getInt(offset + PACKET_SNAPLEN_SHIFT);
+
+            int payload = net;
+            short ethProto = buffer.getShort(mac + ETH_PROTO_SHIFT);
+            if (ethProto == ETH_P_IPV6) {
+                payload = net + IPV6_HDR_LENGTH;
+            } else if (ethProto == ETH_P_IP) {
+                payload = net + ((buffer.get(net) & 0x0F) << 2);
+            }
 
-    private native static int _X_close(int socket, ByteBuffer ring, int _blocks, int _blockSize);
-    private native static int _errno();
+            visitor.visit(buffer, offset, mac, net, payload, length);
 
-    long _mapped;
-    long _address;
-    int _limit;
-    int _capacity;
+            offset += buffer.getInt(offset + PACKET_NEXT_OFFSET_SHIFT);
+        }
 
-    private void hack(ByteBuffer ring, int blocks, int blockSize) throws Exception {
-        // extract
-        _mapped = ring.getLong(0);
+        // block fill time, V3 ring reports nanoseconds in tpacket_bd_ts
+        if (0 < numPkts) {
+            long fillNs = blockTimestamp(base + BLOCK_TS_LAST_PKT_SHIFT) - blockTimestamp(base + BLOCK_TS_FIRST_PKT_SHIFT);
+            statBlocks.incrementAndGet();
+            statBlockFillNs.addAndGet(fillNs);
+            // pipeline handlers record concurrently
+            statBlockFillMaxNs.accumulateAndGet(fillNs, Math::max);
+        }
 
-        // save original state
-        _address = (long)fAddress.get(ring);
-        _capacity = (int)fCapacity.get(ring);
-        _limit = (int)fCapacity.get(ring);
+        return numPkts;
+    }
 
-        // hack
-        fAddress.set(ring, _mapped);
-        fCapacity.set(ring, blocks * blockSize);
-        fLimit.set(ring, blocks * blockSize);
+    /**
+     * joins this socket to the fanout group, kernel spreads packets
+     * between all sockets of the group according to the mode,
+     * all sockets of one group must be bound to the same interface
+     * and use the same mode
+     * @param groupId group id, only lower 16 bits are used
+     * @param mode fanout mode
+     * @return result of the operation, -1 in case of any error
+     */
+    public int fanout(int groupId, FanoutMode mode) {
+        return _fanout(sd, groupId, mode.code);
+    }
 
-        System.out.println(String.format("hacked: direct buffer now is at: 0x%X\n", (long)fAddress.get(ring)));
+    /**
+     * attaches kernel filter to this socket, frames rejected by filter
+     * are not copied into the ring, replaces previously attached filter
+     * @param filter filter compiled for {@link SocketFilter.Target#packet}
+     * @return result of the operation, -1 in case of any error
+     */
+    public int attachFilter(SocketFilter filter) {
+        return _attachFilter(sd, filter.compile());
     }
 
-    private void restore(ByteBuffer ring) throws Exception {
-        fAddress.set(ring, _address);
-        fCapacity.set(ring, _capacity);
-        fLimit.set(ring, _limit);
+    /**
+     * @param offset offset of tpacket_bd_ts in the ring
+     * @return timestamp in nanoseconds
+     */
+    private long blockTimestamp(int offset) {
+        return (ring.getInt(offset) & 0xFFFFFFFFL) * 1_000_000_000L + (ring.getInt(offset + 4) & 0xFFFFFFFFL);
+    }
 
-        System.out.println(String.format("restore: direct buffer now is at: 0x%X\n", (long)fAddress.get(ring)));
+    /**
+     * reads kernel statistics (it's reset by kernel on each read) and
+     * blocks' fill time collected since the previous call, populates
+     * cumulative and interval values of the specified container,
+     * could be called from any thread, but only from one at a time
+     * @param stat container to update, should be the same instance for all calls
+     * @return result of the operation, -1 in case of any error
+     */
+    public int updateStatistics(RxRingStatistics stat) {
+        int result = _statistics(sd, statistics);
+        if (result == -1) {
+            return result;
+        }
+
+        stat.intervalPackets = statistics[0] & 0xFFFFFFFFL;
+        stat.intervalDrops = statistics[1] & 0xFFFFFFFFL;
+        stat.intervalFreezes = statistics[2] & 0xFFFFFFFFL;
+        stat.packets += stat.intervalPackets;
+        stat.drops += stat.intervalDrops;
+        stat.freezes += stat.intervalFreezes;
+
+        long blocks = statBlocks.getAndSet(0);
+        long fillNs = statBlockFillNs.getAndSet(0);
+        stat.intervalBlocks = blocks;
+        stat.intervalBlockFillAvgNs = (blocks == 0) ? 0 : fillNs / blocks;
+        stat.intervalBlockFillMaxNs = statBlockFillMaxNs.getAndSet(0);
+        return result;
+    }
+
+    /**
+     * unmaps the ring and closes socket descriptor,
+     * ring buffer must not be accessed after this call
+     * @return result of the operations, -1 in case of any error
+     */
+    public int close() {
+        return _close(sd, ring, blocks * blockSize);
     }
 
+    /**
+     * @return error code after any operation that returned error flag (-1)
+     */
+    public int errno() {
+        return _errno();
+    }
+
+
+    /**
+     * opens AF_PACKET socket with TPACKET_V3 rx ring and binds it to the interface
+     * @return socket descriptor or -1 in case of any error
+     */
+    private native static int _socket(int ifIndex, int _blocks, int _blockSize, int _frameSize, int _retireTimeout);
+
+    /**
+     * maps rx ring of the socket into memory
+     * @param socket socket descriptor with rx ring configured
+     * @param length ring size in bytes, blocks*blockSize
+     * @return direct buffer (big endian) over the mapped ring or null in case of any error
+     */
+    private native static ByteBuffer _mmap(int socket, int length);
+
+    /**
+     * waits for the socket to have data
+     * @param socket socket descriptor
+     * @param timeout timeout in ms, 0 - return immediately, -1 - infinite
+     * @return result of poll call, -1 in case of any error
+     */
+    private native static int _poll(int socket, int timeout);
+
+    /**
+     * unmaps the ring (if specified) and closes socket descriptor
+     * @param socket socket descriptor
+     * @param ring buffer returned by {@link RxRing#_mmap(int, int)} or null
+     * @param length ring size in bytes
+     * @return result of the operations, -1 in case of any error
+     */
+    private native static int _close(int socket, ByteBuffer ring, int length);
+
+    /**
+     * joins socket to fanout group
+     * @param socket bound socket descriptor
+     * @param groupId fanout group id
+     * @param mode kernel fanout mode
+     * @return result of setsockopt call, -1 in case of any error
+     */
+    private native static int _fanout(int socket, int groupId, int mode);
+
+    /**
+     * reads and resets kernel statistics
+     * @param socket socket descriptor
+     * @param stats array to be populated with [packets, drops, freeze queue count]
+     * @return result of getsockopt call, -1 in case of any error
+     */
+    private native static int _statistics(int socket, int[] stats);
+
+    /**
+     * attaches classic bpf program (SO_ATTACH_FILTER)
+     * @param socket socket descriptor
+     * @param program instructions, 4 values each: code, jt, jf, k
+     * @return result of setsockopt call, -1 in case of any error
+     */
+    private native static int _attachFilter(int socket, int[] program);
+
+    /**
+     * @return errno result with the last error
+     */
+    private native static int _errno();
+
 
     /**
      * https://elixir.bootlin.com/linux/latest/source/include/uapi/linux/if_packet.h#L189
@@ -0,0 +1,42 @@
+package xnetp.poc.sockets;
+
+/**
+ * snapshot of rx ring statistics, kernel counters (PACKET_STATISTICS)
+ * and blocks' fill time from blocks' headers,
+ * populated by {@link RxRing#updateStatistics(RxRingStatistics)},
+ * interval values are deltas since the previous update of the same instance
+ */
+public class RxRingStatistics {
+
+    /**
+     * cumulative kernel counters: packets seen by the socket (including dropped ones),
+     * packets dropped as there were no free blocks and
+     * number of times the ring was frozen (all blocks owned by user)
+     */
+    public long packets;
+    public long drops;
+    public long freezes;
+
+    /**
+     * kernel counters for the last interval
+     */
+    public long intervalPackets;
+    public long intervalDrops;
+    public long intervalFreezes;
+
+    /**
+     * blocks processed by user in the last interval
+     * and their fill time, time between the first and the last
+     * packet of a block (ts_first_pkt, ts_last_pkt), in nanoseconds
+     */
+    public long intervalBlocks;
+    public long intervalBlockFillAvgNs;
+    public long intervalBlockFillMaxNs;
+
+    /**
+     * @return percent of packets dropped by kernel in the last interval
+     */
+    public double intervalDropRate() {
+        return (intervalPackets == 0) ? 0 : 100.0 * intervalDrops / intervalPackets;
+    }
+}
@@ -0,0 +1,316 @@
+package xnetp.poc.sockets;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * description of xnetp packets to accept in kernel, compiled into
+ * classic bpf program and attached to socket (SO_ATTACH_FILTER),
+ * rejected packets never reach user space.
+ *
+ * all conditions must match (and), values inside one condition
+ * are alternatives (or), empty filter accepts everything:
+ *     protocol   ipv6 next header (packet sockets only, raw sockets are bound to protocol)
+ *     types      one byte packet type in xnetp ext header
+ *     length     ip payload length diapason (ext header plus data)
+ *     uni        UNI volume or volume:segment prefixes (FC::VV:SS:AAAA)
+ *     shard      skb hash or cpu modulo shards, to split flows between sockets
+ *
+ * offsets depend on socket type: raw ipv6 sockets see packets from transport
+ * (ext) header, packet sockets (rx ring) see complete ethernet frames,
+ * ipv6 extension headers before xnetp header are not supported
+ *
+ * program could be checked with {@link SocketFilter#toString()} (bpf_asm like)
+ * and tested on loopback with sender and receivers bound to "lo"
+ */
+public class SocketFilter {
+
+    /**
+     * instruction classes and fields as declared in linux kernel (filter.h)
+     */
+    static final int BPF_LD     = 0x00;
+    static final int BPF_ALU    = 0x04;
+    static final int BPF_JMP    = 0x05;
+    static final int BPF_RET    = 0x06;
+    static final int BPF_W      = 0x00;
+    static final int BPF_H      = 0x08;
+    static final int BPF_B      = 0x10;
+    static final int BPF_ABS    = 0x20;
+    static final int BPF_LEN    = 0x80;
+    static final int BPF_MOD    = 0x90;
+    static final int BPF_JEQ    = 0x10;
+    static final int BPF_JGT    = 0x20;
+    static final int BPF_JGE    = 0x30;
+    static final int BPF_K      = 0x00;
+
+    /**
+     * ancillary data offsets
+     */
+    static final int SKF_AD_OFF     = -0x1000;
+    static final int SKF_AD_CPU     = 36;
+    static final int SKF_AD_RXHASH  = 32;
+
+    /**
+     * kernel limit of classic bpf program length
+     */
+    static final int BPF_MAXINSNS   = 4096;
+
+    /**
+     * max number of alternatives in one condition,
+     * conditional jumps have 8 bit offsets
+     */
+    public static final int ALTERNATIVES_MAX = 64;
+
+    /**
+     * frame offsets for packet sockets
+     */
+    static final int ETH_TYPE_SHIFT         = 12;
+    static final int ETH_HDR_LENGTH         = 14;
+    static final int ETH_P_IPV6             = 0x86DD;
+    static final int IPV6_PAYLOAD_LEN_SHIFT = ETH_HDR_LENGTH + 4;
+    static final int IPV6_NEXT_HDR_SHIFT    = ETH_HDR_LENGTH + 6;
+    static final int IPV6_HDR_LENGTH        = 40;
+
+    /**
+     * xnetp ext header fields
+     */
+    static final int EXT_UNI_VOLUME_SHIFT   = 4 + 12;
+    static final int EXT_TYPE_SHIFT         = 20;
+
+    /**
+     * marker of jump to reject instruction, resolved by compiler
+     */
+    private static final int REJECT = -1;
+
+    /**
+     * socket types the filter is compiled for
+     */
+    public enum Target {
+        // raw ipv6 socket, packets start with transport (xnetp ext) header
+        raw6,
+        // AF_PACKET socket (rx ring), packets start with ethernet header
+        packet
+    }
+
+    private final Target target;
+    private int protocol = -1;
+    private final List<Integer> types = new ArrayList<>();
+    private int lengthMin = -1;
+    private int lengthMax = -1;
+    // prefixes as [VV:SS] diapasons
+    private final List<int[]> prefixes = new ArrayList<>();
+    private RawSocket.ShardMode shardMode;
+    private int shards;
+    private int shard;
+
+    /**
+     * @param _target socket type to compile for
+     */
+    public SocketFilter(Target _target) {
+        target = _target;
+    }
+
+    /**
+     * accepts only ipv6 packets of the protocol, makes sense for packet sockets only
+     * @param _protocol ipv6 next header, like 0xFD
+     * @return this
+     */
+    public SocketFilter protocol(int _protocol) {
+        protocol = _protocol;
+        return this;
+    }
+
+    /**
+     * accepts packets of the type, could be called several times
+     * @param _type one byte type code of xnetp ext header
+     * @return this
+     */
+    public SocketFilter type(int _type) {
+        types.add(_type & 0xFF);
+        return this;
+    }
+
+    /**
+     * accepts packets with ip payload length in the diapason
+     * @param _min min length, inclusive
+     * @param _max max length, inclusive
+     * @return this
+     */
+    public SocketFilter length(int _min, int _max) {
+        if ((_min < 0) || (_max < _min)) {
+            throw new IllegalArgumentException("wrong length diapason: " + _min + ".." + _max);
+        }
+        lengthMin = _min;
+        lengthMax = _max;
+        return this;
+    }
+
+    /**
+     * accepts packets with UNI of the volume or volume:segment, could be called several times
+     * @param _volume volume index (VV), [0..255]
+     * @param _segment segment index (SS), [0..255] or -1 for all segments of the volume
+     * @return this
+     */
+    public SocketFilter uni(int _volume, int _segment) {
+        int from = (_volume & 0xFF) << 8;
+        prefixes.add((_segment == -1)
+                ? new int[] {from, from | 0xFF}
+                : new int[] {from | (_segment & 0xFF), from | (_segment & 0xFF)});
+        return this;
+    }
+
+    /**
+     * accepts packets of one shard only
+     * @param _mode value to shard by
+     * @param _shards total number of shards (sockets)
+     * @param _shard shard to accept, [0..shards)
+     * @return this
+     */
+    public SocketFilter shard(RawSocket.ShardMode _mode, int _shards, int _shard) {
+        shardMode = _mode;
+        shards = _shards;
+        shard = _shard;
+        return this;
+    }
+
+    /**
+     * @return offset of xnetp ext header in packets seen by filter
+     */
+    private int ext() {
+        return (target == Target.packet) ? ETH_HDR_LENGTH + IPV6_HDR_LENGTH : 0;
+    }
+
+    /**
+     * compiles description into classic bpf program
+     * @return instructions, 4 values each: code, jt, jf, k
+     */
+    public int[] compile() {
+        List<int[]> program = new ArrayList<>();
+
+        if (target == Target.packet) {
+            // ipv6 only and (optionally) of the protocol
+            program.add(stmt(BPF_LD | BPF_H | BPF_ABS, ETH_TYPE_SHIFT));
+            program.add(jump(BPF_JEQ, ETH_P_IPV6, 0, REJECT));
+            if (protocol != -1) {
+                program.add(stmt(BPF_LD | BPF_B | BPF_ABS, IPV6_NEXT_HDR_SHIFT));
+                program.add(jump(BPF_JEQ, protocol, 0, REJECT));
+            }
+        }
+
+        if (lengthMin != -1) {
+            program.add((target == Target.packet)
+                    ? stmt(BPF_LD | BPF_H | BPF_ABS, IPV6_PAYLOAD_LEN_SHIFT)
+                    : stmt(BPF_LD | BPF_W | BPF_LEN, 0));
+            program.add(jump(BPF_JGE, lengthMin, 0, REJECT));
+            program.add(jump(BPF_JGT, lengthMax, REJECT, 0));
+        }
+
+        if (!types.isEmpty()) {
+            alternatives(types.size());
+            program.add(stmt(BPF_LD | BPF_B | BPF_ABS, ext() + EXT_TYPE_SHIFT));
+            for (int i = 0; i < types.size(); i++) {
+                // matched: skip the rest, the last one rejects
+                boolean last = (i == types.size() - 1);
+                program.add(jump(BPF_JEQ, types.get(i), last ? 0 : types.size() - 1 - i, last ? REJECT : 0));
+            }
+        }
+
+        if (!prefixes.isEmpty()) {
+            alternatives(prefixes.size());
+            program.add(stmt(BPF_LD | BPF_H | BPF_ABS, ext() + EXT_UNI_VOLUME_SHIFT));
+            for (int i = 0; i < prefixes.size(); i++) {
+                int[] prefix = prefixes.get(i);
+                if (i < prefixes.size() - 1) {
+                    // below: try the next one, above: the next one, inside: skip the rest
+                    program.add(jump(BPF_JGE, prefix[0], 0, 1));
+                    program.add(jump(BPF_JGT, prefix[1], 0, 2 * (prefixes.size() - 1 - i)));
+                } else {
+                    program.add(jump(BPF_JGE, prefix[0], 0, REJECT));
+                    program.add(jump(BPF_JGT, prefix[1], REJECT, 0));
+                }
+            }
+        }
+
+        if (shardMode != null) {
+            int ancillary = (shardMode == RawSocket.ShardMode.cpu) ? SKF_AD_CPU : SKF_AD_RXHASH;
+            program.add(stmt(BPF_LD | BPF_W | BPF_ABS, SKF_AD_OFF + ancillary));
+            program.add(stmt(BPF_ALU | BPF_MOD | BPF_K, shards));
+            program.add(jump(BPF_JEQ, shard, 0, REJECT));
+        }
+
+        // accept whole packet or reject
+        program.add(stmt(BPF_RET | BPF_K, -1));
+        program.add(stmt(BPF_RET | BPF_K, 0));
+
+        if (BPF_MAXINSNS < program.size()) {
+            throw new IllegalStateException("filter is too long: " + program.size());
+        }
+
+        // resolve jumps to reject (the last instruction)
+        int reject = program.size() - 1;
+        int[] code = new int[program.size() * 4];
+        for (int i = 0; i < program.size(); i++) {
+            int[] insn = program.get(i);
+            for (int f = 1; f <= 2; f++) {
+                if (insn[f] == REJECT) {
+                    insn[f] = reject - i - 1;
+                    if (255 < insn[f]) {
+                        throw new IllegalStateException("filter is too long for conditional jumps");
+                    }
+                }
+            }
+            System.arraycopy(insn, 0, code, i * 4, 4);
+        }
+        return code;
+    }
+
+    /**
+     * @param count number of alternatives in condition
+     */
+    private static void alternatives(int count) {
+        if (ALTERNATIVES_MAX < count) {
+            throw new IllegalArgumentException("too many alternatives in filter, max: " + ALTERNATIVES_MAX);
+        }
+    }
+
+    private static int[] stmt(int code, int k) {
+        return new int[] {code, 0, 0, k};
+    }
+
+    private static int[] jump(int op, int k, int jt, int jf) {
+        return new int[] {BPF_JMP | op | BPF_K, jt, jf, k};
+    }
+
+    /**
+     * @return compiled program in bpf_asm like form
+     */
+    @Override
+    public String toString() {
+        int[] code = compile();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < code.length / 4; i++) {
+            int c = code[i * 4];
+            int k = code[i * 4 + 3];
+            sb.append(String.format("(%03d) ", i));
+            if ((c & 0x07) == BPF_LD) {
+                if ((c & 0xE0) == BPF_LEN) {
+                    sb.append("ld       len");
+                } else {
+                    String size = ((c & 0x18) == BPF_B) ? "ldb" : ((c & 0x18) == BPF_H) ? "ldh" : "ld ";
+                    sb.append(String.format("%s      [%s]", size,
+                            (k == SKF_AD_OFF + SKF_AD_CPU) ? "cpu" : (k == SKF_AD_OFF + SKF_AD_RXHASH) ? "rxhash" : k));
+                }
+            } else if ((c & 0x07) == BPF_ALU) {
+                sb.append(String.format("mod      #%d", k));
+            } else if ((c & 0x07) == BPF_JMP) {
+                String op = ((c & 0xF0) == BPF_JEQ) ? "jeq" : ((c & 0xF0) == BPF_JGT) ? "jgt" : "jge";
+                sb.append(String.format("%s      #0x%x    jt %d  jf %d",
+                        op, k, i + 1 + code[i * 4 + 1], i + 1 + code[i * 4 + 2]));
+            } else {
+                sb.append("ret      #").append(Integer.toUnsignedString(k));
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
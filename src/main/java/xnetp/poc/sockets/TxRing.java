@@ -0,0 +1,335 @@
+package xnetp.poc.sockets;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * send engine based on linux AF_PACKET socket with TPACKET_V2 tx ring,
+ * complete ethernet frames are written directly into the mapped ring,
+ * marked as ready and sent by kernel with one system call per batch,
+ * frames keep their content after sending, so fixed headers
+ * could be populated only once as templates
+ *
+ * frame format: [tpacket2_hdr: 32] [ETH HEADER: 14] [IP6 HEADER: 40] [DATA]
+ */
+public class TxRing {
+
+    static {
+        System.loadLibrary("netrxring");
+    }
+
+    /**
+     * frame status flags as declared in linux kernel (if_packet.h)
+     */
+    public static final int TP_STATUS_AVAILABLE     = 0;
+    public static final int TP_STATUS_SEND_REQUEST  = (1 << 0);
+    public static final int TP_STATUS_SENDING       = (1 << 1);
+    public static final int TP_STATUS_WRONG_FORMAT  = (1 << 2);
+
+    /**
+     * offsets inside tpacket2_hdr
+     *
+     * struct tpacket2_hdr {
+     *     __u32		tp_status;
+     *     __u32		tp_len;
+     *     __u32		tp_snaplen;
+     *     __u16		tp_mac;
+     *     __u16		tp_net;
+     *     __u32		tp_sec;
+     *     __u32		tp_nsec;
+     *     __u16		tp_vlan_tci;
+     *     __u16		tp_vlan_tpid;
+     *     __u8		    tp_padding[4];
+     * };
+     */
+    public static final int FRAME_STATUS_SHIFT      = 0;
+    public static final int FRAME_LEN_SHIFT         = 4;
+
+    /**
+     * data offset in each frame, TPACKET2_HDRLEN - sizeof(struct sockaddr_ll)
+     */
+    public static final int FRAME_DATA_SHIFT        = 32;
+
+    /**
+     * headers' sizes and offsets in frame
+     */
+    public static final int ETH_HDR_LENGTH          = 14;
+    public static final int IPV6_HDR_LENGTH         = 40;
+    public static final int FRAME_IPV6_HDR_SHIFT    = FRAME_DATA_SHIFT + ETH_HDR_LENGTH;
+    public static final int FRAME_IPV6_DATA_SHIFT   = FRAME_IPV6_HDR_SHIFT + IPV6_HDR_LENGTH;
+
+    /**
+     * ipv6 ethernet type (network order)
+     */
+    public static final int ETH_P_IPV6              = 0x86DD;
+
+    /**
+     * kernel restrictions for ring parameters
+     */
+    private static final int PAGE_SIZE              = 4096;
+    private static final int TPACKET_ALIGNMENT      = 16;
+
+    /**
+     * access to frames' status with memory ordering,
+     * status is shared with kernel
+     */
+    private static final VarHandle STATUS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+
+    /**
+     * socket descriptor
+     */
+    private final int sd;
+
+    /**
+     * mapped ring (native byte order), blocks*blockSize bytes
+     */
+    public final ByteBuffer ring;
+
+    /**
+     * ring geometry
+     */
+    public final int blocks;
+    public final int blockSize;
+    public final int frameSize;
+    public final int frames;
+
+    /**
+     * index of the next frame to fill,
+     * kernel sends frames sequentially
+     */
+    private int frameToFill = 0;
+
+    /**
+     * number of frames rejected by kernel,
+     * updated by the sending thread only
+     */
+    public long txWrongFormat = 0;
+
+    /**
+     * facade method to open AF_PACKET socket with TPACKET_V2 tx ring
+     * bound to the specified interface
+     * @param ifName network interface name
+     * @param blocks number of blocks in the ring
+     * @param blockSize size of each block, must be multiple of page size and frame size
+     * @param frameSize frame size, must be multiple of 16
+     * @param qdiscBypass true to send frames directly to driver skipping qdisc layer
+     * @return tx ring instance to work with
+     * @throws SocketException if interface is not available
+     */
+    public static TxRing open(String ifName, int blocks, int blockSize, int frameSize, boolean qdiscBypass)
+            throws SocketException
+    {
+        NetworkInterface nInterface = NetworkInterface.getByName(ifName);
+        if (nInterface == null) {
+            throw new IllegalArgumentException("unknown network interface: " + ifName);
+        }
+
+        if (blocks < 1) {
+            throw new IllegalArgumentException("number of blocks must be > 0");
+        }
+        if ((blockSize < PAGE_SIZE) || (blockSize % PAGE_SIZE != 0)) {
+            throw new IllegalArgumentException("block size must be multiple of " + PAGE_SIZE);
+        }
+        if ((frameSize < FRAME_IPV6_DATA_SHIFT) || (frameSize % TPACKET_ALIGNMENT != 0) || (blockSize % frameSize != 0)) {
+            throw new IllegalArgumentException("frame size must be multiple of " + TPACKET_ALIGNMENT + " and divide block size");
+        }
+        if ((long)blocks * blockSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("ring is too big, blocks * block size must be < 2GB");
+        }
+
+        int sd = _socket(nInterface.getIndex(), blocks, blockSize, frameSize, qdiscBypass);
+        if (sd == -1) {
+            throw new RuntimeException("error opening tx ring socket, errno: " + _errno());
+        }
+
+        ByteBuffer ring = _mmap(sd, blocks * blockSize);
+        if (ring == null) {
+            int errno = _errno();
+            _close(sd, null, 0);
+            throw new RuntimeException("error mapping tx ring, errno: " + errno);
+        }
+
+        // buffer from native code is always big endian
+        ring.order(ByteOrder.nativeOrder());
+        return new TxRing(sd, ring, blocks, blockSize, frameSize);
+    }
+
+    /**
+     * constructs container object for the opened socket and mapped ring
+     */
+    private TxRing(int _sd, ByteBuffer _ring, int _blocks, int _blockSize, int _frameSize) {
+        sd = _sd;
+        ring = _ring;
+        blocks = _blocks;
+        blockSize = _blockSize;
+        frameSize = _frameSize;
+        frames = _blocks * (_blockSize / _frameSize);
+    }
+
+    /**
+     * frames never cross blocks' boundaries as block size is multiple of frame size
+     * @param index frame index
+     * @return offset of the frame in the ring
+     */
+    public int frame(int index) {
+        return index * frameSize;
+    }
+
+    /**
+     * takes the next frame if it's not used by kernel
+     * @return index of the frame to fill or -1 if ring is full
+     */
+    public int acquire() {
+        int index = frameToFill;
+        int status = (int)STATUS.getAcquire(ring, frame(index) + FRAME_STATUS_SHIFT);
+        if (status == TP_STATUS_WRONG_FORMAT) {
+            // kernel rejected this frame, just reuse it
+            txWrongFormat++;
+        } else if (status != TP_STATUS_AVAILABLE) {
+            return -1;
+        }
+
+        frameToFill = (index + 1) % frames;
+        return index;
+    }
+
+    /**
+     * marks filled frame as ready to be sent,
+     * frame will be sent only after {@link TxRing#flush(boolean)}
+     * @param index frame index from {@link TxRing#acquire()}
+     * @param length length of the frame data starting from ethernet header
+     */
+    public void commit(int index, int length) {
+        int base = frame(index);
+        ring.putInt(base + FRAME_LEN_SHIFT, length);
+        STATUS.setRelease(ring, base + FRAME_STATUS_SHIFT, TP_STATUS_SEND_REQUEST);
+    }
+
+    /**
+     * kicks kernel to send all committed frames
+     * @param wait true to wait till all frames are sent
+     * @return number of bytes queued, -1 in case of any error
+     */
+    public int flush(boolean wait) {
+        return _send(sd, wait);
+    }
+
+    /**
+     * populates ethernet header of the frame
+     * @param index frame index
+     * @param dstMac destination mac address, 6 bytes
+     * @param srcMac source mac address, 6 bytes
+     * @param ethType ethernet type, like {@link TxRing#ETH_P_IPV6}
+     */
+    public void populateEthernetHeader(int index, byte[] dstMac, byte[] srcMac, int ethType) {
+        int base = frame(index) + FRAME_DATA_SHIFT;
+        put(base, dstMac, 6);
+        put(base + 6, srcMac, 6);
+        ring.put(base + 12, (byte)(ethType >> 8));
+        ring.put(base + 13, (byte)ethType);
+    }
+
+    /**
+     * populates fixed ipv6 header of the frame, payload length
+     * must be updated for each packet with {@link TxRing#setIpv6PayloadLength(int, int)}
+     * @param index frame index
+     * @param src source address, 16 bytes
+     * @param dst destination address, 16 bytes
+     * @param nextHeader next header (protocol)
+     * @param hopLimit hop limit
+     */
+    public void populateIpv6Header(int index, byte[] src, byte[] dst, int nextHeader, int hopLimit) {
+        int base = frame(index) + FRAME_IPV6_HDR_SHIFT;
+        // version 6, no traffic class and flow label
+        ring.put(base, (byte)0x60);
+        ring.put(base + 1, (byte)0);
+        ring.put(base + 2, (byte)0);
+        ring.put(base + 3, (byte)0);
+        setIpv6PayloadLength(index, 0);
+        ring.put(base + 6, (byte)nextHeader);
+        ring.put(base + 7, (byte)hopLimit);
+        put(base + 8, src, 16);
+        put(base + 24, dst, 16);
+    }
+
+    /**
+     * updates payload length field of ipv6 header (network order)
+     * @param index frame index
+     * @param length payload length
+     */
+    public void setIpv6PayloadLength(int index, int length) {
+        int base = frame(index) + FRAME_IPV6_HDR_SHIFT;
+        ring.put(base + 4, (byte)(length >> 8));
+        ring.put(base + 5, (byte)length);
+    }
+
+    /**
+     * copies bytes into the ring without touching its position
+     * @param offset offset in the ring
+     * @param src source bytes
+     * @param length number of bytes to copy
+     */
+    private void put(int offset, byte[] src, int length) {
+        for (int i = 0; i < length; i++) {
+            ring.put(offset + i, src[i]);
+        }
+    }
+
+    /**
+     * unmaps the ring and closes socket descriptor,
+     * ring buffer must not be accessed after this call
+     * @return result of the operations, -1 in case of any error
+     */
+    public int close() {
+        return _close(sd, ring, blocks * blockSize);
+    }
+
+    /**
+     * @return error code after any operation that returned error flag (-1)
+     */
+    public int errno() {
+        return _errno();
+    }
+
+
+    /**
+     * opens AF_PACKET socket with TPACKET_V2 tx ring and binds it to the interface
+     * @return socket descriptor or -1 in case of any error
+     */
+    private native static int _socket(int ifIndex, int _blocks, int _blockSize, int _frameSize, boolean _qdiscBypass);
+
+    /**
+     * maps tx ring of the socket into memory
+     * @param socket socket descriptor with tx ring configured
+     * @param length ring size in bytes, blocks*blockSize
+     * @return direct buffer (big endian) over the mapped ring or null in case of any error
+     */
+    private native static ByteBuffer _mmap(int socket, int length);
+
+    /**
+     * sends all frames marked with send request
+     * @param socket socket descriptor
+     * @param wait true to block till frames are sent
+     * @return number of bytes queued, -1 in case of any error
+     */
+    private native static int _send(int socket, boolean wait);
+
+    /**
+     * unmaps the ring (if specified) and closes socket descriptor
+     * @param socket socket descriptor
+     * @param ring buffer returned by {@link TxRing#_mmap(int, int)} or null
+     * @param length ring size in bytes
+     * @return result of the operations, -1 in case of any error
+     */
+    private native static int _close(int socket, ByteBuffer ring, int length);
+
+    /**
+     * @return errno result with the last error
+     */
+    private native static int _errno();
+}
@@ -0,0 +1,45 @@
+#include <errno.h>
+#include <stdlib.h>
+
+#include <sys/socket.h>
+#include <linux/filter.h>
+
+#include "sockfilter.h"
+
+/*
+ number of ints per instruction in java program
+ */
+#define FILTER_INSN_FIELDS  4
+
+int sockfilter_attach(JNIEnv *env, int sd, jintArray program)
+{
+    struct sock_fprog prog;
+    jsize length = (*env)->GetArrayLength(env, program);
+
+    if ((length == 0) || (length % FILTER_INSN_FIELDS != 0) || (length / FILTER_INSN_FIELDS > BPF_MAXINSNS)) {
+        errno = EINVAL;
+        return -1;
+    }
+
+    prog.len = length / FILTER_INSN_FIELDS;
+    prog.filter = malloc(prog.len * sizeof(struct sock_filter));
+    if (prog.filter == NULL) {
+        errno = ENOMEM;
+        return -1;
+    }
+
+    jint *insns = (*env)->GetIntArrayElements(env, program, NULL);
+    int i;
+    for (i = 0; i < prog.len; i++) {
+        jint *insn = insns + i * FILTER_INSN_FIELDS;
+        prog.filter[i] = (struct sock_filter) {
+            .code = (__u16)insn[0], .jt = (__u8)insn[1], .jf = (__u8)insn[2], .k = (__u32)insn[3]
+        };
+    }
+    (*env)->ReleaseIntArrayElements(env, program, insns, JNI_ABORT);
+
+    // kernel copies and validates the program
+    int result = setsockopt(sd, SOL_SOCKET, SO_ATTACH_FILTER, &prog, sizeof(prog));
+    free(prog.filter);
+    return result;
+}
@@ -0,0 +1,16 @@
+#ifndef _Included_sockfilter
+#define _Included_sockfilter
+
+#include <jni.h>
+
+/*
+ * attaches classic bpf program (SO_ATTACH_FILTER) compiled in java
+ * (xnetp.poc.sockets.SocketFilter) to the socket, program is an array
+ * of 4 ints per instruction: code, jt, jf, k; the filter replaces any
+ * previously attached one, shared by raw socket and rx ring libraries
+ *
+ * returns result of setsockopt call, -1 in case of any error (errno is set)
+ */
+int sockfilter_attach(JNIEnv *env, int sd, jintArray program);
+
+#endif
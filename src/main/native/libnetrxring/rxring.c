@@ -33,24 +33,23 @@
 
 
 #include "rxring.h"
-
-struct ring {
-	struct iovec *rd;
-	uint8_t *map;
-	struct tpacket_req3 req;
-};
-
+#include "sockfilter.h"
 
 /*
  * Class:     xnetp_poc_sockets_RxRing
  * Method:    _socket
- * Signature: (Ljava/nio/ByteBuffer;III)I
+ * Signature: (IIIII)I
+ *
+ * opens AF_PACKET socket with TPACKET_V3 rx ring of blocks*block_size bytes
+ * and binds it to the interface, ring must be mapped with _mmap,
+ * returns socket descriptor or -1 in case of any error (errno is preserved)
  */
 JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RxRing__1socket
-  (JNIEnv *env, jclass _class, jint if_index, jobject ring, jint blocks, jint block_size, jint frame_size)
+  (JNIEnv *env, jclass _class, jint if_index, jint blocks, jint block_size, jint frame_size, jint retire_tov)
 {
-	int err, i, fd, v = TPACKET_V3;
+	int err, fd, v = TPACKET_V3;
 	struct sockaddr_ll ll;
+	struct tpacket_req3 req;
 
 	fd = socket(AF_PACKET, SOCK_RAW, htons(ETH_P_ALL));
 	if (fd < 0) {
@@ -59,38 +58,22 @@ JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RxRing__1socket
 
 	err = setsockopt(fd, SOL_PACKET, PACKET_VERSION, &v, sizeof(v));
 	if (err < 0) {
-		return err;
+		goto error;
 	}
 
-    struct tpacket_req3 req;
-
 	memset(&req, 0, sizeof(req));
 	req.tp_block_size = block_size;
 	req.tp_frame_size = frame_size;
 	req.tp_block_nr = blocks;
-	req.tp_frame_nr = (block_size * blocks) / frame_size;
-	req.tp_retire_blk_tov = 60;
+	req.tp_frame_nr = (block_size / frame_size) * blocks;
+	req.tp_retire_blk_tov = retire_tov;
 	req.tp_feature_req_word = TP_FT_REQ_FILL_RXHASH;
 
 	err = setsockopt(fd, SOL_PACKET, PACKET_RX_RING, &req, sizeof(req));
 	if (err < 0) {
-		return err;
-	}
-
-	uint8_t *map;
-	map = mmap(NULL, block_size * blocks, PROT_READ | PROT_WRITE, MAP_SHARED | MAP_LOCKED, fd, 0);
-	if (map == MAP_FAILED) {
-		return -1;
+		goto error;
 	}
 
-	//printf("lib: open: mapped: 0x%llX\n", (uint64_t)map);
-    //printf("lib:           ");
-
-    uint8_t *address  = (*env)->GetDirectBufferAddress(env, ring);
-    //memcpy(address, &map, sizeof(map));
-    *((uint64_t*)address) = (uint64_t)map;
-
-
 	memset(&ll, 0, sizeof(ll));
 	ll.sll_family = PF_PACKET;
 	ll.sll_protocol = htons(ETH_P_ALL);
@@ -101,22 +84,55 @@ JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RxRing__1socket
 
 	err = bind(fd, (struct sockaddr *) &ll, sizeof(ll));
 	if (err < 0) {
-		return err;
+		goto error;
 	}
 
 	return fd;
+
+error:
+	/* keep errno of the failed call for java side */
+	err = errno;
+	close(fd);
+	errno = err;
+	return -1;
+}
+
+/*
+ * Class:     xnetp_poc_sockets_RxRing
+ * Method:    _mmap
+ * Signature: (II)Ljava/nio/ByteBuffer;
+ *
+ * maps rx ring and wraps it into direct buffer of the ring size,
+ * returns NULL in case of any error (errno is preserved)
+ */
+JNIEXPORT jobject JNICALL Java_xnetp_poc_sockets_RxRing__1mmap
+  (JNIEnv *env, jclass _class, jint fd, jint length)
+{
+	uint8_t *map;
+	jobject buffer;
+
+	map = mmap(NULL, (size_t)length, PROT_READ | PROT_WRITE, MAP_SHARED | MAP_LOCKED, fd, 0);
+	if (map == MAP_FAILED) {
+		return NULL;
+	}
+
+	buffer = (*env)->NewDirectByteBuffer(env, map, (jlong)length);
+	if (buffer == NULL) {
+		munmap(map, (size_t)length);
+		return NULL;
+	}
+	return buffer;
 }
 
 /*
  * Class:     xnetp_poc_sockets_RxRing
  * Method:    _poll
- * Signature: ()Z
+ * Signature: (II)I
  */
 JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RxRing__1poll
   (JNIEnv *env, jclass _class, jint fd, jint timeout)
 {
 	struct pollfd pfd;
-	//memset(&pfd, 0, sizeof(pfd));
 	pfd.fd = fd;
 	pfd.events = POLLIN | POLLERR;
 	pfd.revents = 0;
@@ -130,37 +146,77 @@ JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RxRing__1poll
 /*
  * Class:     xnetp_poc_sockets_RxRing
  * Method:    _close
- * Signature: (I)I
+ * Signature: (ILjava/nio/ByteBuffer;I)I
+ *
+ * unmaps ring buffer created by _mmap (if not NULL) and closes the socket
  */
 JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RxRing__1close
-  (JNIEnv *env, jclass _class, jint sd, jobject ring, jint blocks, jint block_size)
+  (JNIEnv *env, jclass _class, jint sd, jobject ring, jint length)
 {
-    void *address  = (*env)->GetDirectBufferAddress(env, ring);
-	munmap(address, blocks * block_size);
-    return close(sd);
+	if (ring != NULL) {
+		void *address  = (*env)->GetDirectBufferAddress(env, ring);
+		if (address != NULL) {
+			munmap(address, (size_t)length);
+		}
+	}
+	return close(sd);
 }
 
-
 /*
  * Class:     xnetp_poc_sockets_RxRing
- * Method:    _X_close
- * Signature: (ILjava/nio/ByteBuffer;)I
+ * Method:    _fanout
+ * Signature: (III)I
+ *
+ * joins bound socket to the fanout group with the specified mode,
+ * all sockets of the group must use the same mode
  */
-JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RxRing__1X_1close
-  (JNIEnv *env, jclass _class, jint sd, jobject ring, jint blocks, jint block_size)
+JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RxRing__1fanout
+  (JNIEnv *env, jclass _class, jint fd, jint group_id, jint mode)
 {
-    void *address  = (*env)->GetDirectBufferAddress(env, ring);
-
-	uint8_t *mapped;
-    //memcpy(&mapped, address, sizeof(mapped));
+	int arg = (group_id & 0xFFFF) | (mode << 16);
+	return setsockopt(fd, SOL_PACKET, PACKET_FANOUT, &arg, sizeof(arg));
+}
 
-    mapped = (uint8_t*) *((uint64_t*)address);
+/*
+ * Class:     xnetp_poc_sockets_RxRing
+ * Method:    _statistics
+ * Signature: (I[I)I
+ *
+ * reads and resets kernel statistics of the socket,
+ * stats array is populated with [tp_packets, tp_drops, tp_freeze_q_cnt]
+ */
+JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RxRing__1statistics
+  (JNIEnv *env, jclass _class, jint fd, jintArray stats)
+{
+	struct tpacket_stats_v3 st;
+	socklen_t len = sizeof(st);
+	jint values[3];
 
+	int err = getsockopt(fd, SOL_PACKET, PACKET_STATISTICS, &st, &len);
+	if (err < 0) {
+		return err;
+	}
 
-	//printf("lib: close: mapped: 0x%llX\n", (long long)mapped);
+	values[0] = st.tp_packets;
+	values[1] = st.tp_drops;
+	values[2] = st.tp_freeze_q_cnt;
+	(*env)->SetIntArrayRegion(env, stats, 0, 3, values);
+	return 0;
+}
 
-	munmap(mapped, blocks * block_size);
-    return close(sd);
+/*
+ * Class:     xnetp_poc_sockets_RxRing
+ * Method:    _attachFilter
+ * Signature: (I[I)I
+ *
+ * attaches classic bpf program (SO_ATTACH_FILTER) compiled in java
+ * (SocketFilter), program is an array of 4 ints per instruction:
+ * code, jt, jf, k; filter replaces any previously attached one
+ */
+JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RxRing__1attachFilter
+  (JNIEnv *env, jclass _class, jint fd, jintArray program)
+{
+	return sockfilter_attach(env, fd, program);
 }
 
 /*
@@ -10,15 +10,23 @@ extern "C" {
 /*
  * Class:     xnetp_poc_sockets_RxRing
  * Method:    _socket
- * Signature: (Ljava/nio/ByteBuffer;III)I
+ * Signature: (IIIII)I
  */
 JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RxRing__1socket
-  (JNIEnv *, jclass, jint, jobject, jint, jint, jint);
+  (JNIEnv *, jclass, jint, jint, jint, jint, jint);
+
+/*
+ * Class:     xnetp_poc_sockets_RxRing
+ * Method:    _mmap
+ * Signature: (II)Ljava/nio/ByteBuffer;
+ */
+JNIEXPORT jobject JNICALL Java_xnetp_poc_sockets_RxRing__1mmap
+  (JNIEnv *, jclass, jint, jint);
 
 /*
  * Class:     xnetp_poc_sockets_RxRing
  * Method:    _poll
- * Signature: ()Z
+ * Signature: (II)I
  */
 JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RxRing__1poll
   (JNIEnv *, jclass, jint, jint);
@@ -26,19 +34,34 @@ JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RxRing__1poll
 /*
  * Class:     xnetp_poc_sockets_RxRing
  * Method:    _close
- * Signature: (I)I
+ * Signature: (ILjava/nio/ByteBuffer;I)I
  */
 JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RxRing__1close
-  (JNIEnv *, jclass, jint, jobject, jint, jint);
+  (JNIEnv *, jclass, jint, jobject, jint);
+
+/*
+ * Class:     xnetp_poc_sockets_RxRing
+ * Method:    _fanout
+ * Signature: (III)I
+ */
+JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RxRing__1fanout
+  (JNIEnv *, jclass, jint, jint, jint);
 
+/*
+ * Class:     xnetp_poc_sockets_RxRing
+ * Method:    _statistics
+ * Signature: (I[I)I
+ */
+JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RxRing__1statistics
+  (JNIEnv *, jclass, jint, jintArray);
 
 /*
  * Class:     xnetp_poc_sockets_RxRing
- * Method:    _X_close
- * Signature: (ILjava/nio/ByteBuffer;)I
+ * Method:    _attachFilter
+ * Signature: (I[I)I
  */
-JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RxRing__1X_1close
-  (JNIEnv *, jclass, jint, jobject, jint, jint);
+JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RxRing__1attachFilter
+  (JNIEnv *, jclass, jint, jintArray);
 
 /*
  * Class:     xnetp_poc_sockets_RxRing
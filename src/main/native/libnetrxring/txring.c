@@ -0,0 +1,159 @@
+
+#define _GNU_SOURCE
+
+#include <errno.h>
+#include <string.h>
+
+#include <netinet/in.h>
+#include <unistd.h>
+
+#include <sys/socket.h>
+#include <sys/mman.h>
+
+#include <linux/if_packet.h>
+#include <linux/if_ether.h>
+
+#include <stdint.h>
+#include <arpa/inet.h>
+
+
+#include "txring.h"
+
+
+/*
+ * Class:     xnetp_poc_sockets_TxRing
+ * Method:    _socket
+ * Signature: (IIIIZ)I
+ *
+ * opens AF_PACKET socket with TPACKET_V2 tx ring of blocks*block_size bytes
+ * and binds it to the interface, socket doesn't receive anything (protocol 0),
+ * ring must be mapped with _mmap,
+ * returns socket descriptor or -1 in case of any error (errno is preserved)
+ */
+JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_TxRing__1socket
+  (JNIEnv *env, jclass _class, jint if_index, jint blocks, jint block_size, jint frame_size, jboolean qdisc_bypass)
+{
+	int err, fd, v = TPACKET_V2, one = 1;
+	struct sockaddr_ll ll;
+	struct tpacket_req req;
+
+	fd = socket(AF_PACKET, SOCK_RAW, 0);
+	if (fd < 0) {
+		return fd;
+	}
+
+	err = setsockopt(fd, SOL_PACKET, PACKET_VERSION, &v, sizeof(v));
+	if (err < 0) {
+		goto error;
+	}
+
+	/* send directly to the driver, skip kernel qdisc layer */
+	if (qdisc_bypass) {
+		err = setsockopt(fd, SOL_PACKET, PACKET_QDISC_BYPASS, &one, sizeof(one));
+		if (err < 0) {
+			goto error;
+		}
+	}
+
+	memset(&req, 0, sizeof(req));
+	req.tp_block_size = block_size;
+	req.tp_frame_size = frame_size;
+	req.tp_block_nr = blocks;
+	req.tp_frame_nr = (block_size / frame_size) * blocks;
+
+	err = setsockopt(fd, SOL_PACKET, PACKET_TX_RING, &req, sizeof(req));
+	if (err < 0) {
+		goto error;
+	}
+
+	memset(&ll, 0, sizeof(ll));
+	ll.sll_family = PF_PACKET;
+	ll.sll_protocol = 0;
+	ll.sll_ifindex = if_index;
+
+	err = bind(fd, (struct sockaddr *) &ll, sizeof(ll));
+	if (err < 0) {
+		goto error;
+	}
+
+	return fd;
+
+error:
+	/* keep errno of the failed call for java side */
+	err = errno;
+	close(fd);
+	errno = err;
+	return -1;
+}
+
+/*
+ * Class:     xnetp_poc_sockets_TxRing
+ * Method:    _mmap
+ * Signature: (II)Ljava/nio/ByteBuffer;
+ *
+ * maps tx ring and wraps it into direct buffer of the ring size,
+ * returns NULL in case of any error (errno is preserved)
+ */
+JNIEXPORT jobject JNICALL Java_xnetp_poc_sockets_TxRing__1mmap
+  (JNIEnv *env, jclass _class, jint fd, jint length)
+{
+	uint8_t *map;
+	jobject buffer;
+
+	map = mmap(NULL, (size_t)length, PROT_READ | PROT_WRITE, MAP_SHARED | MAP_LOCKED, fd, 0);
+	if (map == MAP_FAILED) {
+		return NULL;
+	}
+
+	buffer = (*env)->NewDirectByteBuffer(env, map, (jlong)length);
+	if (buffer == NULL) {
+		munmap(map, (size_t)length);
+		return NULL;
+	}
+	return buffer;
+}
+
+/*
+ * Class:     xnetp_poc_sockets_TxRing
+ * Method:    _send
+ * Signature: (IZ)I
+ *
+ * kicks kernel to send all frames marked with TP_STATUS_SEND_REQUEST,
+ * waits till frames are sent if requested,
+ * returns number of bytes queued or -1 in case of any error
+ */
+JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_TxRing__1send
+  (JNIEnv *env, jclass _class, jint fd, jboolean wait)
+{
+	return send(fd, NULL, 0, wait ? 0 : MSG_DONTWAIT);
+}
+
+/*
+ * Class:     xnetp_poc_sockets_TxRing
+ * Method:    _close
+ * Signature: (ILjava/nio/ByteBuffer;I)I
+ *
+ * unmaps ring buffer created by _mmap (if not NULL) and closes the socket
+ */
+JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_TxRing__1close
+  (JNIEnv *env, jclass _class, jint sd, jobject ring, jint length)
+{
+	if (ring != NULL) {
+		void *address  = (*env)->GetDirectBufferAddress(env, ring);
+		if (address != NULL) {
+			munmap(address, (size_t)length);
+		}
+	}
+	return close(sd);
+}
+
+/*
+ * Class:     xnetp_poc_sockets_TxRing
+ * Method:    _errno
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_TxRing__1errno
+  (JNIEnv *env, jclass _class)
+{
+    return errno;
+}
@@ -0,0 +1,121 @@
+#ifndef _GNU_SOURCE
+#define _GNU_SOURCE
+#endif
+
+
+#include <cstdint>
+#include <errno.h>
+#include <jni.h>
+#include <sched.h>
+#include <sys/mman.h>
+#include <sys/syscall.h>
+#include <unistd.h>
+
+
+#include "memory.h"
+
+
+/* huge page size used to round regions, 2MB on x86_64 */
+#define HUGE_PAGE_SIZE      (2 * 1024 * 1024)
+
+
+/*
+ * Class:     xnetp_poc_affinity_Memory
+ * Method:    __map
+ * Signature: (JZ)Ljava/nio/ByteBuffer;
+ *
+ * maps anonymous region, tries explicit huge pages (MAP_HUGETLB) first
+ * and falls back to regular pages with transparent huge pages advice,
+ * pages are not touched, so they will be placed on the numa node
+ * of the first thread writing into them (default local policy),
+ * returns direct buffer (big endian) or NULL in case of any error
+ */
+JNIEXPORT jobject JNICALL Java_xnetp_poc_affinity_Memory__1_1map
+  (JNIEnv *env, jclass _class, jlong size, jboolean huge)
+{
+    void *region = MAP_FAILED;
+
+    if (huge) {
+        size = (size + HUGE_PAGE_SIZE - 1) & ~((jlong)HUGE_PAGE_SIZE - 1);
+        region = mmap(NULL, size, PROT_READ | PROT_WRITE,
+                MAP_PRIVATE | MAP_ANONYMOUS | MAP_HUGETLB, -1, 0);
+    }
+
+    if (region == MAP_FAILED) {
+        // no reserved huge pages, use regular ones
+        region = mmap(NULL, size, PROT_READ | PROT_WRITE,
+                MAP_PRIVATE | MAP_ANONYMOUS, -1, 0);
+        if (region == MAP_FAILED) {
+            return NULL;
+        }
+        if (huge) {
+            // ask for transparent huge pages, errors are not critical
+            madvise(region, size, MADV_HUGEPAGE);
+        }
+    }
+
+    jobject buffer = env->NewDirectByteBuffer(region, size);
+    if (buffer == NULL) {
+        munmap(region, size);
+    }
+    return buffer;
+}
+
+/*
+ * Class:     xnetp_poc_affinity_Memory
+ * Method:    __touch
+ * Signature: (Ljava/nio/ByteBuffer;I)V
+ *
+ * writes one byte into each page of the region to fault pages in
+ * from the calling thread
+ */
+JNIEXPORT void JNICALL Java_xnetp_poc_affinity_Memory__1_1touch
+  (JNIEnv *env, jclass _class, jobject buffer, jint page)
+{
+    volatile uint8_t *address = (uint8_t*) env->GetDirectBufferAddress(buffer);
+    jlong capacity = env->GetDirectBufferCapacity(buffer);
+
+    for (jlong i = 0; i < capacity; i += page) {
+        address[i] = 0;
+    }
+}
+
+/*
+ * Class:     xnetp_poc_affinity_Memory
+ * Method:    __unmap
+ * Signature: (Ljava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_xnetp_poc_affinity_Memory__1_1unmap
+  (JNIEnv *env, jclass _class, jobject buffer)
+{
+    void *address = env->GetDirectBufferAddress(buffer);
+    jlong capacity = env->GetDirectBufferCapacity(buffer);
+
+    return munmap(address, capacity);
+}
+
+/*
+ * Class:     xnetp_poc_affinity_Memory
+ * Method:    __getNode
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_xnetp_poc_affinity_Memory__1_1getNode
+  (JNIEnv *env, jclass _class)
+{
+    unsigned int cpu, node;
+    if (syscall(SYS_getcpu, &cpu, &node, NULL) < 0) {
+        return -1;
+    }
+    return (jint) node;
+}
+
+/*
+ * Class:     xnetp_poc_affinity_Memory
+ * Method:    __errno
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_xnetp_poc_affinity_Memory__1_1errno
+  (JNIEnv *env, jclass _class)
+{
+    return errno;
+}
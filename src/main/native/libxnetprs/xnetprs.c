@@ -2,6 +2,7 @@
 #define _GNU_SOURCE
 
 #include <errno.h>
+#include <stdlib.h>
 #include <string.h>
 
 
@@ -14,6 +15,7 @@
 
 
 #include "xnetprs.h"
+#include "sockfilter.h"
 
 
 /*
@@ -40,13 +42,21 @@ to setup extract functions
 #define PACKET_IPV6_HDR_LENGTH          40
 #define SLOT_DATA_SHIFT                 (SLOT_HEADER_LENGTH + PACKET_IPV6_HDR_LENGTH)
 
+/*
+ kernel receive timestamp (int64 ns, CLOCK_REALTIME, 0 if not available),
+ right after slot header, it uses ip header reserve that is never
+ filled on receive as raw ipv6 sockets don't return ip headers
+*/
+#define SLOT_TIMESTAMP_SHIFT            SLOT_HEADER_LENGTH
+#define SLOT_TIMESTAMP_LENGTH            8
+
 
 //#define BUF_IPV6_HEADER_LENGTH          SLOT_HEADER_LENGTH
 //#define BUF_IPV6_HEADER_ADDR_SHIFT      SLOT_HEADER_ADDR_SHIFT
 //#define BUF_IPV6_HEADER_DATALEN_SHIFT   SLOT_HEADER_DATALEN_SHIFT
 //#define BUF_IPV6_HEADER_DATA_SHIFT      BUF_IPV6_HEADER_LENGTH
 
-/* TODO: preallocate per thread data _thread array[]*/
+/* limit for legacy calls with headers on stack, bound batches have no such limit */
 #define BUF_MMSG_MESSAGES_MAX 1024
 
 
@@ -120,6 +130,34 @@ JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RawSocket__1setReceiveBufferSize
     return setsockopt(sd, SOL_SOCKET, SO_RCVBUF, (void*)&size, sizeof(size));
 }
 
+/*
+ * Class:     xnetp_poc_sockets_RawSocket
+ * Method:    _enableTimestamps
+ * Signature: (I)I
+ */
+JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RawSocket__1enableTimestamps
+  (JNIEnv *env, jclass _class, jint sd)
+{
+    int enable = 1;
+    return setsockopt(sd, SOL_SOCKET, SO_TIMESTAMPNS, (void*)&enable, sizeof(enable));
+}
+
+
+/*
+ * Class:     xnetp_poc_sockets_RawSocket
+ * Method:    _attachFilter
+ * Signature: (I[I)I
+ *
+ * raw sockets of the same protocol get copies of all packets,
+ * filters (shards, packet types, lengths, uni prefixes) are compiled
+ * into classic bpf in java (SocketFilter), see sockfilter.h
+ */
+JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RawSocket__1attachFilter
+  (JNIEnv *env, jclass _class, jint sd, jintArray program)
+{
+    return sockfilter_attach(env, sd, program);
+}
+
 
 /*
  * Class:     xnetp_poc_sockets_RawSocket
@@ -306,6 +344,7 @@ JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RawSocket__1sendmmsg4
 {
     if (BUF_MMSG_MESSAGES_MAX < _msglen) {
         (*env)->ThrowNew(env, (*env)->FindClass(env, "java/lang/IllegalArgumentException"), "Number of messages to send is too big.");
+        return -1;
     }
 
     /* headers for all possible messages*/
@@ -396,6 +435,7 @@ JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RawSocket__1recvmmsg4
 {
     if (BUF_MMSG_MESSAGES_MAX < _msgs_max) {
         (*env)->ThrowNew(env, (*env)->FindClass(env, "java/lang/IllegalArgumentException"), "Number of messages to receive is too big.");
+        return -1;
     }
 
     /* headers for all possible messages*/
@@ -452,6 +492,7 @@ JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RawSocket__1sendmmsg6
 {
     if (BUF_MMSG_MESSAGES_MAX < _msglen) {
         (*env)->ThrowNew(env, (*env)->FindClass(env, "java/lang/IllegalArgumentException"), "Number of messages to send is too big.");
+        return -1;
     }
 
     /* headers for all possible messages*/
@@ -555,6 +596,7 @@ JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RawSocket__1recvmmsg6
 {
     if (BUF_MMSG_MESSAGES_MAX < _msgs_max) {
         (*env)->ThrowNew(env, (*env)->FindClass(env, "java/lang/IllegalArgumentException"), "Number of messages to receive is too big.");
+        return -1;
     }
 
     /* headers and messages' pointers */
@@ -598,3 +640,516 @@ JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RawSocket__1recvmmsg6
 
     return recv_number;
 }
+
+
+
+/*
+ bound batch, prepared once for a (socket, buffer) pair and reused by all calls,
+ message headers point directly into the buffer's slots:
+   msg_name -> slot header, it has sockaddr_in6 layout (address at SLOT_HEADER_ADDR_SHIFT)
+   iov_base -> slot data
+ so only data lengths must be updated per call
+
+ packed batch owns its buffer (scratch) with slots without ip header reserve,
+ packets are received into scratch and then packed back-to-back into
+ java buffers with packed layout:
+   [INDEX: slots * 4] [RECORD] [RECORD] ...
+   record: [SLOT HEADER: 32] [TIMESTAMP: 8] [DATA], aligned to PACKED_RECORD_ALIGNMENT
+ packets that don't fit into the target buffer are kept in scratch (pending)
+ and returned by the next call without system call
+*/
+#define PACKED_INDEX_ENTRY_LENGTH        4
+#define PACKED_RECORD_ALIGNMENT          8
+#define PACKED_DATA_SHIFT               (SLOT_HEADER_LENGTH + SLOT_TIMESTAMP_LENGTH)
+
+/* control message space per slot, fits SCM_TIMESTAMPNS only */
+#define MMSG_CONTROL_LENGTH             CMSG_SPACE(sizeof(struct timespec))
+
+struct mmsg_batch6 {
+    void            *buffer;        /* base address of the java direct buffer or scratch */
+    int             slots;          /* number of prepared messages */
+    int             slot_size;      /* bytes per slot */
+    int             data_shift;     /* data shift inside slot */
+    struct mmsghdr  *headers;       /* slots headers */
+    struct iovec    *messages;      /* slots data pointers */
+    void            *controls;      /* slots control messages, receive timestamps */
+    int             dirty;          /* number of slots with data lengths set by send */
+    int             chunk;          /* max messages per one system call, kernel limit */
+    void            *scratch;       /* owned buffer for packed batches, NULL otherwise */
+    int             pending_from;   /* packed: first received message not yet packed */
+    int             pending_to;     /* packed: number of received messages in scratch */
+    int32_t         *filter;        /* valid data length per packet type, -1 to reject, NULL - no filter */
+    int             filter_type_shift;  /* packet type shift inside data */
+    int             rejected;       /* packets rejected by filter during the last call */
+};
+
+/* number of packet types in filter (one byte codes) */
+#define MMSG_FILTER_TYPES               256
+
+
+/*
+ kernel silently truncates vlen of sendmmsg/recvmmsg to UIO_MAXIOV,
+ so bigger batches are split into chunks of this size
+*/
+static int mmsg_chunk_max()
+{
+    long iov_max = sysconf(_SC_IOV_MAX);
+    return (iov_max > 0) ? (int)iov_max : BUF_MMSG_MESSAGES_MAX;
+}
+
+/*
+ * Class:     xnetp_poc_sockets_RawSocket
+ * Method:    _mmsgChunkMax
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RawSocket__1mmsgChunkMax
+  (JNIEnv *env, jclass _class)
+{
+    return mmsg_chunk_max();
+}
+
+/*
+ allocates batch and prepares headers for all slots of the buffer,
+ sets address family in each slot header to be used as destination,
+ returns NULL in case of any error (errno is set)
+*/
+static struct mmsg_batch6 *mmsg_batch6_alloc(void *buffer, int slots, int slot_size, int data_shift)
+{
+    struct mmsg_batch6 *batch;
+    int i;
+
+    batch = calloc(1, sizeof(struct mmsg_batch6));
+    if (batch == NULL) {
+        return NULL;
+    }
+    batch->headers = calloc(slots, sizeof(struct mmsghdr));
+    batch->messages = calloc(slots, sizeof(struct iovec));
+    batch->controls = calloc(slots, MMSG_CONTROL_LENGTH);
+    if ((batch->headers == NULL) || (batch->messages == NULL) || (batch->controls == NULL)) {
+        free(batch->headers);
+        free(batch->messages);
+        free(batch->controls);
+        free(batch);
+        errno = ENOMEM;
+        return NULL;
+    }
+
+    batch->buffer = buffer;
+    batch->slots = slots;
+    batch->slot_size = slot_size;
+    batch->data_shift = data_shift;
+    batch->chunk = mmsg_chunk_max();
+
+    for (i = 0; i < slots; i++) {
+        void *slot = buffer + (uint64_t)i*slot_size;
+
+        /* slot header is used as sockaddr_in6 in place, only address is updated by java */
+        ((struct sockaddr_in6*)slot)->sin6_family = AF_INET6;
+
+        /* full data space, updated with actual lengths on send */
+        batch->messages[i].iov_base = slot + data_shift;
+        batch->messages[i].iov_len = slot_size - data_shift;
+
+        batch->headers[i].msg_hdr.msg_iov = &batch->messages[i];
+        batch->headers[i].msg_hdr.msg_iovlen = 1;
+        batch->headers[i].msg_hdr.msg_name = slot;
+        batch->headers[i].msg_hdr.msg_namelen = sizeof(struct sockaddr_in6);
+
+        /* control space is enabled on receive only */
+        batch->headers[i].msg_hdr.msg_control = batch->controls + (uint64_t)i*MMSG_CONTROL_LENGTH;
+        batch->headers[i].msg_hdr.msg_controllen = 0;
+    }
+
+    return batch;
+}
+
+/*
+ checks packet in the slot against batch filter,
+ valid packet has known type and exactly its length
+*/
+static int mmsg_valid(struct mmsg_batch6 *batch, void *slot)
+{
+    int32_t length = *(int32_t*)(slot + SLOT_HEADER_DATALEN_SHIFT);
+    uint8_t type;
+
+    if (length <= batch->filter_type_shift) {
+        return 0;
+    }
+    type = *(uint8_t*)(slot + batch->data_shift + batch->filter_type_shift);
+    return batch->filter[type] == length;
+}
+
+/*
+ moves valid packets of the first recv_number slots to the beginning
+ of the batch keeping their order, returns number of valid packets
+*/
+static int mmsg_batch6_compact(struct mmsg_batch6 *batch, int recv_number)
+{
+    int i, valid;
+
+    valid = 0;
+    for (i = 0; i < recv_number; i++) {
+        void *slot = batch->buffer + (uint64_t)i*batch->slot_size;
+        if (!mmsg_valid(batch, slot)) {
+            continue;
+        }
+        if (valid != i) {
+            void *to = batch->buffer + (uint64_t)valid*batch->slot_size;
+            int32_t length = *(int32_t*)(slot + SLOT_HEADER_DATALEN_SHIFT);
+            memcpy(to, slot, SLOT_HEADER_LENGTH + SLOT_TIMESTAMP_LENGTH);
+            memcpy(to + batch->data_shift, slot + batch->data_shift, length);
+        }
+        valid++;
+    }
+    batch->rejected = recv_number - valid;
+    return valid;
+}
+
+/*
+ extracts kernel receive timestamp (SO_TIMESTAMPNS) of the message,
+ returns ns since epoch or 0 if timestamps are not enabled
+*/
+static int64_t mmsg_timestamp(struct msghdr *msg)
+{
+    struct cmsghdr *cmsg;
+    struct timespec ts;
+
+    for (cmsg = CMSG_FIRSTHDR(msg); cmsg != NULL; cmsg = CMSG_NXTHDR(msg, cmsg)) {
+        if ((cmsg->cmsg_level == SOL_SOCKET) && (cmsg->cmsg_type == SCM_TIMESTAMPNS)) {
+            memcpy(&ts, CMSG_DATA(cmsg), sizeof(ts));
+            return (int64_t)ts.tv_sec * 1000000000L + ts.tv_nsec;
+        }
+    }
+    return 0;
+}
+
+/*
+ receives up to msgs_max messages into batch slots,
+ only the 1st chunk waits, next ones take what is already queued,
+ data lengths and receive timestamps are saved into slots' headers
+*/
+static int mmsg_batch6_recv(int sd, struct mmsg_batch6 *batch, int msgs_max)
+{
+    int i, recv_number, chunk, result, flags;
+
+    /* restore full data space if batch was used to send (usually never) */
+    for (i = 0; i < batch->dirty; i++) {
+        batch->messages[i].iov_len = batch->slot_size - batch->data_shift;
+    }
+    batch->dirty = 0;
+
+    /* kernel overwrites control length with the actual one */
+    for (i = 0; i < msgs_max; i++) {
+        batch->headers[i].msg_hdr.msg_controllen = MMSG_CONTROL_LENGTH;
+    }
+
+    recv_number = 0;
+    flags = MSG_WAITFORONE;
+    while (recv_number < msgs_max) {
+        chunk = (msgs_max - recv_number < batch->chunk) ? msgs_max - recv_number : batch->chunk;
+        result = recvmmsg(sd, batch->headers + recv_number, chunk, flags, NULL);
+        if (result <= 0) {
+            if (recv_number == 0) {
+                return result;
+            }
+            break;
+        }
+        recv_number += result;
+        if (result < chunk) {
+            /* receive queue is empty */
+            break;
+        }
+        flags = MSG_DONTWAIT;
+    }
+
+    /* populate received message size and timestamp (native byte order) */
+    for (i = 0; i < recv_number; i++) {
+        void *slot = batch->buffer + (uint64_t)i*batch->slot_size;
+        *(int32_t*)(slot + SLOT_HEADER_DATALEN_SHIFT) = batch->headers[i].msg_len;
+        *(int64_t*)(slot + SLOT_TIMESTAMP_SHIFT) = mmsg_timestamp(&batch->headers[i].msg_hdr);
+    }
+
+    return recv_number;
+}
+
+
+/*
+ * Class:     xnetp_poc_sockets_RawSocket
+ * Method:    _mmsgBind6
+ * Signature: (Ljava/nio/ByteBuffer;II)J
+ *
+ * prepares batch over slots of the java buffer,
+ * returns batch pointer or 0 in case of any error (errno is set)
+ */
+JNIEXPORT jlong JNICALL Java_xnetp_poc_sockets_RawSocket__1mmsgBind6
+  (JNIEnv *env, jclass _class, jobject buffer, jint _slots, jint _slotSize)
+{
+    void *bAddress;
+
+    bAddress = (*env)->GetDirectBufferAddress(env, buffer);
+    if ((bAddress == NULL) || (_slots < 1) || (_slotSize <= SLOT_DATA_SHIFT)) {
+        errno = EINVAL;
+        return 0;
+    }
+
+    return (jlong)(intptr_t)mmsg_batch6_alloc(bAddress, _slots, _slotSize, SLOT_DATA_SHIFT);
+}
+
+/*
+ * Class:     xnetp_poc_sockets_RawSocket
+ * Method:    _mmsgBindPacked6
+ * Signature: (II)J
+ *
+ * prepares batch over owned scratch buffer of _slots packets
+ * with up to _packetMax bytes of data each,
+ * returns batch pointer or 0 in case of any error (errno is set)
+ */
+JNIEXPORT jlong JNICALL Java_xnetp_poc_sockets_RawSocket__1mmsgBindPacked6
+  (JNIEnv *env, jclass _class, jint _slots, jint _packetMax)
+{
+    struct mmsg_batch6 *batch;
+    void *scratch;
+    int slot_size;
+
+    if ((_slots < 1) || (_packetMax < 1)) {
+        errno = EINVAL;
+        return 0;
+    }
+
+    /* keep slots aligned as records */
+    slot_size = (PACKED_DATA_SHIFT + _packetMax + PACKED_RECORD_ALIGNMENT - 1) & ~(PACKED_RECORD_ALIGNMENT - 1);
+    scratch = calloc(_slots, slot_size);
+    if (scratch == NULL) {
+        return 0;
+    }
+
+    batch = mmsg_batch6_alloc(scratch, _slots, slot_size, PACKED_DATA_SHIFT);
+    if (batch == NULL) {
+        free(scratch);
+        errno = ENOMEM;
+        return 0;
+    }
+    batch->scratch = scratch;
+
+    return (jlong)(intptr_t)batch;
+}
+
+/*
+ * Class:     xnetp_poc_sockets_RawSocket
+ * Method:    _mmsgSend6
+ * Signature: (IJI)I
+ *
+ * sends first _msglen slots of the bound buffer,
+ * lengths are taken from slots' headers,
+ * big batches are sent in chunks till the first partial send,
+ * returns number of messages sent or -1 if nothing was sent
+ */
+JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RawSocket__1mmsgSend6
+  (JNIEnv *env, jclass _class, jint sd, jlong _batch, jint _msglen)
+{
+    struct mmsg_batch6 *batch = (struct mmsg_batch6*)(intptr_t)_batch;
+    int i, sent, chunk, result;
+
+    if (batch->slots < _msglen) {
+        errno = EINVAL;
+        return -1;
+    }
+
+    for (i = 0; i < _msglen; i++) {
+        batch->messages[i].iov_len = *(int32_t*)(batch->buffer + (uint64_t)i*batch->slot_size + SLOT_HEADER_DATALEN_SHIFT);
+        batch->headers[i].msg_hdr.msg_controllen = 0;
+    }
+    if (batch->dirty < _msglen) {
+        batch->dirty = _msglen;
+    }
+
+    sent = 0;
+    while (sent < _msglen) {
+        chunk = (_msglen - sent < batch->chunk) ? _msglen - sent : batch->chunk;
+        result = sendmmsg(sd, batch->headers + sent, chunk, 0);
+        if (result <= 0) {
+            return (sent == 0) ? result : sent;
+        }
+        sent += result;
+        if (result < chunk) {
+            /* send queue is full */
+            break;
+        }
+    }
+    return sent;
+}
+
+/*
+ * Class:     xnetp_poc_sockets_RawSocket
+ * Method:    _mmsgRecv6
+ * Signature: (IJI)I
+ *
+ * receives up to _msgs_max messages into the bound buffer,
+ * waits for the 1st message only (MSG_WAITFORONE),
+ * source addresses are saved by kernel directly into slots' headers,
+ * big batches are received in chunks till receive queue is empty,
+ * with filter set invalid packets are compacted out, so 0 is returned
+ * if all received packets are rejected
+ */
+JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RawSocket__1mmsgRecv6
+  (JNIEnv *env, jclass _class, jint sd, jlong _batch, jint _msgs_max)
+{
+    struct mmsg_batch6 *batch = (struct mmsg_batch6*)(intptr_t)_batch;
+
+    int recv_number;
+
+    if (batch->slots < _msgs_max) {
+        errno = EINVAL;
+        return -1;
+    }
+
+    recv_number = mmsg_batch6_recv(sd, batch, _msgs_max);
+    if ((recv_number <= 0) || (batch->filter == NULL)) {
+        return recv_number;
+    }
+    return mmsg_batch6_compact(batch, recv_number);
+}
+
+/*
+ * Class:     xnetp_poc_sockets_RawSocket
+ * Method:    _mmsgRecvPacked6
+ * Signature: (IJLjava/nio/ByteBuffer;II)I
+ *
+ * receives up to _msgs_max messages into scratch of the packed batch
+ * and packs them into the target buffer with packed layout,
+ * index has _indexSlots entries, records follow the (aligned) index,
+ * packets left in scratch are packed by the next call without receiving,
+ * with filter set invalid packets are skipped and not packed,
+ * returns number of packets in the target or -1 in case of any error
+ */
+JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RawSocket__1mmsgRecvPacked6
+  (JNIEnv *env, jclass _class, jint sd, jlong _batch, jobject target, jint _indexSlots, jint _msgs_max)
+{
+    struct mmsg_batch6 *batch = (struct mmsg_batch6*)(intptr_t)_batch;
+    void *tAddress;
+    jlong tCapacity;
+    int32_t *index;
+    int64_t offset;
+    int packets, recv_number;
+
+    if ((batch->scratch == NULL) || (batch->slots < _msgs_max) || (_indexSlots < _msgs_max)) {
+        errno = EINVAL;
+        return -1;
+    }
+
+    tAddress  = (*env)->GetDirectBufferAddress(env, target);
+    tCapacity = (*env)->GetDirectBufferCapacity(env, target);
+
+    batch->rejected = 0;
+
+    /* receive only if everything from the previous call is packed */
+    if (batch->pending_from == batch->pending_to) {
+        recv_number = mmsg_batch6_recv(sd, batch, _msgs_max);
+        if (recv_number <= 0) {
+            return recv_number;
+        }
+        batch->pending_from = 0;
+        batch->pending_to = recv_number;
+    }
+
+    index = (int32_t*)tAddress;
+    offset = ((int64_t)_indexSlots * PACKED_INDEX_ENTRY_LENGTH + PACKED_RECORD_ALIGNMENT - 1) & ~(PACKED_RECORD_ALIGNMENT - 1);
+    packets = 0;
+    while ((batch->pending_from < batch->pending_to) && (packets < _msgs_max)) {
+        void *slot = batch->buffer + (uint64_t)batch->pending_from*batch->slot_size;
+        int32_t length = *(int32_t*)(slot + SLOT_HEADER_DATALEN_SHIFT);
+        int32_t record = (PACKED_DATA_SHIFT + length + PACKED_RECORD_ALIGNMENT - 1) & ~(PACKED_RECORD_ALIGNMENT - 1);
+
+        if ((batch->filter != NULL) && !mmsg_valid(batch, slot)) {
+            batch->rejected++;
+            batch->pending_from++;
+            continue;
+        }
+
+        if (tCapacity < offset + record) {
+            /* target is full, keep the rest for the next call */
+            break;
+        }
+
+        memcpy(tAddress + offset, slot, PACKED_DATA_SHIFT + length);
+        index[packets] = (int32_t)offset;
+
+        offset += record;
+        packets++;
+        batch->pending_from++;
+    }
+
+    return packets;
+}
+
+/*
+ * Class:     xnetp_poc_sockets_RawSocket
+ * Method:    _mmsgFilter6
+ * Signature: (JI[I)I
+ *
+ * sets filter of received packets: _lengths has valid data length for each
+ * of 256 packet type codes (-1 to reject the type), type is one byte at
+ * _typeShift of packet data, null _lengths removes the filter,
+ * returns 0 or -1 in case of any error (errno is set)
+ */
+JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RawSocket__1mmsgFilter6
+  (JNIEnv *env, jclass _class, jlong _batch, jint _typeShift, jintArray _lengths)
+{
+    struct mmsg_batch6 *batch = (struct mmsg_batch6*)(intptr_t)_batch;
+    int32_t *filter;
+
+    if (_lengths == NULL) {
+        free(batch->filter);
+        batch->filter = NULL;
+        return 0;
+    }
+
+    if ((_typeShift < 0) || ((*env)->GetArrayLength(env, _lengths) != MMSG_FILTER_TYPES)) {
+        errno = EINVAL;
+        return -1;
+    }
+
+    filter = (batch->filter != NULL) ? batch->filter : malloc(MMSG_FILTER_TYPES * sizeof(int32_t));
+    if (filter == NULL) {
+        errno = ENOMEM;
+        return -1;
+    }
+    (*env)->GetIntArrayRegion(env, _lengths, 0, MMSG_FILTER_TYPES, (jint*)filter);
+
+    batch->filter = filter;
+    batch->filter_type_shift = _typeShift;
+    return 0;
+}
+
+/*
+ * Class:     xnetp_poc_sockets_RawSocket
+ * Method:    _mmsgRejected
+ * Signature: (J)I
+ *
+ * returns number of packets rejected by filter during the last receive
+ */
+JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RawSocket__1mmsgRejected
+  (JNIEnv *env, jclass _class, jlong _batch)
+{
+    return ((struct mmsg_batch6*)(intptr_t)_batch)->rejected;
+}
+
+/*
+ * Class:     xnetp_poc_sockets_RawSocket
+ * Method:    _mmsgFree
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_xnetp_poc_sockets_RawSocket__1mmsgFree
+  (JNIEnv *env, jclass _class, jlong _batch)
+{
+    struct mmsg_batch6 *batch = (struct mmsg_batch6*)(intptr_t)_batch;
+
+    if (batch != NULL) {
+        free(batch->headers);
+        free(batch->messages);
+        free(batch->controls);
+        free(batch->filter);
+        free(batch->scratch);
+        free(batch);
+    }
+}
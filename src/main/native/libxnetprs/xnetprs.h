@@ -56,6 +56,22 @@ JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RawSocket__1setSendBufferSize
 JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RawSocket__1setReceiveBufferSize
   (JNIEnv *, jclass, jint, jint);
 
+/*
+ * Class:     xnetp_poc_sockets_RawSocket
+ * Method:    _enableTimestamps
+ * Signature: (I)I
+ */
+JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RawSocket__1enableTimestamps
+  (JNIEnv *, jclass, jint);
+
+/*
+ * Class:     xnetp_poc_sockets_RawSocket
+ * Method:    _attachFilter
+ * Signature: (I[I)I
+ */
+JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RawSocket__1attachFilter
+  (JNIEnv *, jclass, jint, jintArray);
+
 /*
  * Class:     xnetp_poc_sockets_RawSocket
  * Method:    _receive4
@@ -131,6 +147,78 @@ JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RawSocket__1recvmmsg4
 JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RawSocket__1recvmmsg6
   (JNIEnv *, jclass, jint, jobject, jint, jint);
 
+/*
+ * Class:     xnetp_poc_sockets_RawSocket
+ * Method:    _mmsgChunkMax
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RawSocket__1mmsgChunkMax
+  (JNIEnv *, jclass);
+
+/*
+ * Class:     xnetp_poc_sockets_RawSocket
+ * Method:    _mmsgBind6
+ * Signature: (Ljava/nio/ByteBuffer;II)J
+ */
+JNIEXPORT jlong JNICALL Java_xnetp_poc_sockets_RawSocket__1mmsgBind6
+  (JNIEnv *, jclass, jobject, jint, jint);
+
+/*
+ * Class:     xnetp_poc_sockets_RawSocket
+ * Method:    _mmsgBindPacked6
+ * Signature: (II)J
+ */
+JNIEXPORT jlong JNICALL Java_xnetp_poc_sockets_RawSocket__1mmsgBindPacked6
+  (JNIEnv *, jclass, jint, jint);
+
+/*
+ * Class:     xnetp_poc_sockets_RawSocket
+ * Method:    _mmsgSend6
+ * Signature: (IJI)I
+ */
+JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RawSocket__1mmsgSend6
+  (JNIEnv *, jclass, jint, jlong, jint);
+
+/*
+ * Class:     xnetp_poc_sockets_RawSocket
+ * Method:    _mmsgRecv6
+ * Signature: (IJI)I
+ */
+JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RawSocket__1mmsgRecv6
+  (JNIEnv *, jclass, jint, jlong, jint);
+
+/*
+ * Class:     xnetp_poc_sockets_RawSocket
+ * Method:    _mmsgRecvPacked6
+ * Signature: (IJLjava/nio/ByteBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RawSocket__1mmsgRecvPacked6
+  (JNIEnv *, jclass, jint, jlong, jobject, jint, jint);
+
+/*
+ * Class:     xnetp_poc_sockets_RawSocket
+ * Method:    _mmsgFilter6
+ * Signature: (JI[I)I
+ */
+JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RawSocket__1mmsgFilter6
+  (JNIEnv *, jclass, jlong, jint, jintArray);
+
+/*
+ * Class:     xnetp_poc_sockets_RawSocket
+ * Method:    _mmsgRejected
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_xnetp_poc_sockets_RawSocket__1mmsgRejected
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     xnetp_poc_sockets_RawSocket
+ * Method:    _mmsgFree
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_xnetp_poc_sockets_RawSocket__1mmsgFree
+  (JNIEnv *, jclass, jlong);
+
 #ifdef __cplusplus
 }
 #endif
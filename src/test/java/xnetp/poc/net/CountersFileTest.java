@@ -0,0 +1,115 @@
+package xnetp.poc.net;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * registration, labels and values of {@link CountersFile}
+ */
+public class CountersFileTest {
+
+    /**
+     * owner with counters and histogram like threads have
+     */
+    public static class Owner {
+        public final Counter packets = new Counter();
+        public final Counter[] tiers = {new Counter(), new Counter()};
+        public final LatencyHistogram latency = new LatencyHistogram();
+    }
+
+    @Test
+    public void valuesAreSharedWithReader() throws IOException {
+        Path path = Files.createTempFile("xnetp", ".counters");
+        try {
+            CountersFile writer = CountersFile.create(path, 4);
+            Counter counter = new Counter();
+            counter.add(5);
+            writer.register("c", counter);
+            counter.increment();
+
+            CountersFile reader = CountersFile.open(path);
+            assertEquals(1, reader.count());
+            assertEquals("c", reader.label(0));
+            assertEquals(6, reader.get(0));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void histogramsAreExportedAsPercentiles() throws IOException {
+        Path path = Files.createTempFile("xnetp", ".counters");
+        try {
+            CountersFile file = CountersFile.create(path, 16);
+            Owner owner = new Owner();
+            file.registerAll("h0.", owner);
+
+            assertEquals(7, file.count());
+            assertEquals("h0.packets", label(file, "h0.packets"));
+            assertEquals("h0.tiers.1", label(file, "h0.tiers.1"));
+
+            for (int i = 1; i <= 100; i++) {
+                owner.latency.record(i * 1000);
+            }
+            owner.latency.interval(new long[LatencyHistogram.BUCKETS]);
+
+            long p50 = file.get(index(file, "h0.latency.p50"));
+            long p99 = file.get(index(file, "h0.latency.p99"));
+            long max = file.get(index(file, "h0.latency.max"));
+            assertTrue("p50 " + p50, (50_000 <= p50) && (p50 < 52_000));
+            assertTrue("p99 " + p99, (99_000 <= p99) && (p99 < 102_000));
+            assertTrue("max " + max, (100_000 <= max) && (max < 102_000));
+            assertTrue(0 <= index(file, "h0.latency.p999"));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void labelsAreTruncatedOnCharacters() throws IOException {
+        Path path = Files.createTempFile("xnetp", ".counters");
+        try {
+            CountersFile file = CountersFile.create(path, 4);
+
+            // 3 bytes per character, 124 bytes limit splits the 42nd one
+            StringBuilder label = new StringBuilder();
+            for (int i = 0; i < 50; i++) {
+                label.append('\u20AC');
+            }
+            file.register(label.toString(), new Counter());
+            String truncated = file.label(0);
+            assertEquals(label.substring(0, 41), truncated);
+            assertTrue(truncated.getBytes(StandardCharsets.UTF_8).length <= CountersFile.LABEL_LENGTH_MAX);
+
+            // ascii labels are cut exactly at the limit
+            StringBuilder ascii = new StringBuilder();
+            for (int i = 0; i < 200; i++) {
+                ascii.append('a');
+            }
+            file.register(ascii.toString(), new Counter());
+            assertEquals(ascii.substring(0, CountersFile.LABEL_LENGTH_MAX), file.label(1));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    private static int index(CountersFile file, String label) {
+        for (int i = 0; i < file.count(); i++) {
+            if (file.label(i).equals(label)) {
+                return i;
+            }
+        }
+        throw new AssertionError("no counter: " + label);
+    }
+
+    private static String label(CountersFile file, String label) {
+        return file.label(index(file, label));
+    }
+}
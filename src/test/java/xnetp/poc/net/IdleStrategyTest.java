@@ -0,0 +1,53 @@
+package xnetp.poc.net;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static xnetp.poc.net.IdleStrategy.TIER_PARK;
+import static xnetp.poc.net.IdleStrategy.TIER_SPIN;
+import static xnetp.poc.net.IdleStrategy.TIER_YIELD;
+
+/**
+ * tiers of backoff strategies with extreme parameters
+ */
+public class IdleStrategyTest {
+
+    @Test
+    public void backoffTiers() {
+        IdleStrategy idle = IdleStrategy.create(IdleStrategy.Type.backoff, 10, 5, 100_000);
+        assertEquals(TIER_SPIN, idle.tier(9));
+        assertEquals(TIER_YIELD, idle.tier(10));
+        assertEquals(TIER_YIELD, idle.tier(14));
+        assertEquals(TIER_PARK, idle.tier(15));
+        // park timeouts double from 1 us up to max
+        assertEquals(1_000, idle.parkNanos(15));
+        assertEquals(2_000, idle.parkNanos(16));
+        assertEquals(100_000, idle.parkNanos(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void backoffWithHugeSpinsAndYields() {
+        IdleStrategy idle = IdleStrategy.create(IdleStrategy.Type.backoff, Integer.MAX_VALUE - 10, 100, 1000);
+        assertEquals(TIER_SPIN, idle.tier(Integer.MAX_VALUE - 11));
+        assertEquals(TIER_YIELD, idle.tier(Integer.MAX_VALUE - 5));
+        assertEquals(TIER_YIELD, idle.tier(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void adaptiveWithHugeSpins() {
+        IdleStrategy idle = IdleStrategy.create(IdleStrategy.Type.adaptive, 200_000_000, 0, 1000);
+        // work found while spinning doubles spins up to the saturated max
+        for (int i = 0; i < 8; i++) {
+            idle.episode(TIER_SPIN, 0);
+            assertEquals(TIER_SPIN, idle.tier(300_000_000));
+        }
+        assertEquals(TIER_SPIN, idle.tier(Integer.MAX_VALUE - 1));
+
+        // and rare work halves them down to the min
+        for (int i = 0; i < 40; i++) {
+            idle.episode(TIER_PARK, 0);
+        }
+        assertEquals(TIER_SPIN, idle.tier(200_000_000 / 16 - 1));
+        assertEquals(TIER_PARK, idle.tier(200_000_000 / 16));
+    }
+}
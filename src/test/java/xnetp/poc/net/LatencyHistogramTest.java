@@ -0,0 +1,82 @@
+package xnetp.poc.net;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * buckets' mapping and percentiles of {@link LatencyHistogram}
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void smallValuesAreExact() {
+        for (long value = 0; value < 64; value++) {
+            assertEquals("value " + value, value, LatencyHistogram.upper(LatencyHistogram.index(value)));
+        }
+    }
+
+    @Test
+    public void bucketBracketsValue() {
+        for (int bits = 6; bits <= 40; bits++) {
+            long power = 1L << (bits - 1);
+            for (long value : new long[] {power, power + 1, power + power / 3, 2 * power - 1}) {
+                int index = LatencyHistogram.index(value);
+                long upper = LatencyHistogram.upper(index);
+                long lower = LatencyHistogram.upper(index - 1) + 1;
+                assertTrue("value " + value + " above bucket " + upper, value <= upper);
+                assertTrue("value " + value + " below bucket " + lower, lower <= value);
+                // bucket width is 1/32 of the power
+                assertTrue("bucket of " + value + " is too wide", (upper - lower + 1) * 32 <= power);
+            }
+        }
+    }
+
+    @Test
+    public void indicesAreDenseAndMonotonic() {
+        int previous = LatencyHistogram.index(63);
+        for (int bits = 7; bits <= 40; bits++) {
+            long power = 1L << (bits - 1);
+            for (long step = 0; step < 32; step++) {
+                int index = LatencyHistogram.index(power + step * (power / 32));
+                assertEquals("value " + (power + step * (power / 32)), previous + 1, index);
+                previous = index;
+            }
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, previous);
+    }
+
+    @Test
+    public void hugeValuesGoToLastBucket() {
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.index(Long.MAX_VALUE));
+        assertEquals((1L << 40) - 1, LatencyHistogram.upper(LatencyHistogram.BUCKETS - 1));
+    }
+
+    @Test
+    public void percentilesOfSingleValue() {
+        for (long value : new long[] {32, 100, 1_000_000}) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(value);
+            long[] counts = new long[LatencyHistogram.BUCKETS];
+            long total = histogram.interval(counts);
+            assertEquals(1, total);
+
+            long p50 = LatencyHistogram.percentile(counts, total, 50);
+            assertTrue("p50 " + p50 + " of " + value, (value <= p50) && (p50 - value) * 32 <= value);
+            assertEquals(p50, LatencyHistogram.max(counts));
+        }
+    }
+
+    @Test
+    public void intervalsAreDeltas() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        long[] counts = new long[LatencyHistogram.BUCKETS];
+        histogram.record(10);
+        histogram.record(-5);
+        assertEquals(2, histogram.interval(counts));
+        assertEquals(1, counts[0]);
+        assertEquals(0, histogram.interval(counts));
+        assertEquals(0, LatencyHistogram.percentile(counts, 0, 99));
+    }
+}
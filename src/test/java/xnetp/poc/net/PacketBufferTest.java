@@ -0,0 +1,192 @@
+package xnetp.poc.net;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static xnetp.poc.net.PacketBuffer.*;
+
+/**
+ * layouts and accessors of {@link PacketBuffer}
+ */
+public class PacketBufferTest {
+
+    // slot size of fixed layout buffers in tests
+    static final int SLOT_SIZE = 256;
+
+    // packets in buffers of packed layout tests, odd to check index alignment
+    private static final int PACKED_SLOTS = 7;
+
+    @Test
+    public void packedLengths() {
+        assertEquals(0, PacketBuffer.packedRecordLength(0));
+        assertEquals(8, PacketBuffer.packedRecordLength(1));
+        assertEquals(8, PacketBuffer.packedRecordLength(8));
+        assertEquals(16, PacketBuffer.packedRecordLength(9));
+        // index of 7 entries takes 28 bytes, records start at 32
+        assertEquals(32 + 100, PacketBuffer.packedLength(PACKED_SLOTS, 100));
+        assertEquals(PacketBuffer.packedLength(PACKED_SLOTS, 100),
+                PacketBuffer.allocatePacked(PACKED_SLOTS, 100).buffer.capacity());
+    }
+
+    @Test
+    public void packedAccessorsMatchFixedLayout() {
+        PacketBuffer fixed = fixedPackets();
+        PacketBuffer packed = PacketBuffer.allocatePacked(PACKED_SLOTS, PACKED_SLOTS * SLOT_SIZE);
+        pack(fixed, packed);
+
+        int records = PacketBuffer.packedRecordLength(PACKED_SLOTS * PACKED_INDEX_ENTRY_LENGTH);
+        for (int slot = 0; slot < PACKED_SLOTS; slot++) {
+            int base = packed.base(slot);
+            assertEquals("record alignment", 0, base % PACKED_RECORD_ALIGNMENT);
+            assertTrue("record after index", records <= base);
+            if (0 < slot) {
+                int previous = packed.base(slot - 1);
+                int length = packed.buffer.getInt(previous + SLOT_HEADER_DATALEN_SHIFT);
+                assertEquals("records are back-to-back", previous + PacketBuffer.packedRecordLength(PACKED_DATA_SHIFT + length), base);
+            }
+
+            assertEquals(fixed.validate(slot), packed.validate(slot));
+            assertEquals(fixed.getPacketTypeAsByte(slot), packed.getPacketTypeAsByte(slot));
+            assertEquals(fixed.getTimestamp(slot), packed.getTimestamp(slot));
+            assertArrayEquals(fixed.getUNI(slot), packed.getUNI(slot));
+            assertEquals(fixed.getUNIHigh(slot), packed.getUNIHigh(slot));
+            assertEquals(fixed.getUNILow(slot), packed.getUNILow(slot));
+            assertEquals(fixed.getUNIKey(slot), packed.getUNIKey(slot));
+            assertEquals(fixed.uniShard(slot, 5), packed.uniShard(slot, 5));
+        }
+        // forged length
+        assertFalse(packed.validate(PACKED_SLOTS - 1));
+    }
+
+    @Test
+    public void copySlotFromPackedToFixed() {
+        PacketBuffer fixed = fixedPackets();
+        PacketBuffer packed = PacketBuffer.allocatePacked(PACKED_SLOTS, PACKED_SLOTS * SLOT_SIZE);
+        pack(fixed, packed);
+
+        PacketBuffer copy = PacketBuffer.allocate(PACKED_SLOTS, SLOT_SIZE);
+        for (int slot = 0; slot < PACKED_SLOTS; slot++) {
+            // reversed to not rely on the same slot index
+            packed.copySlot(slot, copy, PACKED_SLOTS - 1 - slot);
+        }
+        for (int slot = 0; slot < PACKED_SLOTS; slot++) {
+            int from = fixed.base(slot);
+            int to = copy.base(PACKED_SLOTS - 1 - slot);
+            int length = fixed.buffer.getInt(from + SLOT_HEADER_DATALEN_SHIFT);
+            assertArrayEquals("slot header and timestamp of " + slot,
+                    bytes(fixed, from, PACKED_DATA_SHIFT), bytes(copy, to, PACKED_DATA_SHIFT));
+            assertArrayEquals("data of " + slot,
+                    bytes(fixed, from + SLOT_DATA_SHIFT, length), bytes(copy, to + SLOT_DATA_SHIFT, length));
+            assertEquals(fixed.validate(slot), copy.validate(PACKED_SLOTS - 1 - slot));
+        }
+    }
+
+    @Test
+    public void uniShardSpreadsNodesOfOneVolume() {
+        int segments = 16;
+        int addresses = 1000;
+        PacketBuffer buffer = PacketBuffer.allocate(1, SLOT_SIZE);
+        for (int shards : new int[] {2, 3, 4, 8}) {
+            long[] packets = new long[shards];
+            for (int s = 0; s < segments; s++) {
+                for (int a = 1; a <= addresses; a++) {
+                    setUNIKey(buffer, 0, uniKey(0, s, a));
+                    int shard = buffer.uniShard(0, shards);
+                    assertTrue("shard " + shard, (0 <= shard) && (shard < shards));
+                    packets[shard]++;
+                }
+            }
+            double skew = PacketSharder.skew(packets);
+            assertTrue(shards + " shards, skew " + skew, skew < 1.05);
+        }
+    }
+
+    @Test
+    public void uniShardDependsOnKeyOnly() {
+        PacketBuffer buffer = PacketBuffer.allocate(2, SLOT_SIZE);
+        for (int a = 1; a < 100; a++) {
+            setUNIKey(buffer, 0, uniKey(3, 7, a));
+            setUNIKey(buffer, 1, uniKey(3, 7, a));
+            // other bytes of the uni are not used
+            buffer.buffer.put(buffer.base(1) + SLOT_DATA_SHIFT + 4 + 5, (byte) a);
+            assertEquals(uniKey(3, 7, a), buffer.getUNIKey(0));
+            assertEquals(buffer.uniShard(0, 8), buffer.uniShard(1, 8));
+        }
+    }
+
+    /**
+     * @return fixed layout buffer with packets of all types and
+     * the last one with forged length not aligned to records
+     */
+    private static PacketBuffer fixedPackets() {
+        PacketBuffer fixed = PacketBuffer.allocate(PACKED_SLOTS, SLOT_SIZE);
+        PacketType[] types = {PacketType.MINIMAL, PacketType.ATTRIBUTE, PacketType.ATTRIBUTE_GROUP};
+        for (int slot = 0; slot < PACKED_SLOTS; slot++) {
+            PacketType type = types[slot % types.length];
+            fixed.populatePacketExtHeaderTemplate(slot);
+            fixed.setPacketType(slot, type);
+            fixed.setPacketLength(slot, type.length);
+            fixed.populatePacketPayloadTemplate(slot, type.length - PACKET_XNETP_EXT_HDR_LENGTH);
+            fixed.setTimestamp(slot, 1_000_000_000L * slot + 7);
+            fixed.populateSlotAddress(slot, new byte[] {(byte) slot, 1, 2, 3});
+            setUNIKey(fixed, slot, uniKey(slot, 2 * slot, 1000 + slot));
+        }
+        fixed.setPacketLength(PACKED_SLOTS - 1, PacketType.MINIMAL.length + 1);
+        fixed.packets = PACKED_SLOTS;
+        return fixed;
+    }
+
+    /**
+     * packs packets like receiving via packed batch does (see xnetprs.c),
+     * records are copied from fixed slots without ip header reserve
+     * @param fixed buffer with received packets
+     * @param packed buffer to pack into
+     */
+    private static void pack(PacketBuffer fixed, PacketBuffer packed) {
+        int offset = PacketBuffer.packedRecordLength(packed.slots * PACKED_INDEX_ENTRY_LENGTH);
+        for (int slot = 0; slot < fixed.packets; slot++) {
+            int base = fixed.base(slot);
+            int length = fixed.buffer.getInt(base + SLOT_HEADER_DATALEN_SHIFT);
+            for (int i = 0; i < PACKED_DATA_SHIFT; i++) {
+                packed.buffer.put(offset + i, fixed.buffer.get(base + i));
+            }
+            for (int i = 0; i < length; i++) {
+                packed.buffer.put(offset + PACKED_DATA_SHIFT + i, fixed.buffer.get(base + SLOT_DATA_SHIFT + i));
+            }
+            packed.buffer.putInt(slot * PACKED_INDEX_ENTRY_LENGTH, offset);
+            offset += PacketBuffer.packedRecordLength(PACKED_DATA_SHIFT + length);
+        }
+        packed.packets = fixed.packets;
+    }
+
+    private static byte[] bytes(PacketBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.buffer.get(offset + i);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return VV:SS:AAAA key as returned by {@link PacketBuffer#getUNIKey(int)}
+     */
+    static int uniKey(int volume, int segment, int address) {
+        return (volume << 24) | (segment << 16) | address;
+    }
+
+    /**
+     * writes the last 4 bytes of slot's UNI in network order
+     * @param buffer buffer with any layout
+     * @param slot slot index
+     * @param key VV:SS:AAAA
+     */
+    static void setUNIKey(PacketBuffer buffer, int slot, int key) {
+        int offset = buffer.base(slot) + (buffer.packed ? PACKED_DATA_SHIFT : SLOT_DATA_SHIFT) + 4 + 12;
+        for (int i = 0; i < 4; i++) {
+            buffer.buffer.put(offset + i, (byte) (key >>> (24 - 8 * i)));
+        }
+    }
+}
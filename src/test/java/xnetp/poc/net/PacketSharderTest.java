@@ -0,0 +1,113 @@
+package xnetp.poc.net;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * repacking of received buffers by {@link PacketSharder}
+ */
+public class PacketSharderTest {
+
+    // packets per received buffer
+    private static final int SLOTS = 64;
+
+    // packets per handler buffer
+    private static final int HANDLER_SLOTS = 16;
+
+    // free buffers per handler, enough for one received buffer
+    private static final int HANDLER_BUFFERS = SLOTS / HANDLER_SLOTS + 1;
+
+    @Test
+    public void nodesStayOnOneHandler() {
+        for (int handlers : new int[] {2, 4, 8}) {
+            run(handlers, 1, 16, 1000, 100);
+        }
+    }
+
+    @Test
+    public void severalVolumes() {
+        run(3, 4, 4, 100, 50);
+    }
+
+    /**
+     * shards buffers with random nodes of the scheme and checks
+     * the same node always gets to the same handler with bounded skew
+     * @param handlers number of handlers (shards)
+     * @param volumes number of UNI volumes
+     * @param segments number of segments in each volume
+     * @param addresses number of addresses in each segment
+     * @param iterations number of received buffers
+     */
+    @SuppressWarnings("unchecked")
+    private static void run(int handlers, int volumes, int segments, int addresses, int iterations) {
+        Queue<PacketBuffer>[] free = new Queue[handlers];
+        Queue<PacketBuffer>[] used = new Queue[handlers];
+        for (int h = 0; h < handlers; h++) {
+            free[h] = new ArrayDeque<>();
+            used[h] = new ArrayDeque<>();
+            for (int b = 0; b < HANDLER_BUFFERS; b++) {
+                free[h].offer(PacketBuffer.allocate(HANDLER_SLOTS, PacketBufferTest.SLOT_SIZE));
+            }
+        }
+        PacketSharder sharder = new PacketSharder(free, used);
+
+        Random random = new Random(handlers);
+        Map<Integer, Integer> nodes = new HashMap<>();
+        long[] packets = new long[handlers];
+        long total = 0;
+
+        PacketBuffer buffer = PacketBuffer.allocate(SLOTS, PacketBufferTest.SLOT_SIZE);
+        for (int i = 0; i < iterations; i++) {
+            buffer.packets = 1 + random.nextInt(SLOTS);
+            for (int slot = 0; slot < buffer.packets; slot++) {
+                int key = PacketBufferTest.uniKey(random.nextInt(volumes), random.nextInt(segments),
+                        1 + random.nextInt(addresses));
+                buffer.populatePacketExtHeaderTemplate(slot);
+                buffer.setPacketType(slot, PacketType.MINIMAL);
+                buffer.setPacketLength(slot, PacketType.MINIMAL.length);
+                buffer.setTimestamp(slot, key);
+                PacketBufferTest.setUNIKey(buffer, slot, key);
+            }
+            total += buffer.packets;
+
+            sharder.shard(buffer);
+            // the last received buffer for now
+            sharder.flush();
+
+            for (int h = 0; h < handlers; h++) {
+                PacketBuffer hBuffer;
+                while ((hBuffer = used[h].poll()) != null) {
+                    for (int slot = 0; slot < hBuffer.packets; slot++) {
+                        int key = hBuffer.getUNIKey(slot);
+                        assertEquals("timestamp of the packet", key, hBuffer.getTimestamp(slot));
+                        assertTrue("packet data", hBuffer.validate(slot));
+                        Integer handler = nodes.putIfAbsent(key, h);
+                        assertEquals("node " + Integer.toHexString(key), h, (handler == null) ? h : (int) handler);
+                    }
+                    packets[h] += hBuffer.packets;
+                    free[h].offer(hBuffer);
+                }
+            }
+        }
+
+        long passed = 0;
+        for (int h = 0; h < handlers; h++) {
+            assertEquals("packets of handler " + h, packets[h], sharder.shardPackets[h].get());
+            assertNull("nothing left after flush", used[h].poll());
+            passed += packets[h];
+        }
+        assertEquals("all packets are passed", total, passed);
+
+        double skew = PacketSharder.skew(packets);
+        assertTrue(handlers + " handlers, skew " + skew, skew < 1.1);
+    }
+}
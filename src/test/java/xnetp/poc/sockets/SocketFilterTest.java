@@ -0,0 +1,275 @@
+package xnetp.poc.sockets;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static xnetp.poc.sockets.SocketFilter.*;
+
+/**
+ * compiles {@link SocketFilter} combinations and runs programs
+ * on synthetic packets with a small classic bpf interpreter
+ */
+public class SocketFilterTest {
+
+    // xnetp protocol (ipv6 next header) used in tests
+    private static final int PROTOCOL = 0xFD;
+
+    // xnetp ext header length used in tests
+    private static final int EXT_LENGTH = 64;
+
+    @Test
+    public void emptyFilterAcceptsEverything() {
+        int[] code = new SocketFilter(Target.raw6).compile();
+        assertArrayEquals(new int[] {BPF_RET | BPF_K, 0, 0, -1, BPF_RET | BPF_K, 0, 0, 0}, code);
+        assertTrue(run(code, raw6(1, 0x0102, 100), 0, 0));
+    }
+
+    @Test
+    public void shardFilterInstructions() {
+        int[] code = new SocketFilter(Target.raw6).shard(RawSocket.ShardMode.cpu, 4, 1).compile();
+        assertArrayEquals(new int[] {
+                BPF_LD | BPF_W | BPF_ABS, 0, 0, SKF_AD_OFF + SKF_AD_CPU,
+                BPF_ALU | BPF_MOD | BPF_K, 0, 0, 4,
+                BPF_JMP | BPF_JEQ | BPF_K, 0, 1, 1,
+                BPF_RET | BPF_K, 0, 0, -1,
+                BPF_RET | BPF_K, 0, 0, 0}, code);
+    }
+
+    @Test
+    public void shardsSplitValues() {
+        for (RawSocket.ShardMode mode : RawSocket.ShardMode.values()) {
+            for (int value = 0; value < 16; value++) {
+                int accepted = 0;
+                for (int shard = 0; shard < 4; shard++) {
+                    int[] code = new SocketFilter(Target.raw6).shard(mode, 4, shard).compile();
+                    int cpu = (mode == RawSocket.ShardMode.cpu) ? value : 0;
+                    int rxhash = (mode == RawSocket.ShardMode.rxhash) ? value : 0;
+                    if (run(code, raw6(1, 0, 0), cpu, rxhash)) {
+                        assertEquals(mode + " value " + value, value % 4, shard);
+                        accepted++;
+                    }
+                }
+                assertEquals(mode + " value " + value + " must go to one shard", 1, accepted);
+            }
+        }
+    }
+
+    @Test
+    public void typesAreAlternatives() {
+        for (Target target : Target.values()) {
+            int[] code = new SocketFilter(target).type(1).type(3).type(7).compile();
+            for (int type = 0; type < 10; type++) {
+                boolean expected = (type == 1) || (type == 3) || (type == 7);
+                assertEquals(target + " type " + type, expected, run(code, packet(target, type, 0, 0), 0, 0));
+            }
+        }
+    }
+
+    @Test
+    public void lengthIsInclusive() {
+        for (Target target : Target.values()) {
+            int[] code = new SocketFilter(target).length(EXT_LENGTH + 10, EXT_LENGTH + 20).compile();
+            assertFalse(run(code, packet(target, 1, 0, 9), 0, 0));
+            assertTrue(run(code, packet(target, 1, 0, 10), 0, 0));
+            assertTrue(run(code, packet(target, 1, 0, 20), 0, 0));
+            assertFalse(run(code, packet(target, 1, 0, 21), 0, 0));
+        }
+    }
+
+    @Test
+    public void uniPrefixes() {
+        for (Target target : Target.values()) {
+            // whole volume 0x02, segment 0x05 of volume 0x07, whole volume 0x09
+            int[] code = new SocketFilter(target).uni(0x02, -1).uni(0x07, 0x05).uni(0x09, -1).compile();
+            for (int volume = 0; volume < 12; volume++) {
+                for (int segment : new int[] {0x00, 0x04, 0x05, 0x06, 0xFF}) {
+                    boolean expected = (volume == 0x02) || (volume == 0x09) || ((volume == 0x07) && (segment == 0x05));
+                    assertEquals(target + " uni " + volume + ":" + segment, expected,
+                            run(code, packet(target, 1, (volume << 8) | segment, 0), 0, 0));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void packetTargetChecksEtherTypeAndProtocol() {
+        int[] code = new SocketFilter(Target.packet).protocol(PROTOCOL).compile();
+        byte[] frame = packet(Target.packet, 1, 0, 0);
+        assertTrue(run(code, frame, 0, 0));
+
+        frame[IPV6_NEXT_HDR_SHIFT] = 17;
+        assertFalse("other protocol", run(code, frame, 0, 0));
+
+        frame = packet(Target.packet, 1, 0, 0);
+        frame[ETH_TYPE_SHIFT] = 0x08;
+        frame[ETH_TYPE_SHIFT + 1] = 0x00;
+        assertFalse("ipv4 frame", run(code, frame, 0, 0));
+    }
+
+    @Test
+    public void conditionsAreCombined() {
+        for (Target target : Target.values()) {
+            int[] code = new SocketFilter(target)
+                    .protocol(PROTOCOL)
+                    .type(2).type(4)
+                    .length(EXT_LENGTH, EXT_LENGTH + 100)
+                    .uni(0x03, -1).uni(0x05, 0x01)
+                    .shard(RawSocket.ShardMode.rxhash, 2, 1)
+                    .compile();
+            assertJumpsInside(code);
+
+            assertTrue(run(code, packet(target, 2, 0x0310, 50), 0, 1));
+            assertTrue(run(code, packet(target, 4, 0x0501, 0), 0, 3));
+            assertFalse("type", run(code, packet(target, 3, 0x0310, 50), 0, 1));
+            assertFalse("length", run(code, packet(target, 2, 0x0310, 101), 0, 1));
+            assertFalse("uni", run(code, packet(target, 2, 0x0502, 50), 0, 1));
+            assertFalse("shard", run(code, packet(target, 2, 0x0310, 50), 0, 2));
+        }
+    }
+
+    @Test
+    public void maxAlternativesStayInJumpRange() {
+        SocketFilter filter = new SocketFilter(Target.packet);
+        for (int i = 0; i < ALTERNATIVES_MAX; i++) {
+            filter.type(i).uni(i, -1);
+        }
+        int[] code = filter.compile();
+        assertJumpsInside(code);
+        assertTrue(run(code, packet(Target.packet, ALTERNATIVES_MAX - 1, (ALTERNATIVES_MAX - 1) << 8, 0), 0, 0));
+        assertFalse(run(code, packet(Target.packet, ALTERNATIVES_MAX, 0, 0), 0, 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooManyAlternatives() {
+        SocketFilter filter = new SocketFilter(Target.raw6);
+        for (int i = 0; i <= ALTERNATIVES_MAX; i++) {
+            filter.type(i);
+        }
+        filter.compile();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wrongLengthDiapason() {
+        new SocketFilter(Target.raw6).length(20, 10);
+    }
+
+    /**
+     * checks all jumps land on instructions of the program
+     * @param code compiled program
+     */
+    private static void assertJumpsInside(int[] code) {
+        int length = code.length / 4;
+        for (int i = 0; i < length; i++) {
+            if ((code[i * 4] & 0x07) == BPF_JMP) {
+                for (int f = 1; f <= 2; f++) {
+                    int offset = code[i * 4 + f];
+                    assertTrue("jump offset at " + i, (0 <= offset) && (offset <= 255));
+                    assertTrue("jump outside at " + i, i + 1 + offset < length);
+                }
+            }
+        }
+        assertEquals("last instruction must be ret", BPF_RET, code[(length - 1) * 4] & 0x07);
+    }
+
+    /**
+     * creates packet as seen by the filter of the target
+     * @param target socket type
+     * @param type xnetp packet type
+     * @param uni UNI volume and segment, VV:SS
+     * @param data length of data after ext header
+     * @return raw6 packet (from ext header) or ethernet frame
+     */
+    private static byte[] packet(Target target, int type, int uni, int data) {
+        return (target == Target.raw6) ? raw6(type, uni, data) : frame(type, uni, data);
+    }
+
+    private static byte[] raw6(int type, int uni, int data) {
+        byte[] packet = new byte[EXT_LENGTH + data];
+        ext(packet, 0, type, uni);
+        return packet;
+    }
+
+    private static byte[] frame(int type, int uni, int data) {
+        int ext = ETH_HDR_LENGTH + IPV6_HDR_LENGTH;
+        byte[] frame = new byte[ext + EXT_LENGTH + data];
+        frame[ETH_TYPE_SHIFT] = (byte) (ETH_P_IPV6 >>> 8);
+        frame[ETH_TYPE_SHIFT + 1] = (byte) ETH_P_IPV6;
+        frame[ETH_HDR_LENGTH] = 0x60;
+        frame[IPV6_PAYLOAD_LEN_SHIFT] = (byte) ((EXT_LENGTH + data) >>> 8);
+        frame[IPV6_PAYLOAD_LEN_SHIFT + 1] = (byte) (EXT_LENGTH + data);
+        frame[IPV6_NEXT_HDR_SHIFT] = (byte) PROTOCOL;
+        ext(frame, ext, type, uni);
+        return frame;
+    }
+
+    private static void ext(byte[] packet, int ext, int type, int uni) {
+        packet[ext + EXT_UNI_VOLUME_SHIFT] = (byte) (uni >>> 8);
+        packet[ext + EXT_UNI_VOLUME_SHIFT + 1] = (byte) uni;
+        packet[ext + EXT_TYPE_SHIFT] = (byte) type;
+    }
+
+    /**
+     * interprets subset of classic bpf emitted by {@link SocketFilter}
+     * @param code compiled program
+     * @param packet packet data
+     * @param cpu value of cpu ancillary field
+     * @param rxhash value of rxhash ancillary field
+     * @return true if packet is accepted
+     */
+    private static boolean run(int[] code, byte[] packet, int cpu, int rxhash) {
+        int a = 0;
+        int pc = 0;
+        while (true) {
+            assertTrue("pc outside of program: " + pc, pc * 4 < code.length);
+            int c = code[pc * 4];
+            int jt = code[pc * 4 + 1];
+            int jf = code[pc * 4 + 2];
+            int k = code[pc * 4 + 3];
+            pc++;
+
+            switch (c & 0x07) {
+                case BPF_LD:
+                    if ((c & 0xE0) == BPF_LEN) {
+                        a = packet.length;
+                    } else if (k == SKF_AD_OFF + SKF_AD_CPU) {
+                        a = cpu;
+                    } else if (k == SKF_AD_OFF + SKF_AD_RXHASH) {
+                        a = rxhash;
+                    } else {
+                        int size = ((c & 0x18) == BPF_B) ? 1 : ((c & 0x18) == BPF_H) ? 2 : 4;
+                        if ((k < 0) || (packet.length < k + size)) {
+                            // kernel drops packet on loads outside of it
+                            return false;
+                        }
+                        a = 0;
+                        for (int i = 0; i < size; i++) {
+                            a = (a << 8) | (packet[k + i] & 0xFF);
+                        }
+                    }
+                    break;
+                case BPF_ALU:
+                    assertEquals("unexpected alu op", BPF_MOD | BPF_K, c & 0xF8);
+                    a = Integer.remainderUnsigned(a, k);
+                    break;
+                case BPF_JMP:
+                    int cmp = Integer.compareUnsigned(a, k);
+                    boolean matched;
+                    switch (c & 0xF0) {
+                        case BPF_JEQ: matched = (cmp == 0); break;
+                        case BPF_JGT: matched = (cmp > 0); break;
+                        case BPF_JGE: matched = (cmp >= 0); break;
+                        default: throw new AssertionError("unexpected jump: " + c);
+                    }
+                    pc += matched ? jt : jf;
+                    break;
+                case BPF_RET:
+                    return k != 0;
+                default:
+                    throw new AssertionError("unexpected instruction: " + c);
+            }
+        }
+    }
+}